@@ -0,0 +1,382 @@
+package ru.akiselev.paymentservice.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+@SupportedAnnotationTypes(EntityProcessor.ENTITY)
+public class EntityProcessor extends AbstractProcessor {
+
+    static final String ENTITY = "javax.persistence.Entity";
+    private static final String ID = "javax.persistence.Id";
+    private static final String COLUMN = "javax.persistence.Column";
+    private static final String GETTER = "lombok.Getter";
+    private static final String ALL_ARGS_CONSTRUCTOR = "lombok.AllArgsConstructor";
+    private static final String PERSISTENCE_PACKAGE = "ru.akiselev.paymentservice.persistence";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        for (final TypeElement annotation : annotations) {
+            for (final Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    generate((TypeElement) element);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void generate(final TypeElement entity) {
+        if (entity.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            error(entity, "Entity %s must be a top level class.", entity.getQualifiedName());
+            return;
+        }
+        final List<Column> columns = new ArrayList<>();
+        for (final VariableElement field : persistentFields(entity)) {
+            final Column column = columnFor(entity, field);
+            if (column == null) {
+                return;
+            }
+            columns.add(column);
+        }
+        if (!hasAllArgsConstructor(entity, columns)) {
+            error(entity, "Entity %s needs a constructor taking all fields in declaration order.", entity.getQualifiedName());
+            return;
+        }
+
+        final String packageName = ((PackageElement) entity.getEnclosingElement()).getQualifiedName().toString();
+        final String entityName = entity.getSimpleName().toString();
+        write(entity, packageName, entityName + "RowMapper", rowMapperSource(packageName, entityName, columns));
+        write(entity, packageName, entityName + "Binder", binderSource(packageName, entityName, columns));
+    }
+
+    private Column columnFor(final TypeElement entity, final VariableElement field) {
+        final String fieldName = field.getSimpleName().toString();
+        final String getter = getterFor(entity, field);
+        if (getter == null) {
+            error(field, "Field %s of entity %s has no getter.", fieldName, entity.getQualifiedName());
+            return null;
+        }
+        final TypeMirror type = field.asType();
+        if (isEntity(type)) {
+            final TypeElement referenced = (TypeElement) ((DeclaredType) type).asElement();
+            final VariableElement referencedId = persistentFields(referenced).stream()
+                    .filter(candidate -> annotation(candidate, ID) != null)
+                    .findFirst()
+                    .orElse(null);
+            final String referencedIdGetter = referencedId == null ? null : getterFor(referenced, referencedId);
+            if (referencedIdGetter == null) {
+                error(field, "Referenced entity %s has no readable id.", referenced.getQualifiedName());
+                return null;
+            }
+            return new Column(format("%s_id", fieldName), getter, type, false, referencedId.asType(), referencedIdGetter);
+        }
+        final AnnotationMirror column = annotation(field, COLUMN);
+        final String columnName = column == null ? fieldName : annotationValue(column, "name", fieldName);
+        return new Column(columnName, getter, type, annotation(field, ID) != null, null, null);
+    }
+
+    private String rowMapperSource(final String packageName, final String entityName, final List<Column> columns) {
+        final String mapArgs = columns.stream()
+                .map(column -> column.isReference()
+                        ? format("resolver.resolveNullable(%s.class, %s)", erasure(column.type), nullableRead(column.referenceIdType, column.columnName))
+                        : read(column.type, column.columnName))
+                .collect(Collectors.joining(",\n                "));
+        final String referenceArgs = columns.stream()
+                .map(column -> column.idField ? format("(%s) id", boxed(column.type)) : defaultValue(column.type))
+                .collect(Collectors.joining(", "));
+        return "package " + packageName + ";\n\n"
+                + "import " + PERSISTENCE_PACKAGE + ".ReferenceResolver;\n"
+                + "import " + PERSISTENCE_PACKAGE + ".ResultSetValues;\n"
+                + "import " + PERSISTENCE_PACKAGE + ".RowMapper;\n\n"
+                + "import javax.annotation.processing.Generated;\n"
+                + "import java.sql.ResultSet;\n"
+                + "import java.sql.SQLException;\n\n"
+                + "@Generated(\"" + EntityProcessor.class.getName() + "\")\n"
+                + "public final class " + entityName + "RowMapper implements RowMapper<" + entityName + "> {\n\n"
+                + "    @Override\n"
+                + "    public " + entityName + " map(final ResultSet resultSet, final ReferenceResolver resolver) throws SQLException {\n"
+                + "        return new " + entityName + "(\n"
+                + "                " + mapArgs + "\n"
+                + "        );\n"
+                + "    }\n\n"
+                + "    @Override\n"
+                + "    public " + entityName + " reference(final Object id) {\n"
+                + "        return new " + entityName + "(" + referenceArgs + ");\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    private String binderSource(final String packageName, final String entityName, final List<Column> columns) {
+        final StringBuilder mask = new StringBuilder();
+        final StringBuilder bind = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            final Column column = columns.get(i);
+            final String bit = format("(1L << %d)", i);
+            final String value = column.isReference()
+                    ? format("entity.%s().%s()", column.getter, column.referenceIdGetter)
+                    : format("entity.%s()", column.getter);
+            if (column.isReference()) {
+                mask.append(format("        if (entity.%s() != null && %s != null) {\n            mask |= %s;\n        }\n",
+                        column.getter, value, bit));
+            } else if (column.type.getKind().isPrimitive()) {
+                mask.append(format("        mask |= %s;\n", bit));
+            } else {
+                mask.append(format("        if (%s != null) {\n            mask |= %s;\n        }\n", value, bit));
+            }
+            final TypeMirror valueType = column.isReference() ? column.referenceIdType : column.type;
+            bind.append(format("        if ((mask & %s) != 0) {\n            %s;\n        }\n", bit, write(valueType, value)));
+        }
+        return "package " + packageName + ";\n\n"
+                + "import " + PERSISTENCE_PACKAGE + ".Binder;\n\n"
+                + "import javax.annotation.processing.Generated;\n"
+                + "import java.sql.PreparedStatement;\n"
+                + "import java.sql.SQLException;\n\n"
+                + "@Generated(\"" + EntityProcessor.class.getName() + "\")\n"
+                + "public final class " + entityName + "Binder implements Binder<" + entityName + "> {\n\n"
+                + "    @Override\n"
+                + "    public long presentColumnsMask(final " + entityName + " entity) {\n"
+                + "        long mask = 0L;\n"
+                + mask
+                + "        return mask;\n"
+                + "    }\n\n"
+                + "    @Override\n"
+                + "    public void bind(final PreparedStatement statement, final " + entityName + " entity, final long mask) throws SQLException {\n"
+                + "        int index = 1;\n"
+                + bind
+                + "    }\n"
+                + "}\n";
+    }
+
+    private String read(final TypeMirror type, final String column) {
+        switch (type.getKind()) {
+            case LONG:
+                return format("resultSet.getLong(\"%s\")", column);
+            case INT:
+                return format("resultSet.getInt(\"%s\")", column);
+            case SHORT:
+                return format("resultSet.getShort(\"%s\")", column);
+            case BYTE:
+                return format("resultSet.getByte(\"%s\")", column);
+            case DOUBLE:
+                return format("resultSet.getDouble(\"%s\")", column);
+            case FLOAT:
+                return format("resultSet.getFloat(\"%s\")", column);
+            case BOOLEAN:
+                return format("resultSet.getBoolean(\"%s\")", column);
+            default:
+                return nullableRead(type, column);
+        }
+    }
+
+    private String nullableRead(final TypeMirror type, final String column) {
+        final String boxed = type.getKind().isPrimitive() ? boxed(type) : erasure(type);
+        switch (boxed) {
+            case "java.lang.Long":
+                return format("ResultSetValues.longOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Integer":
+                return format("ResultSetValues.intOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Short":
+                return format("ResultSetValues.shortOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Byte":
+                return format("ResultSetValues.byteOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Double":
+                return format("ResultSetValues.doubleOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Float":
+                return format("ResultSetValues.floatOrNull(resultSet, \"%s\")", column);
+            case "java.lang.Boolean":
+                return format("ResultSetValues.booleanOrNull(resultSet, \"%s\")", column);
+            case "java.lang.String":
+                return format("resultSet.getString(\"%s\")", column);
+            case "java.math.BigDecimal":
+                return format("resultSet.getBigDecimal(\"%s\")", column);
+            default:
+                return format("resultSet.getObject(\"%s\", %s.class)", column, boxed);
+        }
+    }
+
+    private String write(final TypeMirror type, final String value) {
+        final String boxed = type.getKind().isPrimitive() ? boxed(type) : erasure(type);
+        switch (boxed) {
+            case "java.lang.Long":
+                return format("statement.setLong(index++, %s)", value);
+            case "java.lang.Integer":
+                return format("statement.setInt(index++, %s)", value);
+            case "java.lang.Short":
+                return format("statement.setShort(index++, %s)", value);
+            case "java.lang.Byte":
+                return format("statement.setByte(index++, %s)", value);
+            case "java.lang.Double":
+                return format("statement.setDouble(index++, %s)", value);
+            case "java.lang.Float":
+                return format("statement.setFloat(index++, %s)", value);
+            case "java.lang.Boolean":
+                return format("statement.setBoolean(index++, %s)", value);
+            case "java.lang.String":
+                return format("statement.setString(index++, %s)", value);
+            case "java.math.BigDecimal":
+                return format("statement.setBigDecimal(index++, %s)", value);
+            default:
+                return format("statement.setObject(index++, %s)", value);
+        }
+    }
+
+    private String boxed(final TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()))
+                    .getQualifiedName().toString();
+        }
+        return erasure(type);
+    }
+
+    private String erasure(final TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static String defaultValue(final TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "false";
+            case CHAR:
+                return "'\\0'";
+            case BYTE:
+                return "(byte) 0";
+            case SHORT:
+                return "(short) 0";
+            case INT:
+                return "0";
+            case LONG:
+                return "0L";
+            case FLOAT:
+                return "0.0f";
+            case DOUBLE:
+                return "0.0d";
+            default:
+                return "null";
+        }
+    }
+
+    private boolean isEntity(final TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && annotation(((DeclaredType) type).asElement(), ENTITY) != null;
+    }
+
+    private static List<VariableElement> persistentFields(final TypeElement type) {
+        return ElementFilter.fieldsIn(type.getEnclosedElements()).stream()
+                .filter(field -> !field.getModifiers().contains(Modifier.STATIC))
+                .collect(Collectors.toList());
+    }
+
+    private static String getterFor(final TypeElement entity, final VariableElement field) {
+        final String name = field.getSimpleName().toString();
+        final String prefix = field.asType().getKind() == TypeKind.BOOLEAN ? "is" : "get";
+        final String getter = prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        final boolean declared = ElementFilter.methodsIn(entity.getEnclosedElements()).stream()
+                .anyMatch(method -> method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty());
+        final boolean generatedByLombok = annotation(entity, GETTER) != null || annotation(field, GETTER) != null;
+        return declared || generatedByLombok ? getter : null;
+    }
+
+    private boolean hasAllArgsConstructor(final TypeElement entity, final List<Column> columns) {
+        if (annotation(entity, ALL_ARGS_CONSTRUCTOR) != null) {
+            return true;
+        }
+        for (final ExecutableElement constructor : ElementFilter.constructorsIn(entity.getEnclosedElements())) {
+            final List<? extends VariableElement> parameters = constructor.getParameters();
+            if (parameters.size() != columns.size()) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < parameters.size(); i++) {
+                matches &= processingEnv.getTypeUtils().isSameType(parameters.get(i).asType(), columns.get(i).type);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AnnotationMirror annotation(final Element element, final String annotationName) {
+        for (final AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            final TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static String annotationValue(final AnnotationMirror mirror, final String name, final String defaultValue) {
+        for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                final String value = entry.getValue().getValue().toString();
+                return value.isEmpty() ? defaultValue : value;
+            }
+        }
+        return defaultValue;
+    }
+
+    private void write(final TypeElement entity, final String packageName, final String className, final String source) {
+        try (final Writer writer = processingEnv.getFiler().createSourceFile(packageName + "." + className, entity).openWriter()) {
+            writer.write(source);
+        } catch (IOException e) {
+            error(entity, "Cannot write %s: %s", className, e.getMessage());
+        }
+    }
+
+    private void error(final Element element, final String message, final Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, format(message, args), element);
+    }
+
+    private static final class Column {
+        private final String columnName;
+        private final String getter;
+        private final TypeMirror type;
+        private final boolean idField;
+        private final TypeMirror referenceIdType;
+        private final String referenceIdGetter;
+
+        private Column(final String columnName, final String getter, final TypeMirror type, final boolean idField,
+                       final TypeMirror referenceIdType, final String referenceIdGetter) {
+            this.columnName = columnName;
+            this.getter = getter;
+            this.type = type;
+            this.idField = idField;
+            this.referenceIdType = referenceIdType;
+            this.referenceIdGetter = referenceIdGetter;
+        }
+
+        private boolean isReference() {
+            return referenceIdType != null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.akiselev.paymentservice.persistence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.entity.Payment;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static java.lang.String.format;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EntityMetadataBenchmark {
+
+    private Payment payment;
+    private List<Payment> payments;
+    private EntityMetadata paymentMetadata;
+
+    @Setup
+    public void setUp() {
+        payment = new Payment(null, 100, Customer.of(7L), Customer.of(8L));
+        payments = LongStream.range(0, 1_000)
+                .mapToObj(id -> new Payment(null, 100, Customer.of(id), Customer.of(id + 1)))
+                .collect(Collectors.toList());
+        paymentMetadata = EntityMetadata.of(Payment.class);
+    }
+
+    @Benchmark
+    public Object shardKeyValueReflective() {
+        return PersistenceUtils.shardIdValueFor(Payment.class, payment);
+    }
+
+    @Benchmark
+    public Object shardKeyValueMetadata() {
+        return EntityMetadata.of(Payment.class).shardKeyValueOf(payment);
+    }
+
+    @Benchmark
+    public boolean isShardKeyReflective() {
+        return PersistenceUtils.isShardId(Payment.class, "sender_id");
+    }
+
+    @Benchmark
+    public boolean isShardKeyMetadata() {
+        return EntityMetadata.of(Payment.class).isShardKeyColumn("sender_id");
+    }
+
+    @Benchmark
+    public String insertSqlReflective() {
+        final String columns = Arrays.stream(Payment.class.getDeclaredFields())
+                .filter(field -> !PersistenceUtils.isFieldNull(field, payment))
+                .map(PersistenceUtils::columnNameFor)
+                .collect(Collectors.joining(","));
+        final String args = Arrays.stream(Payment.class.getDeclaredFields())
+                .filter(field -> !PersistenceUtils.isFieldNull(field, payment))
+                .map(field -> "?")
+                .collect(Collectors.joining(","));
+        return format("insert into %s(%s) values(%s)", PersistenceUtils.tableNameForClass(Payment.class), columns, args);
+    }
+
+    @Benchmark
+    public String insertSqlMetadata() {
+        return paymentMetadata.insertSqlFor(paymentMetadata.<Payment>binder().presentColumnsMask(payment));
+    }
+
+    @Benchmark
+    public String batchInsertSqlMetadata() {
+        return paymentMetadata.insertSqlFor(paymentMetadata.presentColumnsMaskForAll(payments));
+    }
+
+    @Benchmark
+    public void idReflective(final Blackhole blackhole) {
+        blackhole.consume(PersistenceUtils.idNameFor(Payment.class));
+        blackhole.consume(PersistenceUtils.<Long>idTypeFor(Payment.class));
+    }
+
+    @Benchmark
+    public void idMetadata(final Blackhole blackhole) {
+        final EntityMetadata metadata = EntityMetadata.of(Payment.class);
+        blackhole.consume(metadata.getIdName());
+        blackhole.consume(metadata.getIdType());
+    }
+}
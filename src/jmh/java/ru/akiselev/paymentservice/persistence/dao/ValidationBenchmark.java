@@ -0,0 +1,64 @@
+package ru.akiselev.paymentservice.persistence.dao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.entity.Payment;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ValidationBenchmark {
+
+    @Param({"10000"})
+    private int batchSize;
+
+    private List<Customer> customers;
+    private List<Payment> payments;
+
+    @Setup
+    public void setUp() {
+        customers = LongStream.range(0, batchSize)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList());
+        payments = LongStream.range(0, batchSize)
+                .mapToObj(id -> new Payment(id, 100, Customer.of(id), Customer.of(id + 1)))
+                .collect(toList());
+    }
+
+    @Benchmark
+    public List<Customer> customersOneByOne() {
+        customers.forEach(EntityValidator::validate);
+        return customers;
+    }
+
+    @Benchmark
+    public List<Customer> customersInBatch() {
+        EntityValidator.validate(customers);
+        return customers;
+    }
+
+    @Benchmark
+    public List<Payment> paymentsInBatch() {
+        EntityValidator.validate(payments);
+        return payments;
+    }
+}
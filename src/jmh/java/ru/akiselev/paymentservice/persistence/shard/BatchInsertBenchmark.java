@@ -0,0 +1,115 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BatchInsertBenchmark {
+
+    @Param({"3"})
+    private int shardCount;
+
+    @Param({"100", "1000"})
+    private int batchSize;
+
+    private FanOutExecutor fanOutExecutor;
+    private List<DataSource> dataSources;
+    private HashShardManager grouping;
+    private HashShardManager h2;
+    private long nextId;
+
+    @Setup
+    public void setUp() {
+        fanOutExecutor = new FanOutExecutor(shardCount, 10_000L);
+        dataSources = IntStream.rangeClosed(1, shardCount)
+                .mapToObj(shardId -> customerDatabase("batchInsert" + shardId))
+                .collect(toList());
+        grouping = new HashShardManager(IntStream.rangeClosed(1, shardCount)
+                .mapToObj(shardId -> (Shard) new ShardServer(shardId, null) {
+                    @Override
+                    public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+                        return Collections.nCopies(entities.size(), null);
+                    }
+                })
+                .collect(toList()), fanOutExecutor);
+        h2 = new HashShardManager(IntStream.range(0, shardCount)
+                .mapToObj(i -> (Shard) new ShardServer(i + 1, dataSources.get(i)))
+                .collect(toList()), fanOutExecutor);
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws SQLException {
+        for (final DataSource dataSource : dataSources) {
+            try (final Connection connection = dataSource.getConnection();
+                 final Statement statement = connection.createStatement()) {
+                statement.execute("truncate table customer");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Benchmark
+    public List<Long> groupByShard() {
+        return grouping.saveAllInBatch(customers(), Customer.class);
+    }
+
+    @Benchmark
+    public List<Long> saveAllInBatchToH2() {
+        return h2.saveAllInBatch(customers(), Customer.class);
+    }
+
+    private List<Customer> customers() {
+        final long from = nextId;
+        nextId += batchSize;
+        return LongStream.range(from, nextId)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList());
+    }
+
+    static DataSource customerDatabase(final String name) {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists customer");
+            statement.execute("create table customer(id bigint auto_increment primary key, name varchar(100))");
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return dataSource;
+    }
+}
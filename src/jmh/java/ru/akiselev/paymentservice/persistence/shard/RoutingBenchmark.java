@@ -0,0 +1,76 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.entity.Payment;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoutingBenchmark {
+
+    @Param({"3", "16"})
+    private int shardCount;
+
+    @Param({"256"})
+    private int virtualNodes;
+
+    private FanOutExecutor fanOutExecutor;
+    private HashShardManager modulo;
+    private ConsistentHashShardManager consistent;
+    private long key;
+    private Payment payment;
+
+    @Setup
+    public void setUp() {
+        final List<Shard> shards = IntStream.rangeClosed(1, shardCount)
+                .mapToObj(shardId -> (Shard) new ShardServer(shardId, null))
+                .collect(toList());
+        fanOutExecutor = new FanOutExecutor(1, 1_000L);
+        modulo = new HashShardManager(shards, fanOutExecutor);
+        consistent = new ConsistentHashShardManager(shards, fanOutExecutor, virtualNodes, Map.of());
+        payment = new Payment(null, 100, Customer.of(7L), Customer.of(8L));
+    }
+
+    @TearDown
+    public void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Benchmark
+    public int modulo() {
+        return modulo.evaluateShardIdForKey(key++);
+    }
+
+    @Benchmark
+    public int consistentHash() {
+        return consistent.evaluateShardIdForKey(key++);
+    }
+
+    @Benchmark
+    public int moduloForEntity() {
+        payment.getSender().setId(key++);
+        return modulo.evaluateShardIdFor(payment);
+    }
+}
@@ -0,0 +1,55 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RowMappingBenchmark {
+
+    @Param({"1000"})
+    private int rows;
+
+    private ShardServer shard;
+
+    @Setup
+    public void setUp() {
+        shard = new ShardServer(1, BatchInsertBenchmark.customerDatabase("rowMapping"));
+        shard.insertAllInBatch(LongStream.range(0, rows)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList()), Customer.class);
+    }
+
+    @Benchmark
+    public List<Customer> findAll() {
+        return shard.findAll(Customer.class, "", List.of());
+    }
+
+    @Benchmark
+    public long stream() {
+        try (final Stream<Customer> customers = shard.stream(Customer.class, "", List.of())) {
+            return customers.count();
+        }
+    }
+}
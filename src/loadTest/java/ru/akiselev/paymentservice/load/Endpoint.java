@@ -0,0 +1,36 @@
+package ru.akiselev.paymentservice.load;
+
+import java.util.Arrays;
+
+import static java.lang.String.format;
+
+enum Endpoint {
+    CREATE_CUSTOMERS("create-customers", "POST /customers/all"),
+    SAVE_PAYMENTS("save-payments", "POST /payments"),
+    GET_CUSTOMER("get-customer", "GET /customers/{id}"),
+    PAYMENT_AMOUNT("payment-amount", "GET /payments/amount");
+
+    private final String key;
+    private final String label;
+
+    Endpoint(final String key, final String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    static Endpoint byKey(final String key) {
+        return Arrays.stream(values())
+                .filter(endpoint -> endpoint.key.equals(key))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(format("Unknown endpoint %s, expected one of %s.",
+                        key, Arrays.toString(Arrays.stream(values()).map(Endpoint::getKey).toArray()))));
+    }
+}
@@ -0,0 +1,120 @@
+package ru.akiselev.paymentservice.load;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+public final class FaultInjectingDriver implements Driver {
+
+    private static final String PREFIX = "jdbc:faulty:";
+    private static final Map<String, ShardFaults> FAULTS = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyRecorder> STATEMENTS = new ConcurrentSkipListMap<>();
+
+    static String url(final String shard, final String targetUrl) {
+        Preconditions.checkArgument(shard.indexOf(':') < 0, "Shard name %s must not contain ':'.", shard);
+        return PREFIX + shard + ":" + targetUrl;
+    }
+
+    static void inject(final String shard, final ShardFaults faults) {
+        FAULTS.put(shard, faults);
+    }
+
+    static Map<String, LatencyRecorder> statements() {
+        return STATEMENTS;
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        final int separator = url.indexOf(':', PREFIX.length());
+        Preconditions.checkArgument(separator > 0, "Expected %s<shard>:<jdbc url>, but got %s.", PREFIX, url);
+        final String shard = url.substring(PREFIX.length(), separator);
+        final Connection connection = DriverManager.getConnection(url.substring(separator + 1), info);
+        return wrap(Connection.class, connection, shard);
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static <T> T wrap(final Class<T> type, final Object target, final String shard) {
+        return type.cast(Proxy.newProxyInstance(FaultInjectingDriver.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    final Class<?> returnType = method.getReturnType();
+                    if (Statement.class.isAssignableFrom(returnType) && returnType.isInterface()) {
+                        return wrap(returnType, invoke(target, method, args), shard);
+                    }
+                    if (target instanceof Statement && method.getName().startsWith("execute")) {
+                        return execute(target, method, args, shard);
+                    }
+                    return invoke(target, method, args);
+                }));
+    }
+
+    private static Object execute(final Object statement, final Method method, final Object[] args, final String shard) throws Throwable {
+        final long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            FAULTS.getOrDefault(shard, ShardFaults.NONE).apply(shard);
+            final Object result = invoke(statement, method, args);
+            succeeded = true;
+            return result;
+        } finally {
+            STATEMENTS.computeIfAbsent(shard, name -> new LatencyRecorder()).record(System.nanoTime() - startedAt, succeeded);
+        }
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(format("Cannot call %s on %s.", method.getName(), target), e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.akiselev.paymentservice.load;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+final class LatencyRecorder {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private long[] samples = new long[INITIAL_CAPACITY];
+    private int count;
+    private int errors;
+
+    synchronized void record(final long nanos, final boolean succeeded) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        if (!succeeded) {
+            errors++;
+        }
+    }
+
+    synchronized void reset() {
+        samples = new long[INITIAL_CAPACITY];
+        count = 0;
+        errors = 0;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    synchronized int errors() {
+        return errors;
+    }
+
+    double percentileMillis(final double quantile) {
+        Preconditions.checkArgument(quantile > 0 && quantile <= 1, "Quantile must be in (0, 1], but got %s.", quantile);
+        final long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)] / 1_000_000.0;
+    }
+}
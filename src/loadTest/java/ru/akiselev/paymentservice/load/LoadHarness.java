@@ -0,0 +1,252 @@
+package ru.akiselev.paymentservice.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.akiselev.paymentservice.PaymentServiceApplication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+public final class LoadHarness {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final int SEED_BATCH_SIZE = 500;
+    private static final int MAX_AMOUNT = 1_000;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final LoadSettings settings;
+    private final String baseUrl;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final Map<Endpoint, LatencyRecorder> endpoints = new EnumMap<>(Endpoint.class);
+    private final ZipfSampler senders;
+    private final AtomicLong nextCustomerNumber;
+    private final long[] customerIds;
+    private final Endpoint[] weightedEndpoints;
+
+    private LoadHarness(final LoadSettings settings, final int port) {
+        this.settings = settings;
+        this.baseUrl = format("http://localhost:%s", port);
+        this.senders = new ZipfSampler(settings.getCustomers(), settings.getZipfExponent());
+        this.nextCustomerNumber = new AtomicLong(settings.getCustomers() + 1L);
+        this.customerIds = new long[settings.getCustomers()];
+        this.weightedEndpoints = settings.getMix().entrySet().stream()
+                .flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+                .toArray(Endpoint[]::new);
+        for (final Endpoint endpoint : Endpoint.values()) {
+            endpoints.put(endpoint, new LatencyRecorder());
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadSettings settings = LoadSettings.fromSystemProperties();
+        final PrintStream report = System.out;
+        if (settings.isQuiet()) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        try (final ConfigurableApplicationContext context = boot(settings)) {
+            final int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            new LoadHarness(settings, port).run(report);
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static ConfigurableApplicationContext boot(final LoadSettings settings) throws SQLException {
+        final List<String> args = newArrayList("--server.port=0", "--management.server.port=0", "--sharding.id.node-id=0");
+        for (int shardId = 1; shardId <= settings.getShards(); shardId++) {
+            final String shard = "shard-" + shardId;
+            final String targetUrl = format("jdbc:h2:mem:load%s;DB_CLOSE_DELAY=-1", shardId);
+            createSchema(targetUrl);
+            FaultInjectingDriver.inject(shard, settings.faultsFor(shardId));
+            final String prefix = format("--sharding.shards[%s].", shardId - 1);
+            args.add(prefix + "id=" + shardId);
+            args.add(prefix + "jdbc-url=" + FaultInjectingDriver.url(shard, targetUrl));
+            args.add(prefix + "driver-class-name=" + FaultInjectingDriver.class.getName());
+            args.add(prefix + "username=sa");
+            args.add(prefix + "password=");
+        }
+        final SpringApplication application = new SpringApplication(PaymentServiceApplication.class);
+        application.setBannerMode(Banner.Mode.OFF);
+        return application.run(args.toArray(String[]::new));
+    }
+
+    private static void createSchema(final String url) throws SQLException {
+        try (final Connection connection = DriverManager.getConnection(url, "sa", "");
+             final Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists customer(id bigint primary key, name varchar(100))");
+            statement.execute("create table if not exists payment(id bigint primary key, amount int, sender_id bigint, receiver_id bigint)");
+        }
+    }
+
+    private void run(final PrintStream report) throws InterruptedException {
+        report.println(format("Seeding %s customers on %s shards...", settings.getCustomers(), settings.getShards()));
+        seedCustomers();
+        if (settings.getWarmupSeconds() > 0) {
+            report.println(format("Warming up for %s s...", settings.getWarmupSeconds()));
+            drive(settings.getWarmupSeconds());
+        }
+        endpoints.values().forEach(LatencyRecorder::reset);
+        FaultInjectingDriver.statements().values().forEach(LatencyRecorder::reset);
+        report.println(format("Measuring %s s with %s threads, mix %s...", settings.getDurationSeconds(), settings.getThreads(), settings.getMix()));
+        final long startedAt = System.nanoTime();
+        drive(settings.getDurationSeconds());
+        final double seconds = (System.nanoTime() - startedAt) / 1_000_000_000.0;
+
+        report.println();
+        printHeader(report, "Endpoint");
+        endpoints.forEach((endpoint, recorder) -> printRow(report, endpoint.getLabel(), recorder, seconds));
+        report.println();
+        printHeader(report, "Shard statements");
+        FaultInjectingDriver.statements().forEach((shard, recorder) -> printRow(report, shard, recorder, seconds));
+    }
+
+    private void seedCustomers() {
+        for (long from = 1; from <= settings.getCustomers(); from += SEED_BATCH_SIZE) {
+            final long to = Math.min(settings.getCustomers(), from + SEED_BATCH_SIZE - 1);
+            final HttpResponse<String> response = send(post("/customers/all", customersJson(from, to)));
+            if (response.statusCode() / 100 != 2) {
+                throw new IllegalStateException(format("Cannot seed customers %s..%s: %s %s.", from, to, response.statusCode(), response.body()));
+            }
+            int index = (int) from - 1;
+            for (final JsonNode customer : readTree(response.body())) {
+                customerIds[index++] = customer.get("id").asLong();
+            }
+        }
+    }
+
+    private static JsonNode readTree(final String json) {
+        try {
+            return MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot parse response %s.", json), e);
+        }
+    }
+
+    private void drive(final long seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final ExecutorService workers = Executors.newFixedThreadPool(settings.getThreads());
+        for (int i = 0; i < settings.getThreads(); i++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    final Endpoint endpoint = weightedEndpoints[ThreadLocalRandom.current().nextInt(weightedEndpoints.length)];
+                    final HttpRequest request = requestFor(endpoint);
+                    final long startedAt = System.nanoTime();
+                    boolean succeeded;
+                    try {
+                        succeeded = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() / 100 == 2;
+                    } catch (IOException e) {
+                        succeeded = false;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    endpoints.get(endpoint).record(System.nanoTime() - startedAt, succeeded);
+                }
+            });
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(seconds + 60, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+    }
+
+    private HttpRequest requestFor(final Endpoint endpoint) {
+        switch (endpoint) {
+            case CREATE_CUSTOMERS:
+                final long from = nextCustomerNumber.getAndAdd(settings.getBatchSize());
+                return post("/customers/all", customersJson(from, from + settings.getBatchSize() - 1));
+            case SAVE_PAYMENTS:
+                return post("/payments", paymentsJson());
+            case GET_CUSTOMER:
+                return get("/customers/" + sender());
+            case PAYMENT_AMOUNT:
+                return get("/payments/amount?senderId=" + sender());
+            default:
+                throw new IllegalArgumentException(format("Unsupported endpoint %s.", endpoint));
+        }
+    }
+
+    private long sender() {
+        return customerIds[senders.next(ThreadLocalRandom.current())];
+    }
+
+    private long receiver() {
+        return customerIds[ThreadLocalRandom.current().nextInt(customerIds.length)];
+    }
+
+    private String customersJson(final long from, final long to) {
+        return LongStream.rangeClosed(from, to)
+                .mapToObj(number -> format("{\"name\":\"customer%s\"}", number))
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private String paymentsJson() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return LongStream.range(0, settings.getBatchSize())
+                .mapToObj(i -> format("{\"amount\":%s,\"senderId\":%s,\"receiverId\":%s}",
+                        random.nextInt(1, MAX_AMOUNT), sender(), receiver()))
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private HttpRequest post(final String path, final String json) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    private HttpRequest get(final String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build();
+    }
+
+    private HttpResponse<String> send(final HttpRequest request) {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new RuntimeException(format("Request %s failed.", request.uri()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while sending %s.", request.uri()), e);
+        }
+    }
+
+    private static void printHeader(final PrintStream report, final String title) {
+        report.println(format("%-24s %10s %8s %10s %10s %10s %10s", title, "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+    }
+
+    private static void printRow(final PrintStream report, final String name, final LatencyRecorder recorder, final double seconds) {
+        report.println(format("%-24s %10d %8d %10.1f %10.2f %10.2f %10.2f", name, recorder.count(), recorder.errors(),
+                recorder.count() / seconds, recorder.percentileMillis(QUANTILES[0]),
+                recorder.percentileMillis(QUANTILES[1]), recorder.percentileMillis(QUANTILES[2])));
+    }
+}
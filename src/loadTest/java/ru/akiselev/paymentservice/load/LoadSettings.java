@@ -0,0 +1,64 @@
+package ru.akiselev.paymentservice.load;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import lombok.Getter;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+@Getter
+final class LoadSettings {
+
+    private static final String PREFIX = "load.";
+    private static final String DEFAULT_MIX = "create-customers:1,save-payments:4,get-customer:10,payment-amount:5";
+
+    private final int shards;
+    private final int threads;
+    private final long warmupSeconds;
+    private final long durationSeconds;
+    private final int customers;
+    private final int batchSize;
+    private final double zipfExponent;
+    private final boolean quiet;
+    private final Map<Endpoint, Integer> mix;
+    private final Properties properties;
+
+    private LoadSettings(final Properties properties) {
+        this.properties = properties;
+        this.shards = Integer.parseInt(get("shards", "3"));
+        this.threads = Integer.parseInt(get("threads", "16"));
+        this.warmupSeconds = Long.parseLong(get("warmup-seconds", "10"));
+        this.durationSeconds = Long.parseLong(get("duration-seconds", "60"));
+        this.customers = Integer.parseInt(get("customers", "10000"));
+        this.batchSize = Integer.parseInt(get("batch-size", "10"));
+        this.zipfExponent = Double.parseDouble(get("zipf-exponent", "1.1"));
+        this.quiet = Boolean.parseBoolean(get("quiet", "true"));
+        this.mix = new EnumMap<>(Endpoint.class);
+        Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator(':').split(get("mix", DEFAULT_MIX))
+                .forEach((endpoint, weight) -> mix.put(Endpoint.byKey(endpoint), Integer.parseInt(weight)));
+        Preconditions.checkArgument(shards >= 3, "Load harness needs at least 3 shards, but got %s.", shards);
+        Preconditions.checkArgument(threads > 0, "Thread count must be positive, but got %s.", threads);
+        Preconditions.checkArgument(durationSeconds > 0, "Duration must be positive, but got %s.", durationSeconds);
+        Preconditions.checkArgument(customers > 0, "Customer count must be positive, but got %s.", customers);
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive, but got %s.", batchSize);
+        Preconditions.checkArgument(mix.values().stream().allMatch(weight -> weight >= 0)
+                        && mix.values().stream().mapToInt(Integer::intValue).sum() > 0,
+                "Request mix needs non-negative weights and at least one positive weight, but got %s.", mix);
+    }
+
+    static LoadSettings fromSystemProperties() {
+        return new LoadSettings(System.getProperties());
+    }
+
+    ShardFaults faultsFor(final int shardId) {
+        return new ShardFaults(
+                Long.parseLong(get("shard." + shardId + ".latency-millis", "0")),
+                Double.parseDouble(get("shard." + shardId + ".error-rate", "0")));
+    }
+
+    private String get(final String key, final String defaultValue) {
+        return properties.getProperty(PREFIX + key, defaultValue);
+    }
+}
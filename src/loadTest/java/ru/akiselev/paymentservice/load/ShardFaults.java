@@ -0,0 +1,40 @@
+package ru.akiselev.paymentservice.load;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.String.format;
+
+@Getter
+final class ShardFaults {
+
+    static final ShardFaults NONE = new ShardFaults(0L, 0.0);
+
+    private final long latencyMillis;
+    private final double errorRate;
+
+    ShardFaults(final long latencyMillis, final double errorRate) {
+        Preconditions.checkArgument(latencyMillis >= 0, "Injected latency must not be negative, but got %s.", latencyMillis);
+        Preconditions.checkArgument(errorRate >= 0 && errorRate <= 1, "Injected error rate must be in [0, 1], but got %s.", errorRate);
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+    }
+
+    void apply(final String shard) throws SQLException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(format("Interrupted while delaying a statement on %s.", shard), e);
+            }
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            throw new SQLTransientConnectionException(format("Injected failure on %s.", shard), "08006");
+        }
+    }
+}
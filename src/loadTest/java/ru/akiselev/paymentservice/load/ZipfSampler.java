@@ -0,0 +1,30 @@
+package ru.akiselev.paymentservice.load;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Random;
+
+final class ZipfSampler {
+
+    private final double[] cumulative;
+
+    ZipfSampler(final int size, final double exponent) {
+        Preconditions.checkArgument(size > 0, "Zipf population must be positive, but got %s.", size);
+        Preconditions.checkArgument(exponent >= 0, "Zipf exponent must not be negative, but got %s.", exponent);
+        this.cumulative = new double[size];
+        double total = 0;
+        for (int rank = 0; rank < size; rank++) {
+            total += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < size; rank++) {
+            cumulative[rank] /= total;
+        }
+    }
+
+    int next(final Random random) {
+        final int found = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(found >= 0 ? found : -found - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,149 @@
+package ru.akiselev.paymentservice.config;
+
+import com.google.common.base.Verify;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.akiselev.paymentservice.persistence.shard.Shard;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+@Getter
+public final class ShardPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardPool.class);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long DRAIN_POLL_MILLIS = 100L;
+
+    private volatile ShardingProperties.ShardingDataSourceProperties properties;
+    private final HikariDataSource primary;
+    private final List<HikariDataSource> replicas;
+    private final Shard shard;
+
+    ShardPool(final ShardingProperties.ShardingDataSourceProperties properties, final HikariDataSource primary,
+              final List<HikariDataSource> replicas, final Shard shard) {
+        this.properties = properties;
+        this.primary = primary;
+        this.replicas = replicas;
+        this.shard = shard;
+    }
+
+    public int getId() {
+        return properties.getId();
+    }
+
+    boolean connectsLike(final ShardingProperties.ShardingDataSourceProperties other) {
+        return sameConnection(properties, other)
+                && properties.getReplicas().size() == other.getReplicas().size()
+                && allMatch(properties.getReplicas(), other.getReplicas());
+    }
+
+    boolean storesLike(final ShardingProperties.ShardingDataSourceProperties other) {
+        return sameConnection(properties, other);
+    }
+
+    void warmUp() {
+        warmUp(primary);
+        replicas.forEach(ShardPool::warmUp);
+    }
+
+    void resize(final ShardingProperties.ShardingDataSourceProperties resized) {
+        resize(primary, resized);
+        for (int i = 0; i < replicas.size(); i++) {
+            resize(replicas.get(i), resized.getReplicas().get(i));
+        }
+        this.properties = resized;
+    }
+
+    void drain(final long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (activeConnections() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (shard instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) shard).close();
+            } catch (Exception e) {
+                LOG.warn("Cannot close shard {}.", getId(), e);
+            }
+        }
+        replicas.forEach(HikariDataSource::close);
+        primary.close();
+    }
+
+    private int activeConnections() {
+        int active = activeConnections(primary);
+        for (final HikariDataSource replica : replicas) {
+            active += activeConnections(replica);
+        }
+        return active;
+    }
+
+    private static int activeConnections(final HikariDataSource dataSource) {
+        final HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getActiveConnections();
+    }
+
+    private static void warmUp(final HikariDataSource dataSource) {
+        final List<Connection> connections = newArrayList();
+        try {
+            for (int i = 0; i < Math.max(1, dataSource.getMinimumIdle()); i++) {
+                final Connection connection = dataSource.getConnection();
+                connections.add(connection);
+                Verify.verify(connection.isValid(VALIDATION_TIMEOUT_SECONDS), "Connection of pool %s is not valid.", dataSource.getPoolName());
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(format("Cannot warm up pool %s.", dataSource.getPoolName()), e);
+        } finally {
+            for (final Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOG.warn("Cannot return a warm-up connection to pool {}.", dataSource.getPoolName(), e);
+                }
+            }
+        }
+    }
+
+    private static void resize(final HikariDataSource dataSource, final ShardingProperties.ShardingDataSourceProperties resized) {
+        dataSource.getHikariConfigMXBean().setMaximumPoolSize(resized.getMaximumPoolSize());
+        dataSource.getHikariConfigMXBean().setMinimumIdle(resized.getMinimumIdle());
+    }
+
+    private static boolean allMatch(final List<ShardingProperties.ShardingDataSourceProperties> replicas,
+                                    final List<ShardingProperties.ShardingDataSourceProperties> others) {
+        for (int i = 0; i < replicas.size(); i++) {
+            if (!sameConnection(replicas.get(i), others.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameConnection(final ShardingProperties.ShardingDataSourceProperties left,
+                                          final ShardingProperties.ShardingDataSourceProperties right) {
+        return Objects.equals(left.getJdbcUrl(), right.getJdbcUrl())
+                && Objects.equals(left.getUsername(), right.getUsername())
+                && Objects.equals(left.getPassword(), right.getPassword())
+                && Objects.equals(left.getDriverClassName(), right.getDriverClassName());
+    }
+}
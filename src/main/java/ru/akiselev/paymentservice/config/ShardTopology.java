@@ -0,0 +1,151 @@
+package ru.akiselev.paymentservice.config;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.akiselev.paymentservice.persistence.shard.Rebalancer;
+import ru.akiselev.paymentservice.persistence.shard.ShardManager;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+public class ShardTopology implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardTopology.class);
+
+    private final Function<ShardingProperties.ShardingDataSourceProperties, ShardPool> poolFactory;
+    private final Function<Collection<ShardPool>, ShardManager> routerFactory;
+    private final boolean weightedRouting;
+    private final long drainTimeoutMillis;
+    private final ConcurrentSkipListMap<Integer, ShardPool> pools = new ConcurrentSkipListMap<>();
+
+    public ShardTopology(final List<ShardingProperties.ShardingDataSourceProperties> shards,
+                         final Function<ShardingProperties.ShardingDataSourceProperties, ShardPool> poolFactory,
+                         final Function<Collection<ShardPool>, ShardManager> routerFactory,
+                         final boolean weightedRouting, final long drainTimeoutMillis) {
+        Preconditions.checkNotNull(poolFactory);
+        Preconditions.checkNotNull(routerFactory);
+        Preconditions.checkArgument(drainTimeoutMillis >= 0, "Drain timeout must not be negative, but got %s.", drainTimeoutMillis);
+        checkShards(shards);
+        this.poolFactory = poolFactory;
+        this.routerFactory = routerFactory;
+        this.weightedRouting = weightedRouting;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        pools.putAll(open(shards, Map.of()));
+    }
+
+    public ShardManager router() {
+        return routerFactory.apply(pools.values());
+    }
+
+    public Collection<ShardPool> pools() {
+        return pools.values();
+    }
+
+    public SortedMap<Integer, DataSource> dataSources() {
+        return Maps.transformValues(pools, ShardPool::getPrimary);
+    }
+
+    public synchronized void apply(final List<ShardingProperties.ShardingDataSourceProperties> shards,
+                                   final Rebalancer rebalancer, final List<Class<?>> entityClasses) {
+        checkShards(shards);
+        final Map<Integer, ShardPool> next = open(shards, pools);
+        final List<ShardPool> retired = newArrayList();
+        for (final ShardPool pool : pools.values()) {
+            if (next.get(pool.getId()) != pool) {
+                retired.add(pool);
+            }
+        }
+        final List<ShardPool> opened = newArrayList();
+        final Set<Integer> relocated = new HashSet<>();
+        for (final ShardPool pool : next.values()) {
+            final ShardPool current = pools.get(pool.getId());
+            if (current != pool) {
+                opened.add(pool);
+            }
+            if (current != null && current != pool && !current.storesLike(pool.getProperties())) {
+                relocated.add(pool.getId());
+            }
+        }
+
+        try {
+            if (!routing(pools.values()).equals(routing(next.values()))) {
+                LOG.info("Shard routing changed, rebalancing onto shards {} with relocated shards {}.", next.keySet(), relocated);
+                rebalancer.rebalance(routerFactory.apply(next.values()), relocated, entityClasses);
+            } else if (!relocated.isEmpty()) {
+                LOG.info("Shards {} moved to another database, copying their rows.", relocated);
+                rebalancer.relocate(routerFactory.apply(next.values()), relocated, entityClasses);
+            } else if (!opened.isEmpty()) {
+                rebalancer.replaceShards(routerFactory.apply(next.values()));
+            }
+        } catch (RuntimeException e) {
+            opened.forEach(ShardPool::close);
+            throw e;
+        }
+        pools.keySet().retainAll(next.keySet());
+        pools.putAll(next);
+        retired.forEach(pool -> pool.drain(drainTimeoutMillis));
+    }
+
+    @Override
+    public synchronized void close() {
+        pools.values().forEach(ShardPool::close);
+        pools.clear();
+    }
+
+    private Map<Integer, ShardPool> open(final List<ShardingProperties.ShardingDataSourceProperties> shards,
+                                         final Map<Integer, ShardPool> current) {
+        final Map<Integer, ShardPool> next = new TreeMap<>();
+        try {
+            for (final ShardingProperties.ShardingDataSourceProperties shard : shards) {
+                final ShardPool existing = current.get(shard.getId());
+                if (existing != null && existing.connectsLike(shard)) {
+                    existing.resize(shard);
+                    next.put(shard.getId(), existing);
+                    continue;
+                }
+                final ShardPool pool = poolFactory.apply(shard);
+                next.put(shard.getId(), pool);
+                pool.warmUp();
+            }
+        } catch (RuntimeException e) {
+            next.values().stream()
+                    .filter(pool -> current.get(pool.getId()) != pool)
+                    .forEach(ShardPool::close);
+            throw e;
+        }
+        return next;
+    }
+
+    /**
+     * Weights only move rows when the router places shards by weight, so reweighting a modulo or shard-encoded
+     * topology keeps its rows in place.
+     */
+    private Map<Integer, Integer> routing(final Collection<ShardPool> pools) {
+        return pools.stream().collect(Collectors.toMap(ShardPool::getId,
+                pool -> weightedRouting ? pool.getProperties().getWeight() : 1));
+    }
+
+    private static void checkShards(final List<ShardingProperties.ShardingDataSourceProperties> shards) {
+        Preconditions.checkNotNull(shards);
+        Preconditions.checkArgument(!shards.isEmpty(), "At least one shard must be declared.");
+        final Set<Integer> ids = new HashSet<>();
+        for (final ShardingProperties.ShardingDataSourceProperties shard : shards) {
+            Preconditions.checkArgument(shard.getId() > 0, "Shard id must be positive, but got %s.", shard.getId());
+            Preconditions.checkArgument(ids.add(shard.getId()), "Shard %s is declared twice.", shard.getId());
+            Preconditions.checkArgument(shard.getWeight() > 0, "Weight of shard %s must be positive.", shard.getId());
+        }
+    }
+}
@@ -1,84 +1,322 @@
 package ru.akiselev.paymentservice.config;
 
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.bind.PropertySourcesPlaceholdersResolver;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+import org.springframework.util.ClassUtils;
+import ru.akiselev.paymentservice.PaymentServiceApplication;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.entity.Payment;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+import ru.akiselev.paymentservice.persistence.dao.EntityValidator;
+import ru.akiselev.paymentservice.persistence.generator.BlockLeasingIdGenerator;
+import ru.akiselev.paymentservice.persistence.generator.IdGenerator;
+import ru.akiselev.paymentservice.persistence.generator.SnowflakeIdGenerator;
+import ru.akiselev.paymentservice.persistence.shard.AdvisoryClusterLock;
+import ru.akiselev.paymentservice.persistence.shard.BloomFilterShard;
+import ru.akiselev.paymentservice.persistence.shard.CircuitBreaker;
+import ru.akiselev.paymentservice.persistence.shard.ClusterLock;
+import ru.akiselev.paymentservice.persistence.shard.ConsistentHashShardManager;
+import ru.akiselev.paymentservice.persistence.shard.FanOutExecutor;
+import ru.akiselev.paymentservice.persistence.shard.GroupCommitWriter;
 import ru.akiselev.paymentservice.persistence.shard.HashShardManager;
+import ru.akiselev.paymentservice.persistence.shard.HealthCheckedShard;
+import ru.akiselev.paymentservice.persistence.shard.MeteredShard;
+import ru.akiselev.paymentservice.persistence.shard.QueryLog;
+import ru.akiselev.paymentservice.persistence.shard.Rebalancer;
+import ru.akiselev.paymentservice.persistence.shard.ReplicatedShard;
+import ru.akiselev.paymentservice.persistence.shard.ReplicationLag;
+import ru.akiselev.paymentservice.persistence.shard.ReshardingShardManager;
 import ru.akiselev.paymentservice.persistence.shard.Shard;
+import ru.akiselev.paymentservice.persistence.shard.ShardEncodedShardManager;
 import ru.akiselev.paymentservice.persistence.shard.ShardServer;
 import ru.akiselev.paymentservice.persistence.shard.ShardManager;
 
+import javax.persistence.Entity;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
 
 @Configuration
 @RequiredArgsConstructor
 public class ShardingConfiguration {
 
+    private static final String POSTGRES_DRIVER = "org.postgresql.Driver";
+    private static final long CLUSTER_LOCK_KEY = 0x7368617264L;
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
     private final ShardingProperties properties;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final List<Class<?>> entityClasses = scanEntityClasses();
 
     @Bean
-    @Qualifier("hikariConfig1")
-    public HikariConfig hikariConfig1() {
-        ShardingProperties.ShardingDataSourceProperties dataSourceProperties = properties.getDatasource1();
-        final HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(dataSourceProperties.getJdbcUrl());
-        config.setUsername(dataSourceProperties.getUsername());
-        config.setPassword(dataSourceProperties.getPassword());
-        config.setDriverClassName(dataSourceProperties.getDriverClassName());
-        return config;
+    public ShardTopology shardTopology() {
+        EntityMetadata.register(entityClasses);
+        EntityValidator.register(entityClasses);
+        final ShardingProperties.TopologyProperties topology = properties.getTopology();
+        final List<ShardingProperties.ShardingDataSourceProperties> shards = topology.getFile() == null
+                ? properties.getShards()
+                : loadShards(Path.of(topology.getFile()));
+        return new ShardTopology(shards, this::openPool, this::router,
+                properties.getRouting().getStrategy() == ShardingProperties.RoutingStrategy.CONSISTENT_HASH,
+                topology.getDrainTimeoutMillis());
     }
 
     @Bean
-    @Qualifier("hikariConfig2")
-    public HikariConfig hikariConfig2() {
-        ShardingProperties.ShardingDataSourceProperties dataSourceProperties = properties.getDatasource2();
-        final HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(dataSourceProperties.getJdbcUrl());
-        config.setUsername(dataSourceProperties.getUsername());
-        config.setPassword(dataSourceProperties.getPassword());
-        config.setDriverClassName(dataSourceProperties.getDriverClassName());
-        return config;
+    @ConditionalOnProperty(prefix = "sharding.topology", name = "file")
+    public TopologyWatcher topologyWatcher() {
+        final ShardingProperties.TopologyProperties topology = properties.getTopology();
+        return new TopologyWatcher(Path.of(topology.getFile()), this::loadShards, shardTopology(), rebalancer(),
+                entityClasses, topology.getPollIntervalMillis());
     }
 
     @Bean
-    @Qualifier("hikariConfig3")
-    public HikariConfig hikariConfig3() {
-        ShardingProperties.ShardingDataSourceProperties dataSourceProperties = properties.getDatasource3();
-        final HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(dataSourceProperties.getJdbcUrl());
-        config.setUsername(dataSourceProperties.getUsername());
-        config.setPassword(dataSourceProperties.getPassword());
-        config.setDriverClassName(dataSourceProperties.getDriverClassName());
-        return config;
+    public FanOutExecutor fanOutExecutor() {
+        final ShardingProperties.FanOutProperties fanOutProperties = properties.getFanOut();
+        return new FanOutExecutor(fanOutProperties.getPoolSize(), fanOutProperties.getTimeoutMillis(), meterRegistry);
+    }
+
+    @Bean
+    public QueryLog queryLog() {
+        final ShardingProperties.QueryLogProperties queryLog = properties.getQueryLog();
+        return new QueryLog(queryLog.getSampleRate(), queryLog.getSlowQueryMillis(), queryLog.getMaxFingerprints());
+    }
+
+    @Bean
+    public ScheduledExecutorService replicationLagProbe() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("replication-lag-probe-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    @Bean
+    public ScheduledExecutorService shardHealthProbe() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("shard-health-probe-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    @Bean
+    public ExecutorService hedgeExecutor() {
+        return Executors.newFixedThreadPool(properties.getReplication().getHedgePoolSize(), new ThreadFactoryBuilder()
+                .setNameFormat("hedged-read-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    @Bean
+    public ExecutorService existenceFilterWarmUp() {
+        return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("existence-filter-warm-up-%d")
+                .setDaemon(true)
+                .build());
     }
 
     @Bean
-    @Qualifier("hikariDataSource1")
-    public HikariDataSource hikariDataSource1() {
-        return new HikariDataSource(hikariConfig1());
+    public ReshardingShardManager shardManager() {
+        return new ReshardingShardManager(shardTopology().router(), fanOutExecutor());
     }
 
     @Bean
-    @Qualifier("hikariDataSource2")
-    public HikariDataSource hikariDataSource2() {
-        return new HikariDataSource(hikariConfig2());
+    public Rebalancer rebalancer() {
+        final ShardingProperties.RebalanceProperties rebalance = properties.getRebalance();
+        return new Rebalancer(shardManager(), rebalance.getChunkSize(), rebalance.getRowsPerSecond(), clusterLock());
     }
 
     @Bean
-    @Qualifier("hikariDataSource3")
-    public HikariDataSource hikariDataSource3() {
-        return new HikariDataSource(hikariConfig3());
+    public ClusterLock clusterLock() {
+        final ShardTopology topology = shardTopology();
+        if (!POSTGRES_DRIVER.equals(topology.pools().iterator().next().getProperties().getDriverClassName())) {
+            return ClusterLock.SINGLE_PROCESS;
+        }
+        return new AdvisoryClusterLock(() -> topology.dataSources().values().iterator().next(), CLUSTER_LOCK_KEY,
+                shardHealthProbe(), properties.getHealth().getProbeIntervalMillis());
     }
 
+    /**
+     * Existence filters only know ids inserted through this instance, so it keeps other instances from starting.
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "sharding.existence-filter", name = "enabled", havingValue = "true")
+    public ClusterLock.Lease existenceFilterLease() {
+        return clusterLock().acquireExclusive();
+    }
 
     @Bean
-    public ShardManager shardManager() {
-        final Shard shard1 = new ShardServer(1, hikariDataSource1());
-        final Shard shard2 = new ShardServer(2, hikariDataSource2());
-        final Shard shard3 = new ShardServer(3, hikariDataSource3());
-        return new HashShardManager(List.of(shard1, shard2, shard3));
+    @ConditionalOnProperty(prefix = "sharding.ingest", name = "enabled", havingValue = "true")
+    public GroupCommitWriter<Payment> paymentWriter() {
+        final ShardingProperties.IngestProperties ingest = properties.getIngest();
+        return new GroupCommitWriter<>(shardManager(), Payment.class, ingest.getQueueCapacity(),
+                ingest.getBatchSize(), ingest.getLingerMillis(), ingest.getEnqueueTimeoutMillis());
+    }
+
+    @Bean
+    public IdGenerator idGenerator() {
+        final ShardingProperties.IdProperties id = properties.getId();
+        if (id.getStrategy() == ShardingProperties.IdStrategy.BLOCK) {
+            return new BlockLeasingIdGenerator(shardTopology().dataSources(), id.getSequenceName(), id.getBlockSize(), id.getShardBits());
+        }
+        Preconditions.checkState(id.getNodeId() != null,
+                "sharding.id.node-id (NODE_ID) must be set to a unique value per instance for snowflake ids.");
+        Preconditions.checkState(id.getNodeId() >= 0 && id.getNodeId() < 1L << id.getNodeBits(),
+                "sharding.id.node-id %s is out of range [0, %s).", id.getNodeId(), 1L << id.getNodeBits());
+        return new SnowflakeIdGenerator(id.getEpochMillis(), id.getNodeId(), id.getNodeBits(),
+                id.getShardBits(), id.getSequenceBits());
+    }
+
+    private ShardManager router(final Collection<ShardPool> pools) {
+        final List<Shard> shards = pools.stream().map(ShardPool::getShard).collect(Collectors.toList());
+        final ShardingProperties.RoutingProperties routing = properties.getRouting();
+        if (routing.getStrategy() == ShardingProperties.RoutingStrategy.CONSISTENT_HASH) {
+            final Map<Integer, Integer> weights = pools.stream()
+                    .collect(Collectors.toMap(ShardPool::getId, pool -> pool.getProperties().getWeight()));
+            return new ConsistentHashShardManager(shards, fanOutExecutor(), routing.getVirtualNodes(), weights);
+        }
+        if (routing.getStrategy() == ShardingProperties.RoutingStrategy.SHARD_ENCODED) {
+            return new ShardEncodedShardManager(shards, fanOutExecutor(), properties.getId().getShardBits(), routing.getOverrides());
+        }
+        final List<Integer> ids = pools.stream().map(ShardPool::getId).sorted().collect(Collectors.toList());
+        Preconditions.checkArgument(ids.equals(IntStream.rangeClosed(1, ids.size()).boxed().collect(Collectors.toList())),
+                "Modulo routing needs shard ids 1..%s, but got %s.", ids.size(), ids);
+        return new HashShardManager(shards, fanOutExecutor());
+    }
+
+    private ShardPool openPool(final ShardingProperties.ShardingDataSourceProperties shardProperties) {
+        final int id = shardProperties.getId();
+        final HikariDataSource primary = new HikariDataSource(hikariConfigFor(shardProperties, format("shard-%s", id)));
+        final List<HikariDataSource> replicas = newArrayList();
+        try {
+            for (final ShardingProperties.ShardingDataSourceProperties replica : shardProperties.getReplicas()) {
+                replicas.add(new HikariDataSource(hikariConfigFor(replica, format("shard-%s-replica-%s", id, replicas.size()))));
+            }
+            return new ShardPool(shardProperties, primary, replicas, shard(id, primary, replicas));
+        } catch (RuntimeException e) {
+            replicas.forEach(HikariDataSource::close);
+            primary.close();
+            throw e;
+        }
+    }
+
+    private Shard shard(final int id, final DataSource primary, final List<? extends DataSource> replicas) {
+        final Shard shard = replicated(healthChecked(metered(new ShardServer(id, primary, properties.getFetchSize(), queryLog()), PRIMARY), primary), replicas);
+        final ShardingProperties.ExistenceFilterProperties existenceFilter = properties.getExistenceFilter();
+        if (!existenceFilter.isEnabled()) {
+            return shard;
+        }
+        return new BloomFilterShard(shard, Customer.class, existenceFilter.getExpectedInsertions(),
+                existenceFilter.getFalsePositiveProbability(), existenceFilterWarmUp());
+    }
+
+    private Shard replicated(final Shard primary, final List<? extends DataSource> replicaDataSources) {
+        if (replicaDataSources.isEmpty()) {
+            return primary;
+        }
+        final List<Shard> replicas = replicaDataSources.stream()
+                .map(replica -> healthChecked(metered(new ShardServer(primary.getId(), replica, properties.getFetchSize(), queryLog()), REPLICA), replica))
+                .collect(Collectors.toList());
+        final ShardingProperties.ReplicationProperties replication = properties.getReplication();
+        return new ReplicatedShard(primary, replicas, ReplicationLag.POSTGRES, replication.getMaxLagMillis(),
+                replicationLagProbe(), replication.getProbeIntervalMillis(),
+                replication.isHedgeEnabled() ? hedgeExecutor() : null, replication.getMinHedgeDelayMillis());
+    }
+
+    private Shard metered(final Shard shard, final String role) {
+        return properties.getMetrics().isEnabled() ? new MeteredShard(shard, meterRegistry, role) : shard;
+    }
+
+    private Shard healthChecked(final Shard shard, final DataSource dataSource) {
+        final ShardingProperties.HealthProperties health = properties.getHealth();
+        if (!health.isEnabled()) {
+            return shard;
+        }
+        final CircuitBreaker breaker = new CircuitBreaker(health.getWindowSize(), health.getFailureRateThreshold(),
+                health.getSlowCallMillis(), health.getSlowCallRateThreshold(), health.getOpenMillis(),
+                health.getProbeFailureThreshold(), health.getHalfOpenCalls());
+        return new HealthCheckedShard(shard, breaker, () -> isValid(dataSource, health.getProbeTimeoutSeconds()),
+                shardHealthProbe(), health.getProbeIntervalMillis());
+    }
+
+    private static boolean isValid(final DataSource dataSource, final int timeoutSeconds) {
+        try (final Connection connection = dataSource.getConnection()) {
+            return connection.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private List<ShardingProperties.ShardingDataSourceProperties> loadShards(final Path file) {
+        final Properties loaded = new Properties();
+        try (final Reader reader = Files.newBufferedReader(file)) {
+            loaded.load(reader);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read shard topology from %s.", file), e);
+        }
+        final Binder binder = new Binder(List.of(new MapConfigurationPropertySource(loaded)),
+                new PropertySourcesPlaceholdersResolver(environment));
+        return binder.bind("sharding.shards", Bindable.listOf(ShardingProperties.ShardingDataSourceProperties.class))
+                .orElseThrow(() -> new RuntimeException(format("No shards are declared in %s.", file)));
+    }
+
+    private HikariConfig hikariConfigFor(final ShardingProperties.ShardingDataSourceProperties dataSourceProperties,
+                                         final String poolName) {
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        config.setJdbcUrl(dataSourceProperties.getJdbcUrl());
+        config.setUsername(dataSourceProperties.getUsername());
+        config.setPassword(dataSourceProperties.getPassword());
+        config.setDriverClassName(dataSourceProperties.getDriverClassName());
+        config.setMaximumPoolSize(dataSourceProperties.getMaximumPoolSize());
+        config.setMinimumIdle(dataSourceProperties.getMinimumIdle());
+        if (properties.getMetrics().isEnabled()) {
+            config.setMetricRegistry(meterRegistry);
+        }
+        if (POSTGRES_DRIVER.equals(dataSourceProperties.getDriverClassName())) {
+            final ShardingProperties.StatementCacheProperties statementCache = properties.getStatementCache();
+            config.addDataSourceProperty("prepareThreshold", statementCache.getPrepareThreshold());
+            config.addDataSourceProperty("preparedStatementCacheQueries", statementCache.getCacheQueries());
+            config.addDataSourceProperty("preparedStatementCacheSizeMiB", statementCache.getCacheSizeMib());
+        }
+        return config;
+    }
+
+    private static List<Class<?>> scanEntityClasses() {
+        final ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+        scanner.addIncludeFilter(new AnnotationTypeFilter(Entity.class));
+        return scanner.findCandidateComponents(PaymentServiceApplication.class.getPackageName()).stream()
+                .map(definition -> ClassUtils.resolveClassName(definition.getBeanClassName(), ShardingConfiguration.class.getClassLoader()))
+                .collect(Collectors.toList());
     }
 }
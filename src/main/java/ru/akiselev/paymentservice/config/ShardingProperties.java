@@ -4,21 +4,170 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @ConfigurationProperties(value = "sharding")
 @Getter
 @Setter
 public class ShardingProperties {
 
-    private ShardingDataSourceProperties datasource1;
-    private ShardingDataSourceProperties datasource2;
-    private ShardingDataSourceProperties datasource3;
+    private List<ShardingDataSourceProperties> shards = new ArrayList<>();
+    private TopologyProperties topology = new TopologyProperties();
+    private int fetchSize = 500;
+    private RoutingProperties routing = new RoutingProperties();
+    private FanOutProperties fanOut = new FanOutProperties();
+    private RebalanceProperties rebalance = new RebalanceProperties();
+    private ExistenceFilterProperties existenceFilter = new ExistenceFilterProperties();
+    private StatementCacheProperties statementCache = new StatementCacheProperties();
+    private IdProperties id = new IdProperties();
+    private IngestProperties ingest = new IngestProperties();
+    private ReplicationProperties replication = new ReplicationProperties();
+    private HealthProperties health = new HealthProperties();
+    private MetricsProperties metrics = new MetricsProperties();
+    private TracingProperties tracing = new TracingProperties();
+    private QueryLogProperties queryLog = new QueryLogProperties();
 
     @Getter
     @Setter
     public static class ShardingDataSourceProperties {
+        private int id;
         private String jdbcUrl;
         private String username;
         private String password;
         private String driverClassName;
+        private int weight = 1;
+        private int maximumPoolSize = 10;
+        private int minimumIdle = 10;
+        private List<ShardingDataSourceProperties> replicas = new ArrayList<>();
+    }
+
+    @Getter
+    @Setter
+    public static class TopologyProperties {
+        private String file;
+        private long pollIntervalMillis = 5_000L;
+        private long drainTimeoutMillis = 30_000L;
+    }
+
+    @Getter
+    @Setter
+    public static class RoutingProperties {
+        private RoutingStrategy strategy = RoutingStrategy.MODULO;
+        private int virtualNodes = 256;
+        private Map<Integer, Integer> overrides = new HashMap<>();
+    }
+
+    public enum RoutingStrategy {
+        MODULO,
+        CONSISTENT_HASH,
+        SHARD_ENCODED
+    }
+
+    @Getter
+    @Setter
+    public static class FanOutProperties {
+        private int poolSize = 8;
+        private long timeoutMillis = 30_000L;
+    }
+
+    @Getter
+    @Setter
+    public static class RebalanceProperties {
+        private int chunkSize = 500;
+        private double rowsPerSecond = 5_000;
+    }
+
+    @Getter
+    @Setter
+    public static class ExistenceFilterProperties {
+        private boolean enabled = false;
+        private long expectedInsertions = 1_000_000L;
+        private double falsePositiveProbability = 0.01;
+    }
+
+    @Getter
+    @Setter
+    public static class StatementCacheProperties {
+        private int prepareThreshold = 1;
+        private int cacheQueries = 256;
+        private int cacheSizeMib = 5;
+    }
+
+    @Getter
+    @Setter
+    public static class IdProperties {
+        private IdStrategy strategy = IdStrategy.SNOWFLAKE;
+        private long epochMillis = 1_609_459_200_000L;
+        private Integer nodeId;
+        private int nodeBits = 10;
+        private int shardBits = 0;
+        private int sequenceBits = 12;
+        private String sequenceName = "customer";
+        private int blockSize = 1_000;
+    }
+
+    public enum IdStrategy {
+        SNOWFLAKE,
+        BLOCK
+    }
+
+    @Getter
+    @Setter
+    public static class IngestProperties {
+        private boolean enabled = false;
+        private int queueCapacity = 1_000;
+        private int batchSize = 500;
+        private long lingerMillis = 5L;
+        private long enqueueTimeoutMillis = 1_000L;
+    }
+
+    @Getter
+    @Setter
+    public static class ReplicationProperties {
+        private long maxLagMillis = 1_000L;
+        private long probeIntervalMillis = 1_000L;
+        private boolean hedgeEnabled = false;
+        private int hedgePoolSize = 16;
+        private long minHedgeDelayMillis = 5L;
+    }
+
+    @Getter
+    @Setter
+    public static class HealthProperties {
+        private boolean enabled = true;
+        private long probeIntervalMillis = 1_000L;
+        private int probeTimeoutSeconds = 1;
+        private int windowSize = 20;
+        private double failureRateThreshold = 0.5;
+        private long slowCallMillis = 2_000L;
+        private double slowCallRateThreshold = 0.8;
+        private long openMillis = 5_000L;
+        private int probeFailureThreshold = 3;
+        private int halfOpenCalls = 3;
+    }
+
+    @Getter
+    @Setter
+    public static class MetricsProperties {
+        private boolean enabled = true;
+    }
+
+    @Getter
+    @Setter
+    public static class TracingProperties {
+        private boolean enabled = true;
+        private boolean dumpSlowRequests = false;
+        private long slowRequestMillis = 500L;
+    }
+
+    @Getter
+    @Setter
+    public static class QueryLogProperties {
+        private double sampleRate = 0.01;
+        private long slowQueryMillis = 200L;
+        private int maxFingerprints = 1_000;
     }
 }
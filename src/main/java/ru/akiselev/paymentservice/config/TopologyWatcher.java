@@ -0,0 +1,79 @@
+package ru.akiselev.paymentservice.config;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.akiselev.paymentservice.persistence.shard.Rebalancer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+public class TopologyWatcher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopologyWatcher.class);
+
+    private final Path file;
+    private final Function<Path, List<ShardingProperties.ShardingDataSourceProperties>> loader;
+    private final ShardTopology topology;
+    private final Rebalancer rebalancer;
+    private final List<Class<?>> entityClasses;
+    private final ScheduledExecutorService scheduler;
+    private long lastModified;
+
+    public TopologyWatcher(final Path file, final Function<Path, List<ShardingProperties.ShardingDataSourceProperties>> loader,
+                           final ShardTopology topology, final Rebalancer rebalancer, final List<Class<?>> entityClasses,
+                           final long pollIntervalMillis) {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkNotNull(loader);
+        Preconditions.checkNotNull(topology);
+        Preconditions.checkNotNull(rebalancer);
+        Preconditions.checkArgument(pollIntervalMillis > 0, "Poll interval must be positive, but got %s.", pollIntervalMillis);
+        this.file = file;
+        this.loader = loader;
+        this.topology = topology;
+        this.rebalancer = rebalancer;
+        this.entityClasses = entityClasses;
+        this.lastModified = lastModified(file);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("shard-topology-watcher-%d")
+                .setDaemon(true)
+                .build());
+        scheduler.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void poll() {
+        try {
+            final long modified = lastModified(file);
+            if (modified == lastModified) {
+                return;
+            }
+            lastModified = modified;
+            LOG.info("Reloading shard topology from {}.", file);
+            topology.apply(loader.apply(file), rebalancer, entityClasses);
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot reload shard topology from {}.", file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            throw new RuntimeException(format("Cannot read shard topology file %s.", file), e);
+        }
+    }
+}
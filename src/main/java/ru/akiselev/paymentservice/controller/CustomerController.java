@@ -2,20 +2,26 @@ package ru.akiselev.paymentservice.controller;
 
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import ru.akiselev.paymentservice.dto.CustomerDto;
+import ru.akiselev.paymentservice.persistence.shard.PartialResult;
 import ru.akiselev.paymentservice.service.CustomerService;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 @RestController
 @RequiredArgsConstructor
 public class CustomerController {
 
+    static final String MISSING_SHARDS_HEADER = "X-Missing-Shards";
+
     private final CustomerService customerService;
 
     @RequestMapping(value = "/customers", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -29,8 +35,18 @@ public class CustomerController {
     }
 
     @RequestMapping(value = "/customers", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public List<CustomerDto> getAllCustomers() {
-        return customerService.getAllCustomer();
+    public ResponseEntity<List<CustomerDto>> getCustomers(final @RequestParam(value = "after", required = false) Long after,
+                                                          final @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                                          final @RequestParam(value = "partial", defaultValue = "false") boolean partial) {
+        if (!partial) {
+            return ResponseEntity.ok(customerService.getCustomers(after, limit));
+        }
+        final PartialResult<CustomerDto> customers = customerService.getAvailableCustomers(after, limit);
+        return ResponseEntity.ok()
+                .header(MISSING_SHARDS_HEADER, customers.getMissingShardIds().stream()
+                        .map(String::valueOf)
+                        .collect(Collectors.joining(",")))
+                .body(customers.getResults());
     }
 
     @RequestMapping(value = "/customers/{id}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
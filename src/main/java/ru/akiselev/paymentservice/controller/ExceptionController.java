@@ -1,5 +1,7 @@
 package ru.akiselev.paymentservice.controller;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -10,9 +12,11 @@ import java.util.Map;
 @ControllerAdvice
 public class ExceptionController {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ExceptionController.class);
+
     @ExceptionHandler(RuntimeException.class)
     public ResponseEntity<Object> handleException(final RuntimeException e) {
-        e.printStackTrace();
+        LOG.warn("Request failed: {}", e.getMessage(), e);
         return ResponseEntity.badRequest()
                 .body(Map.of(
                         "error", HttpStatus.BAD_REQUEST,
@@ -2,6 +2,7 @@ package ru.akiselev.paymentservice.controller;
 
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -11,6 +12,8 @@ import ru.akiselev.paymentservice.dto.PaymentDto;
 import ru.akiselev.paymentservice.service.PaymentService;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequiredArgsConstructor
@@ -19,12 +22,27 @@ public class PaymentController {
     private final PaymentService paymentService;
 
     @RequestMapping(path = "/payments", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public List<PaymentDto> savePayments(final @RequestBody List<PaymentDto> paymentDtos) {
+    public CompletableFuture<List<PaymentDto>> savePayments(final @RequestBody List<PaymentDto> paymentDtos) {
         return paymentService.savePayments(paymentDtos);
     }
 
+    @RequestMapping(path = "/payments/{id}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public PaymentDto getPayment(final @PathVariable("id") long id) {
+        return paymentService.getPayment(id);
+    }
+
     @RequestMapping(path = "/payments/amount", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     public long getAmountBySenderId(final @RequestParam("senderId") Long senderId) {
         return paymentService.getAmountBySenderId(senderId);
     }
+
+    @RequestMapping(path = "/payments/amounts", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<Long, Long> getAmountsBySender() {
+        return paymentService.getAmountsBySender();
+    }
+
+    @RequestMapping(path = "/payments/report", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getAmountStatistics() {
+        return paymentService.getAmountStatistics();
+    }
 }
@@ -0,0 +1,39 @@
+package ru.akiselev.paymentservice.controller;
+
+import com.google.common.base.Preconditions;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import ru.akiselev.paymentservice.persistence.shard.QueryLog;
+import ru.akiselev.paymentservice.persistence.shard.QueryStatistics;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Component
+@Endpoint(id = "querystatistics")
+@RequiredArgsConstructor
+public class QueryStatisticsEndpoint {
+
+    private static final int DEFAULT_LIMIT = 50;
+
+    private final QueryLog queryLog;
+
+    @ReadOperation
+    public List<QueryStatistics> queryStatistics(final @Nullable Integer shardId, final @Nullable Integer limit) {
+        final int maxEntries = limit == null ? DEFAULT_LIMIT : limit;
+        Preconditions.checkArgument(maxEntries > 0, "Limit must be positive, but got %s.", maxEntries);
+        return queryLog.statistics().stream()
+                .filter(statistics -> shardId == null || statistics.getShardId() == shardId)
+                .limit(maxEntries)
+                .collect(Collectors.toList());
+    }
+
+    @DeleteOperation
+    public void resetQueryStatistics() {
+        queryLog.reset();
+    }
+}
@@ -0,0 +1,109 @@
+package ru.akiselev.paymentservice.controller;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.akiselev.paymentservice.persistence.shard.SessionToken;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+@Component
+public class SessionTokenFilter extends OncePerRequestFilter {
+
+    static final String SESSION_TOKEN_HEADER = "X-Session-Token";
+    private static final String SESSION_TOKEN_ATTRIBUTE = SessionTokenFilter.class.getName() + ".token";
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        SessionToken token = (SessionToken) request.getAttribute(SESSION_TOKEN_ATTRIBUTE);
+        if (token == null) {
+            final String encoded = request.getHeader(SESSION_TOKEN_HEADER);
+            if (encoded == null) {
+                filterChain.doFilter(request, response);
+                return;
+            }
+            token = SessionToken.decode(encoded);
+            request.setAttribute(SESSION_TOKEN_ATTRIBUTE, token);
+        }
+        final TokenHeaderResponse tokenResponse = new TokenHeaderResponse(response, token);
+        try (final SessionToken.Scope scope = token.bind()) {
+            filterChain.doFilter(request, tokenResponse);
+        }
+        if (!isAsyncStarted(request)) {
+            tokenResponse.writeHeader();
+        }
+    }
+
+    /**
+     * Writes are recorded from fan-out and group commit threads, so the header is only set here, on the request
+     * thread, right before the response is committed.
+     */
+    private static final class TokenHeaderResponse extends HttpServletResponseWrapper {
+
+        private final SessionToken token;
+        private boolean headerWritten;
+
+        TokenHeaderResponse(final HttpServletResponse response, final SessionToken token) {
+            super(response);
+            this.token = token;
+        }
+
+        void writeHeader() {
+            if (headerWritten || isCommitted()) {
+                return;
+            }
+            headerWritten = true;
+            if (token.isWritten()) {
+                setHeader(SESSION_TOKEN_HEADER, token.encode());
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            writeHeader();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            writeHeader();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            writeHeader();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(final int status) throws IOException {
+            writeHeader();
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendError(final int status, final String message) throws IOException {
+            writeHeader();
+            super.sendError(status, message);
+        }
+
+        @Override
+        public void sendRedirect(final String location) throws IOException {
+            writeHeader();
+            super.sendRedirect(location);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.akiselev.paymentservice.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.akiselev.paymentservice.config.ShardingProperties;
+import ru.akiselev.paymentservice.persistence.shard.TraceSpan;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@RequiredArgsConstructor
+public class TraceFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TraceFilter.class);
+
+    private final ShardingProperties properties;
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        final ShardingProperties.TracingProperties tracing = properties.getTracing();
+        if (!tracing.isEnabled()) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        final TraceSpan trace = TraceSpan.root(request.getMethod() + " " + request.getRequestURI());
+        try (final TraceSpan.Scope scope = trace.bind()) {
+            filterChain.doFilter(request, response);
+        } finally {
+            trace.finish();
+            if (tracing.isDumpSlowRequests()
+                    && trace.elapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(tracing.getSlowRequestMillis())) {
+                LOG.warn("Slow request took {} ms:{}{}", TimeUnit.NANOSECONDS.toMillis(trace.elapsedNanos()),
+                        System.lineSeparator(), trace.render());
+            }
+        }
+    }
+}
@@ -8,6 +8,6 @@ import lombok.Setter;
 @Getter
 @Setter
 public class CustomerDto {
-    private final long id;
+    private final Long id;
     private final String name;
 }
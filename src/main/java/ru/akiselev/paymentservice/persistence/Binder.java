@@ -0,0 +1,11 @@
+package ru.akiselev.paymentservice.persistence;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public interface Binder<T> {
+
+    long presentColumnsMask(final T entity);
+
+    void bind(final PreparedStatement statement, final T entity, final long mask) throws SQLException;
+}
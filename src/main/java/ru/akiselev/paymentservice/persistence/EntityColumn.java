@@ -0,0 +1,50 @@
+package ru.akiselev.paymentservice.persistence;
+
+import lombok.Getter;
+
+import java.lang.reflect.Field;
+
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.columnNameFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.idFieldFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isEntity;
+
+@Getter
+public final class EntityColumn {
+
+    private final Field field;
+    private final String name;
+    private final int index;
+    private final Field referenceIdField;
+
+    EntityColumn(final Field field, final int index) {
+        this.field = accessible(field);
+        this.name = columnNameFor(field);
+        this.index = index;
+        this.referenceIdField = isEntity(field) ? accessible(idFieldFor(field.getType())) : null;
+    }
+
+    public boolean isReference() {
+        return referenceIdField != null;
+    }
+
+    public Object valueOf(final Object entity) {
+        final Object value = read(field, entity);
+        if (value == null || referenceIdField == null) {
+            return value;
+        }
+        return read(referenceIdField, value);
+    }
+
+    static Field accessible(final Field field) {
+        field.setAccessible(true);
+        return field;
+    }
+
+    static Object read(final Field field, final Object entity) {
+        try {
+            return field.get(entity);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot get field value.", e);
+        }
+    }
+}
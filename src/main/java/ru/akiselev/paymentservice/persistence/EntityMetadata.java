@@ -0,0 +1,279 @@
+package ru.akiselev.paymentservice.persistence;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import javax.validation.Constraint;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static ru.akiselev.paymentservice.persistence.EntityColumn.accessible;
+import static ru.akiselev.paymentservice.persistence.EntityColumn.read;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.checkIsEntity;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.columnNameFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.findConstructorFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.idFieldFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isEntity;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.referenceKeyColumnName;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.tableNameForClass;
+
+@Getter
+public final class EntityMetadata {
+
+    private static final ConcurrentMap<Class<?>, EntityMetadata> REGISTRY = new ConcurrentHashMap<>();
+
+    private final Class<?> type;
+    private final String tableName;
+    private final Field idField;
+    private final String idName;
+    private final Class<?> idType;
+    private final List<Field> shardKeyPath;
+    private final String shardKeyColumn;
+    private final List<EntityColumn> columns;
+    private final List<EntityColumn> referenceColumns;
+    private final Constructor<?> constructor;
+    private final List<String> constructorParameterNames;
+    private final List<Class<?>> constructorParameterTypes;
+    @Getter(AccessLevel.NONE)
+    private final List<Field> constructorFields;
+    private final boolean constrained;
+    @Getter(AccessLevel.NONE)
+    private final RowMapper<?> rowMapper;
+    @Getter(AccessLevel.NONE)
+    private final Binder<?> binder;
+    @Getter(AccessLevel.NONE)
+    private final ConcurrentMap<Long, String> insertSqlByMask = new ConcurrentHashMap<>();
+
+    private EntityMetadata(final Class<?> type) {
+        checkIsEntity(type, format("This is not an entity class: %s.", type.getName()));
+        this.type = type;
+        this.tableName = tableNameForClass(type);
+        this.idField = accessible(idFieldFor(type));
+        this.idName = idField.getName();
+        this.idType = idField.getType();
+        this.shardKeyPath = shardKeyPathFor(type);
+        this.shardKeyColumn = shardKeyColumnFor(shardKeyPath.get(0));
+
+        final List<Field> persistentFields = Arrays.stream(type.getDeclaredFields())
+                .filter(field -> !Modifier.isStatic(field.getModifiers()))
+                .collect(Collectors.toList());
+        Preconditions.checkState(persistentFields.size() <= Long.SIZE,
+                "Entity %s has more than %s columns.", type.getName(), Long.SIZE);
+        final ImmutableList.Builder<EntityColumn> columnsBuilder = ImmutableList.builder();
+        for (int i = 0; i < persistentFields.size(); i++) {
+            columnsBuilder.add(new EntityColumn(persistentFields.get(i), i));
+        }
+        this.columns = columnsBuilder.build();
+        this.referenceColumns = columns.stream()
+                .filter(EntityColumn::isReference)
+                .collect(ImmutableList.toImmutableList());
+
+        final RowMapper<?> generatedRowMapper = generated(type, "RowMapper");
+        final Binder<?> generatedBinder = generated(type, "Binder");
+
+        this.constructor = findConstructorFor(type);
+        this.constructor.setAccessible(true);
+        this.constructorParameterNames = generatedRowMapper != null
+                ? fieldOrderedParameterNames(type, constructor, persistentFields)
+                : reflectedParameterNames(constructor);
+        this.constructorParameterTypes = ImmutableList.copyOf(constructor.getParameterTypes());
+        this.constructorFields = constructorParameterNames.stream()
+                .map(name -> persistentFields.stream()
+                        .filter(field -> field.getName().equals(name))
+                        .findFirst()
+                        .map(EntityColumn::accessible)
+                        .orElse(null))
+                .collect(Collectors.toList());
+        this.constrained = persistentFields.stream().anyMatch(EntityMetadata::isConstrained)
+                || Arrays.stream(type.getAnnotations()).anyMatch(EntityMetadata::isConstraint);
+
+        this.rowMapper = generatedRowMapper != null ? generatedRowMapper : new ReflectiveRowMapper<>(this);
+        this.binder = generatedBinder != null ? generatedBinder : new ReflectiveBinder<>(this);
+    }
+
+    public static EntityMetadata of(final Class<?> type) {
+        final EntityMetadata metadata = REGISTRY.get(type);
+        return metadata != null ? metadata : REGISTRY.computeIfAbsent(type, EntityMetadata::new);
+    }
+
+    public static void register(final Iterable<Class<?>> types) {
+        types.forEach(EntityMetadata::of);
+    }
+
+    public <T> RowMapper<T> rowMapper() {
+        return (RowMapper<T>) rowMapper;
+    }
+
+    public <T> Binder<T> binder() {
+        return (Binder<T>) binder;
+    }
+
+    public Object idValueOf(final Object entity) {
+        return read(idField, entity);
+    }
+
+    public void assignIdIfAbsent(final Object entity, final Object id) {
+        if (idValueOf(entity) != null) {
+            return;
+        }
+        try {
+            idField.set(entity, id);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(format("Cannot set id for %s.", type.getName()), e);
+        }
+    }
+
+    public <T> T withReferences(final T entity, final Map<Class<?>, Map<Object, Object>> loaded) {
+        if (referenceColumns.isEmpty()) {
+            return entity;
+        }
+        Preconditions.checkState(!constructorFields.contains(null),
+                "Constructor of %s has parameters that are not fields.", type.getName());
+        final Object[] args = new Object[constructorFields.size()];
+        boolean replaced = false;
+        for (int i = 0; i < args.length; i++) {
+            final Field field = constructorFields.get(i);
+            final Object value = read(field, entity);
+            final Object resolved = value == null || !isEntity(field)
+                    ? null
+                    : loaded.getOrDefault(field.getType(), Map.of()).get(of(field.getType()).idValueOf(value));
+            args[i] = resolved != null ? resolved : value;
+            replaced |= resolved != null && resolved != value;
+        }
+        if (!replaced) {
+            return entity;
+        }
+        try {
+            return (T) constructor.newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(format("Cannot rebuild %s with resolved references.", type.getName()), e);
+        }
+    }
+
+    public Object shardKeyValueOf(final Object entity) {
+        Object value = entity;
+        for (final Field field : shardKeyPath) {
+            if (value == null) {
+                return null;
+            }
+            value = read(field, value);
+        }
+        return value;
+    }
+
+    public Field shardKeyField() {
+        return shardKeyPath.get(shardKeyPath.size() - 1);
+    }
+
+    public boolean isShardKeyColumn(final String columnName) {
+        return shardKeyColumn.equals(columnName);
+    }
+
+    public EntityColumn column(final String columnName) {
+        return columns.stream()
+                .filter(column -> column.getName().equals(columnName))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException(format("No column %s in %s.", columnName, tableName)));
+    }
+
+    public long presentColumnsMaskForAll(final List<?> entities) {
+        final Binder<Object> entityBinder = binder();
+        long mask = columns.size() == Long.SIZE ? -1L : (1L << columns.size()) - 1;
+        for (final Object entity : entities) {
+            mask &= entityBinder.presentColumnsMask(entity);
+        }
+        return mask;
+    }
+
+    public List<EntityColumn> columnsFor(final long mask) {
+        return columns.stream()
+                .filter(column -> (mask & (1L << column.getIndex())) != 0)
+                .collect(Collectors.toList());
+    }
+
+    public String insertSqlFor(final long mask) {
+        final String sql = insertSqlByMask.get(mask);
+        return sql != null ? sql : insertSqlByMask.computeIfAbsent(mask, this::buildInsertSql);
+    }
+
+    private String buildInsertSql(final long mask) {
+        final List<EntityColumn> present = columnsFor(mask);
+        final String names = present.stream().map(EntityColumn::getName).collect(Collectors.joining(","));
+        final String args = present.stream().map(column -> "?").collect(Collectors.joining(","));
+        return format("insert into %s(%s) values(%s)", tableName, names, args);
+    }
+
+    private static List<String> fieldOrderedParameterNames(final Class<?> type, final Constructor<?> constructor,
+                                                           final List<Field> persistentFields) {
+        Preconditions.checkState(constructor.getParameterCount() == persistentFields.size(),
+                "Constructor of %s must take all %s fields in declaration order.", type.getName(), persistentFields.size());
+        return persistentFields.stream()
+                .map(Field::getName)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    private static List<String> reflectedParameterNames(final Constructor<?> constructor) {
+        return Arrays.stream(constructor.getParameters())
+                .peek(parameter -> Preconditions.checkState(parameter.isNamePresent(),
+                        "Parameter name is not presented. Please use -parameters options for javac."))
+                .map(Parameter::getName)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    private static <G> G generated(final Class<?> type, final String suffix) {
+        try {
+            final Class<?> generatedClass = Class.forName(type.getName() + suffix, true, type.getClassLoader());
+            return (G) generatedClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(format("Cannot create generated %s for %s.", suffix, type.getName()), e);
+        }
+    }
+
+    private static List<Field> shardKeyPathFor(final Class<?> type) {
+        final ImmutableList.Builder<Field> path = ImmutableList.builder();
+        Class<?> current = type;
+        while (true) {
+            final Field shardField = shardIdFieldFor(current);
+            path.add(accessible(shardField));
+            if (!isEntity(shardField)) {
+                return path.build();
+            }
+            current = shardField.getType();
+        }
+    }
+
+    private static Field shardIdFieldFor(final Class<?> type) {
+        for (final Field field : type.getDeclaredFields()) {
+            if (field.isAnnotationPresent(ShardId.class)) {
+                return field;
+            }
+        }
+        throw new RuntimeException(format("No shardId field. ShardId field is required for %s.", type));
+    }
+
+    private static String shardKeyColumnFor(final Field field) {
+        return isEntity(field) ? referenceKeyColumnName(field.getName()) : columnNameFor(field);
+    }
+
+    private static boolean isConstrained(final Field field) {
+        return Arrays.stream(field.getAnnotations()).anyMatch(EntityMetadata::isConstraint);
+    }
+
+    private static boolean isConstraint(final Annotation annotation) {
+        return annotation.annotationType().isAnnotationPresent(Constraint.class);
+    }
+}
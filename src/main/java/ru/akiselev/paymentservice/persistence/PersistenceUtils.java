@@ -32,7 +32,7 @@ public class PersistenceUtils {
     public static <T> void setValueIfNull(final Field field, final T entity, final Object value) {
         try {
             field.setAccessible(true);
-            if (field.get(entity) == null) return;
+            if (field.get(entity) != null) return;
             field.set(entity, value);
         } catch (IllegalAccessException e) {
             throw new RuntimeException(format("Cannot set field value for %s.", value), e);
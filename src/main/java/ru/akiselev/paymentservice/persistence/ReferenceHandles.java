@@ -0,0 +1,22 @@
+package ru.akiselev.paymentservice.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class ReferenceHandles implements ReferenceResolver {
+
+    public static final ReferenceResolver UNSHARED = new ReferenceResolver() {
+        @Override
+        public <R> R resolve(final Class<R> type, final Object id) {
+            return EntityMetadata.of(type).<R>rowMapper().reference(id);
+        }
+    };
+
+    private final Map<Class<?>, Map<Object, Object>> handles = new HashMap<>();
+
+    @Override
+    public <R> R resolve(final Class<R> type, final Object id) {
+        return (R) handles.computeIfAbsent(type, referenced -> new HashMap<>())
+                .computeIfAbsent(id, key -> EntityMetadata.of(type).rowMapper().reference(key));
+    }
+}
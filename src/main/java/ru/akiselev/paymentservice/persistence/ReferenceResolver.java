@@ -0,0 +1,10 @@
+package ru.akiselev.paymentservice.persistence;
+
+public interface ReferenceResolver {
+
+    <R> R resolve(final Class<R> type, final Object id);
+
+    default <R> R resolveNullable(final Class<R> type, final Object id) {
+        return id == null ? null : resolve(type, id);
+    }
+}
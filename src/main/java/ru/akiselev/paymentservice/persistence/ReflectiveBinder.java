@@ -0,0 +1,33 @@
+package ru.akiselev.paymentservice.persistence;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+class ReflectiveBinder<T> implements Binder<T> {
+
+    private final EntityMetadata metadata;
+
+    ReflectiveBinder(final EntityMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    @Override
+    public long presentColumnsMask(final T entity) {
+        long mask = 0L;
+        for (final EntityColumn column : metadata.getColumns()) {
+            if (column.valueOf(entity) != null) {
+                mask |= 1L << column.getIndex();
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public void bind(final PreparedStatement statement, final T entity, final long mask) throws SQLException {
+        final List<EntityColumn> columns = metadata.columnsFor(mask);
+        for (int i = 0; i < columns.size(); i++) {
+            statement.setObject(i + 1, columns.get(i).valueOf(entity));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.akiselev.paymentservice.persistence;
+
+import com.google.common.base.Defaults;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.ResultSet;
+import java.util.List;
+
+import static java.lang.String.format;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.entityClassFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.extractValueFor;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isEntity;
+import static ru.akiselev.paymentservice.persistence.PersistenceUtils.referenceKeyColumnName;
+
+class ReflectiveRowMapper<T> implements RowMapper<T> {
+
+    private final EntityMetadata metadata;
+
+    ReflectiveRowMapper(final EntityMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    @Override
+    public T map(final ResultSet resultSet, final ReferenceResolver resolver) {
+        final List<String> names = metadata.getConstructorParameterNames();
+        final List<Class<?>> types = metadata.getConstructorParameterTypes();
+        final Object[] args = new Object[names.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = extractArgsForConstructorParameters(resultSet, resolver, names.get(i), types.get(i));
+        }
+        return newInstance(args);
+    }
+
+    @Override
+    public T reference(final Object id) {
+        final List<String> names = metadata.getConstructorParameterNames();
+        final List<Class<?>> types = metadata.getConstructorParameterTypes();
+        final Object[] args = new Object[names.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = names.get(i).equals(metadata.getIdName()) ? id : Defaults.defaultValue(types.get(i));
+        }
+        return newInstance(args);
+    }
+
+    private T newInstance(final Object[] args) {
+        final Constructor<?> constructor = metadata.getConstructor();
+        try {
+            return (T) constructor.newInstance(args);
+        } catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException(format("Cannot create instance of type %s using constructor %s.", metadata.getType(), constructor));
+        }
+    }
+
+    private Object extractArgsForConstructorParameters(final ResultSet rs, final ReferenceResolver resolver,
+                                                       final String parameterName, final Class<?> parameterType) {
+        if (isEntity(parameterType)) {
+            final Object extracted = extractValueFor(rs, referenceKeyColumnName(parameterName));
+            return resolver.resolveNullable(entityClassFor(parameterType), extracted);
+        } else {
+            final Object extracted = extractValueFor(rs, parameterName);
+            if (extracted == null) {
+                return null;
+            }
+            if (!parameterType.isAssignableFrom(extracted.getClass())) {
+                if (extracted instanceof Number) {
+                    if (parameterType.equals(int.class)) {
+                        return ((Number) extracted).intValue();
+                    } else if (parameterType.equals(boolean.class)) {
+                        final int extractedAsInt = ((Number) extracted).intValue();
+                        return extractedAsInt == 1;
+                    } else if (parameterType.equals(long.class)) {
+                        return ((Number) extracted).longValue();
+                    } else {
+                        throw new RuntimeException(
+                                format("Cannot cast %s to type %s to parameter %s of type %s",
+                                        extracted,
+                                        extracted.getClass().getSimpleName(),
+                                        parameterName,
+                                        parameterType.getSimpleName())
+                        );
+                    }
+                } else {
+                    throw new RuntimeException(
+                            format(
+                                    "Cannot cast %s of type %s to parameter %s of type %s",
+                                    extracted,
+                                    extracted.getClass().getSimpleName(),
+                                    parameterName,
+                                    parameterType.getSimpleName()
+                            )
+                    );
+                }
+            }
+            return extracted;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.akiselev.paymentservice.persistence;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class ResultSetValues {
+
+    private ResultSetValues() {
+
+    }
+
+    public static Long longOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Integer intOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final int value = resultSet.getInt(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Short shortOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final short value = resultSet.getShort(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Byte byteOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final byte value = resultSet.getByte(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Double doubleOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final double value = resultSet.getDouble(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Float floatOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final float value = resultSet.getFloat(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    public static Boolean booleanOrNull(final ResultSet resultSet, final String column) throws SQLException {
+        final boolean value = resultSet.getBoolean(column);
+        return resultSet.wasNull() ? null : value;
+    }
+}
@@ -0,0 +1,11 @@
+package ru.akiselev.paymentservice.persistence;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public interface RowMapper<T> {
+
+    T map(final ResultSet resultSet, final ReferenceResolver resolver) throws SQLException;
+
+    T reference(final Object id);
+}
@@ -3,29 +3,28 @@ package ru.akiselev.paymentservice.persistence.dao;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 import ru.akiselev.paymentservice.entity.Customer;
-import ru.akiselev.paymentservice.persistence.generator.HashKeyGenerator;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+import ru.akiselev.paymentservice.persistence.generator.IdGenerator;
+import ru.akiselev.paymentservice.persistence.shard.PartialResult;
 import ru.akiselev.paymentservice.persistence.shard.ShardManager;
 
-import java.lang.reflect.Field;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
-import static java.util.Comparator.comparing;
-import static java.util.stream.Collectors.toList;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.setValueIfNull;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.shardIdFor;
 import static ru.akiselev.paymentservice.persistence.dao.EntityValidator.validate;
 
 @RequiredArgsConstructor
 @Component
 public class CustomerDao {
 
+    private static final EntityMetadata CUSTOMER = EntityMetadata.of(Customer.class);
+
     private final ShardManager shardManager;
-    private final HashKeyGenerator hashKeyGenerator;
+    private final IdGenerator idGenerator;
 
     public Customer save(final Customer customer) {
-        final Field shardField = shardIdFor(Customer.class);
-        setValueIfNull(shardField, customer, hashKeyGenerator.next());
+        assignId(customer);
         validate(customer);
         final long id = shardManager.save(customer, Customer.class);
         customer.setId(id);
@@ -33,38 +32,40 @@ public class CustomerDao {
     }
 
     public List<Customer> saveAllInBatch(final List<Customer> customers) {
-        for (final Customer customer : customers) {
-            final Field shardField = shardIdFor(Customer.class);
-            setValueIfNull(shardField, customer, hashKeyGenerator.next());
-            validate(customer);
-        }
+        customers.forEach(this::assignId);
+        validate(customers);
         final List<Long> ids = shardManager.saveAllInBatch(customers, Customer.class);
-        final Iterator<Long> it = ids.iterator();
-        for (final Customer customer : customers) {
-            if (it.hasNext()) {
-                final Long id = it.next();
-                customer.setId(id);
-            }
+        for (int i = 0; i < customers.size(); i++) {
+            customers.get(i).setId(ids.get(i));
         }
         return customers;
     }
 
+    private void assignId(final Customer customer) {
+        if (customer.getId() == null) {
+            customer.setId(idGenerator.next(shardManager.encodedShardIdFor(customer)));
+        }
+    }
+
     public List<Long> findAllIds() {
         return shardManager.executeQuery("select c.id from customer as c", Customer.class);
     }
 
-    public List<Customer> findAll() {
-        return shardManager.find(Customer.class)
-                .all()
-                .stream()
-                .sorted(comparing(Customer::getId))
-                .collect(toList());
+    public Set<Long> findExistingIds(final Collection<Long> ids) {
+        return shardManager.findExistingIds(Customer.class, ids);
+    }
+
+    public List<Customer> findPage(final Long after, final int limit) {
+        return shardManager.<Customer>find(Customer.class)
+                .page(CUSTOMER.getIdName(), after, limit);
+    }
+
+    public PartialResult<Customer> findAvailablePage(final Long after, final int limit) {
+        return shardManager.<Customer>find(Customer.class)
+                .pageAvailable(CUSTOMER.getIdName(), after, limit);
     }
 
     public Customer findOne(final long id) {
-        return shardManager.find(Customer.class)
-                .where()
-                .eq("id", id)
-                .one();
+        return shardManager.findById(Customer.class, id);
     }
 }
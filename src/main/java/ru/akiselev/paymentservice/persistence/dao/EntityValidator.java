@@ -1,30 +1,64 @@
 package ru.akiselev.paymentservice.persistence.dao;
 
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.Validator;
-import javax.validation.ValidatorFactory;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
 
 public class EntityValidator {
+
+    static final int PARALLEL_THRESHOLD = 1_000;
+
+    private static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
+
     private EntityValidator() {
 
     }
 
+    public static void register(final Iterable<Class<?>> types) {
+        for (final Class<?> type : types) {
+            if (EntityMetadata.of(type).isConstrained()) {
+                VALIDATOR.getConstraintsForClass(type);
+            }
+        }
+    }
+
     public static <T> void validate(final List<? extends T> entities) {
-        for (final T entity : entities) {
-            validate(entity);
+        if (entities.isEmpty() || !EntityMetadata.of(entities.get(0).getClass()).isConstrained()) {
+            return;
+        }
+        final IntStream positions = entities.size() >= PARALLEL_THRESHOLD
+                ? IntStream.range(0, entities.size()).parallel()
+                : IntStream.range(0, entities.size());
+        final List<String> errors = positions
+                .mapToObj(position -> violationsOf(position, entities.get(position)))
+                .flatMap(violations -> violations)
+                .collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            throw new RuntimeException("Validation errors." + errors);
         }
     }
 
     public static <T> void validate(final T entity) {
-        final ValidatorFactory validatorFactory = Validation.buildDefaultValidatorFactory();
-        final Validator validator = validatorFactory.getValidator();
-        final Set<ConstraintViolation<T>> violations = validator.validate(entity);
+        if (!EntityMetadata.of(entity.getClass()).isConstrained()) {
+            return;
+        }
+        final Set<ConstraintViolation<T>> violations = VALIDATOR.validate(entity);
         if (!violations.isEmpty()) {
             throw new RuntimeException("Validation errors." + violations.stream().map(ConstraintViolation::getMessage).collect(Collectors.toSet()));
         }
     }
+
+    private static <T> Stream<String> violationsOf(final int position, final T entity) {
+        return VALIDATOR.validate(entity).stream()
+                .map(violation -> format("#%s %s: %s", position, violation.getPropertyPath(), violation.getMessage()));
+    }
 }
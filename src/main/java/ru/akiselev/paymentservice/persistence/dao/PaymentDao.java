@@ -3,35 +3,99 @@ package ru.akiselev.paymentservice.persistence.dao;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 import ru.akiselev.paymentservice.entity.Payment;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+import ru.akiselev.paymentservice.persistence.generator.IdGenerator;
+import ru.akiselev.paymentservice.persistence.shard.Aggregate;
+import ru.akiselev.paymentservice.persistence.shard.AggregateRow;
+import ru.akiselev.paymentservice.persistence.shard.GroupCommitWriter;
 import ru.akiselev.paymentservice.persistence.shard.ShardManager;
+import ru.akiselev.paymentservice.persistence.shard.ShardSession;
 
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static java.util.stream.Collectors.toMap;
 import static ru.akiselev.paymentservice.persistence.dao.EntityValidator.validate;
 
 @Component
 @RequiredArgsConstructor
 public class PaymentDao {
 
+    private static final EntityMetadata PAYMENT = EntityMetadata.of(Payment.class);
+    private static final String AMOUNT = "amount";
+    private static final String SENDER_ID = "sender_id";
+
     private final ShardManager shardManager;
+    private final IdGenerator idGenerator;
+    private final Optional<GroupCommitWriter<Payment>> paymentWriter;
 
     public List<Payment> saveAll(final List<Payment> payments) {
         validate(payments);
+        assignIds(payments);
         final List<Long> ids = shardManager.saveAllInBatch(payments, Payment.class);
-        final Iterator<Long> it = ids.iterator();
+        return withIds(payments, ids);
+    }
+
+    public boolean commitsInGroups() {
+        return paymentWriter.isPresent();
+    }
+
+    /**
+     * Group commits run on the writer's own connections, so payments saved inside a shard session are written
+     * synchronously to stay part of it.
+     */
+    public CompletableFuture<List<Payment>> saveAllAsync(final List<Payment> payments) {
+        if (paymentWriter.isEmpty() || ShardSession.current() != null) {
+            return CompletableFuture.completedFuture(saveAll(payments));
+        }
+        validate(payments);
+        assignIds(payments);
+        return paymentWriter.get().<Long>submit(payments)
+                .thenApply(ids -> withIds(payments, ids));
+    }
+
+    private void assignIds(final List<Payment> payments) {
         for (final Payment payment : payments) {
-            if (it.hasNext()) {
-                payment.setId(it.next());
-            }
+            PAYMENT.assignIdIfAbsent(payment, idGenerator.next(shardManager.encodedShardIdFor(payment)));
+        }
+    }
+
+    private static List<Payment> withIds(final List<Payment> payments, final List<Long> ids) {
+        for (int i = 0; i < payments.size(); i++) {
+            payments.get(i).setId(ids.get(i));
         }
         return payments;
     }
 
+    public Payment findOne(final long id) {
+        return shardManager.findById(Payment.class, id);
+    }
+
     public long sumAmountBySenderId(final long senderId) {
-        return shardManager.sum(Payment.class, "amount")
+        final Long sum = shardManager.sum(Payment.class, AMOUNT)
                 .where()
-                .eq("sender_id", senderId)
+                .eq(SENDER_ID, senderId)
                 .exec(Long.class);
+        return sum == null ? 0L : sum;
+    }
+
+    public Map<Long, Long> sumAmountGroupedBySender() {
+        final Aggregate sum = Aggregate.sum(AMOUNT);
+        return shardManager.aggregate(Payment.class)
+                .select(sum)
+                .groupBy(SENDER_ID)
+                .exec()
+                .stream()
+                .collect(toMap(row -> ((Number) row.getKeys().get(0)).longValue(), row -> firstNonNull(row.get(sum.getAlias(), Long.class), 0L)));
+    }
+
+    public AggregateRow amountStatistics() {
+        return shardManager.aggregate(Payment.class)
+                .select(Aggregate.count(), Aggregate.sum(AMOUNT), Aggregate.avg(AMOUNT), Aggregate.min(AMOUNT), Aggregate.max(AMOUNT))
+                .exec()
+                .get(0);
     }
 }
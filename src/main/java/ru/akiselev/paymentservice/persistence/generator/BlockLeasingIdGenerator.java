@@ -0,0 +1,122 @@
+package ru.akiselev.paymentservice.persistence.generator;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+public class BlockLeasingIdGenerator implements IdGenerator {
+
+    private static final String UPDATE = "update id_sequence set next_value = next_value + ? where name = ?";
+    private static final String SELECT = "select next_value from id_sequence where name = ?";
+    private static final String INSERT = "insert into id_sequence(name, next_value) values(?, ?)";
+    private static final int LEASE_ATTEMPTS = 3;
+
+    private final Map<Integer, DataSource> dataSources;
+    private final String sequenceName;
+    private final int blockSize;
+    private final int shardBits;
+    private final ConcurrentMap<Integer, Block> blocks = new ConcurrentHashMap<>();
+
+    public BlockLeasingIdGenerator(final Map<Integer, DataSource> dataSources, final String sequenceName,
+                                   final int blockSize, final int shardBits) {
+        Preconditions.checkArgument(!dataSources.isEmpty(), "At least one sequence data source is required.");
+        Preconditions.checkArgument(blockSize > 0, "Block size must be positive, but got %s.", blockSize);
+        Preconditions.checkArgument(shardBits >= 0 && shardBits < Integer.SIZE, "Invalid shard bits %s.", shardBits);
+        this.dataSources = dataSources instanceof SortedMap ? dataSources : ImmutableSortedMap.copyOf(dataSources);
+        this.sequenceName = sequenceName;
+        this.blockSize = blockSize;
+        this.shardBits = shardBits;
+    }
+
+    @Override
+    public long next(final int shardId) {
+        Preconditions.checkArgument(shardId >= 0 && shardId < 1L << shardBits,
+                "Shard %s does not fit into %s bits.", shardId, shardBits);
+        while (true) {
+            final Block block = blocks.get(shardId);
+            if (block != null) {
+                final long value = block.next.getAndIncrement();
+                if (value < block.end) {
+                    return value << shardBits | shardId;
+                }
+            }
+            synchronized (this) {
+                if (blocks.get(shardId) == block) {
+                    blocks.put(shardId, lease(shardId));
+                }
+            }
+        }
+    }
+
+    private Block lease(final int shardId) {
+        final DataSource dataSource = shardId == 0
+                ? dataSources.values().iterator().next()
+                : dataSources.get(shardId);
+        Preconditions.checkState(dataSource != null, "No sequence data source for shard %s.", shardId);
+        SQLException failure = null;
+        for (int attempt = 0; attempt < LEASE_ATTEMPTS; attempt++) {
+            try (final Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    final Block block = lease(connection);
+                    connection.commit();
+                    return block;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    failure = e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        throw new RuntimeException(format("Cannot lease a block of %s ids for shard %s.", sequenceName, shardId), failure);
+    }
+
+    private Block lease(final Connection connection) throws SQLException {
+        try (final PreparedStatement update = connection.prepareStatement(UPDATE)) {
+            update.setLong(1, blockSize);
+            update.setString(2, sequenceName);
+            if (update.executeUpdate() == 0) {
+                try (final PreparedStatement insert = connection.prepareStatement(INSERT)) {
+                    insert.setString(1, sequenceName);
+                    insert.setLong(2, 1L + blockSize);
+                    insert.executeUpdate();
+                }
+                return new Block(1L, 1L + blockSize);
+            }
+        }
+        try (final PreparedStatement select = connection.prepareStatement(SELECT)) {
+            select.setString(1, sequenceName);
+            try (final ResultSet resultSet = select.executeQuery()) {
+                Preconditions.checkState(resultSet.next(), "Sequence %s disappeared while leasing.", sequenceName);
+                final long end = resultSet.getLong(1);
+                return new Block(end - blockSize, end);
+            }
+        }
+    }
+
+    private static final class Block {
+
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(final long start, final long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package ru.akiselev.paymentservice.persistence.generator;
+
+public interface IdGenerator {
+
+    long next(final int shardId);
+
+    default long next() {
+        return next(0);
+    }
+}
@@ -0,0 +1,63 @@
+package ru.akiselev.paymentservice.persistence.generator;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    private final long epochMillis;
+    private final long nodeId;
+    private final int nodeBits;
+    private final int shardBits;
+    private final int sequenceBits;
+    private final long maxTimestamp;
+    private final long sequenceMask;
+    private final LongSupplier clock;
+    private final AtomicLong lastState = new AtomicLong();
+
+    public SnowflakeIdGenerator(final long epochMillis, final int nodeId, final int nodeBits,
+                                final int shardBits, final int sequenceBits) {
+        this(epochMillis, nodeId, nodeBits, shardBits, sequenceBits, System::currentTimeMillis);
+    }
+
+    SnowflakeIdGenerator(final long epochMillis, final int nodeId, final int nodeBits,
+                         final int shardBits, final int sequenceBits, final LongSupplier clock) {
+        Preconditions.checkArgument(nodeBits >= 0 && shardBits >= 0 && sequenceBits > 0,
+                "Bit counts must not be negative and sequence needs at least one bit.");
+        final int timestampBits = Long.SIZE - 1 - nodeBits - shardBits - sequenceBits;
+        Preconditions.checkArgument(timestampBits >= 32,
+                "Only %s bits are left for the timestamp, at least 32 are required.", timestampBits);
+        Preconditions.checkArgument(nodeId >= 0 && nodeId < 1L << nodeBits,
+                "Node id %s does not fit into %s bits.", nodeId, nodeBits);
+        this.epochMillis = epochMillis;
+        this.nodeId = nodeId;
+        this.nodeBits = nodeBits;
+        this.shardBits = shardBits;
+        this.sequenceBits = sequenceBits;
+        this.maxTimestamp = (1L << timestampBits) - 1;
+        this.sequenceMask = (1L << sequenceBits) - 1;
+        this.clock = clock;
+    }
+
+    @Override
+    public long next(final int shardId) {
+        Preconditions.checkArgument(shardId >= 0 && shardId < 1L << shardBits,
+                "Shard %s does not fit into %s bits.", shardId, shardBits);
+        while (true) {
+            final long last = lastState.get();
+            final long lastTimestamp = last >>> sequenceBits;
+            final long timestamp = Math.max(clock.getAsLong() - epochMillis, lastTimestamp);
+            final long sequence = timestamp == lastTimestamp ? (last & sequenceMask) + 1 : 0;
+            if (sequence > sequenceMask) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (lastState.compareAndSet(last, timestamp << sequenceBits | sequence)) {
+                Preconditions.checkState(timestamp <= maxTimestamp, "Id timestamp overflow, the epoch is too old.");
+                return ((timestamp << nodeBits | nodeId) << sequenceBits | sequence) << shardBits | shardId;
+            }
+        }
+    }
+}
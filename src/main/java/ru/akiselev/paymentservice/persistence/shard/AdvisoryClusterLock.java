@@ -0,0 +1,157 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Holds a session-level advisory lock on a connection borrowed from a shard pool. Postgres drops the lock with
+ * the connection, so the connection is probed and the lock is taken again on a new one when it is lost.
+ */
+public class AdvisoryClusterLock implements ClusterLock, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdvisoryClusterLock.class);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private final Supplier<? extends DataSource> dataSource;
+    private final long key;
+    private final ScheduledFuture<?> probe;
+    private Connection connection;
+    private int exclusiveLeases;
+    private boolean closed;
+
+    public AdvisoryClusterLock(final Supplier<? extends DataSource> dataSource, final long key,
+                               final ScheduledExecutorService scheduler, final long probeIntervalMillis) {
+        Preconditions.checkNotNull(dataSource);
+        Preconditions.checkArgument(probeIntervalMillis > 0, "Cluster lock probe interval must be positive, but got %s.", probeIntervalMillis);
+        this.dataSource = dataSource;
+        this.key = key;
+        synchronized (this) {
+            connect();
+        }
+        this.probe = scheduler.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases are reentrant, so an instance that holds the lock for its existence filter can still rebalance.
+     */
+    @Override
+    public synchronized Lease acquireExclusive() {
+        Preconditions.checkState(!closed, "Cluster lock %s is closed.", key);
+        if (!isHeld()) {
+            reconnect();
+        }
+        if (exclusiveLeases == 0 && !query("select pg_try_advisory_lock(?)")) {
+            throw new IllegalStateException(format(
+                    "Cannot lock the cluster exclusively while other instances are running: cluster lock %s is held by another session.", key));
+        }
+        exclusiveLeases++;
+        final AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            synchronized (this) {
+                if (released.compareAndSet(false, true) && --exclusiveLeases == 0 && connection != null) {
+                    try {
+                        query("select pg_advisory_unlock(?)");
+                    } catch (RuntimeException e) {
+                        LOG.warn("Cannot release the exclusive cluster lock {}, it is released with its connection.", key, e);
+                    }
+                }
+            }
+        };
+    }
+
+    synchronized void probe() {
+        if (closed || isHeld()) {
+            return;
+        }
+        LOG.warn("Connection of cluster lock {} is lost, taking the lock again.", key);
+        try {
+            reconnect();
+        } catch (RuntimeException e) {
+            LOG.error("Cannot take cluster lock {} again, other instances may run a rebalance meanwhile.", key, e);
+        }
+    }
+
+    private boolean isHeld() {
+        try {
+            return connection != null && connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void reconnect() {
+        release();
+        connect();
+    }
+
+    private void connect() {
+        try {
+            connection = dataSource.get().getConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException(format("Cannot connect to a shard for cluster lock %s.", key), e);
+        }
+        try {
+            if (!query("select pg_try_advisory_lock_shared(?)")) {
+                throw new IllegalStateException(format(
+                        "Cannot start while another instance holds cluster lock %s exclusively to rebalance or to use the existence filter.", key));
+            }
+            if (exclusiveLeases > 0 && !query("select pg_try_advisory_lock(?)")) {
+                throw new IllegalStateException(format("Exclusive cluster lock %s was taken by another session.", key));
+            }
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * The connection goes back to its pool, so its advisory locks must not outlive the lock.
+     */
+    private void release() {
+        if (connection == null) {
+            return;
+        }
+        try (final Connection released = connection) {
+            connection = null;
+            if (released.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                try (final PreparedStatement statement = released.prepareStatement("select pg_advisory_unlock_all()")) {
+                    statement.execute();
+                }
+            }
+        } catch (SQLException e) {
+            LOG.warn("Cannot release the connection of cluster lock {}.", key, e);
+        }
+    }
+
+    private boolean query(final String sql) {
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, key);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && !Boolean.FALSE.equals(resultSet.getObject(1));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(format("Cluster lock %s query failed: %s.", key, sql), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        probe.cancel(false);
+        release();
+    }
+}
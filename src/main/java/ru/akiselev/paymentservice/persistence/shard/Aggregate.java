@@ -0,0 +1,77 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+import java.util.Locale;
+
+import static java.lang.String.format;
+
+@Getter
+public final class Aggregate {
+
+    public enum Function {
+        COUNT,
+        SUM,
+        MIN,
+        MAX,
+        AVG
+    }
+
+    private static final String ALL_ROWS = "*";
+
+    private final Function function;
+    private final String column;
+    private final String alias;
+
+    private Aggregate(final Function function, final String column) {
+        Preconditions.checkNotNull(function);
+        Preconditions.checkNotNull(column, "Aggregated column cannot be null.");
+        Preconditions.checkArgument(function == Function.COUNT || !ALL_ROWS.equals(column),
+                "Only count can be computed over all rows.");
+        this.function = function;
+        this.column = column;
+        this.alias = format("%s(%s)", function.name().toLowerCase(Locale.ROOT), column);
+    }
+
+    public static Aggregate count() {
+        return new Aggregate(Function.COUNT, ALL_ROWS);
+    }
+
+    public static Aggregate count(final String column) {
+        return new Aggregate(Function.COUNT, column);
+    }
+
+    public static Aggregate sum(final String column) {
+        return new Aggregate(Function.SUM, column);
+    }
+
+    public static Aggregate min(final String column) {
+        return new Aggregate(Function.MIN, column);
+    }
+
+    public static Aggregate max(final String column) {
+        return new Aggregate(Function.MAX, column);
+    }
+
+    public static Aggregate avg(final String column) {
+        return new Aggregate(Function.AVG, column);
+    }
+
+    boolean isOverAllRows() {
+        return ALL_ROWS.equals(column);
+    }
+
+    int partialWidth() {
+        return function == Function.AVG ? 2 : 1;
+    }
+
+    String partialSql() {
+        switch (function) {
+            case AVG:
+                return format("sum(%s),count(%s)", column, column);
+            default:
+                return alias;
+        }
+    }
+}
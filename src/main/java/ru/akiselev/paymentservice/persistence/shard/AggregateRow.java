@@ -0,0 +1,43 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+@Getter
+@RequiredArgsConstructor
+public class AggregateRow {
+
+    private final List<Object> keys;
+    private final Map<String, Object> values;
+
+    public Object get(final String alias) {
+        Preconditions.checkArgument(values.containsKey(alias), "Unknown aggregate %s, expected one of %s.", alias, values.keySet());
+        return values.get(alias);
+    }
+
+    public <R> R get(final String alias, final Class<R> type) {
+        final Object value = get(alias);
+        if (value == null || type.isInstance(value)) {
+            return type.cast(value);
+        }
+        Preconditions.checkState(value instanceof Number, "Aggregate %s is not a number: %s.", alias, value);
+        final Number number = (Number) value;
+        if (type == Long.class) {
+            return type.cast(number.longValue());
+        } else if (type == Integer.class) {
+            return type.cast(number.intValue());
+        } else if (type == Double.class) {
+            return type.cast(number.doubleValue());
+        } else if (type == BigDecimal.class) {
+            return type.cast(new BigDecimal(number.toString()));
+        }
+        throw new RuntimeException(format("Cannot convert aggregate %s to %s.", alias, type.getName()));
+    }
+}
@@ -0,0 +1,172 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+@Getter
+final class Aggregation {
+
+    private final Class<?> type;
+    private final List<String> groupBy;
+    private final List<Aggregate> aggregates;
+    private final String condition;
+    private final List<Object> parameters;
+    private final Object shardKey;
+    private final int accumulatorWidth;
+
+    Aggregation(final Class<?> type, final List<String> groupBy, final List<Aggregate> aggregates,
+                final String condition, final List<Object> parameters, final Object shardKey) {
+        Preconditions.checkArgument(!aggregates.isEmpty(), "At least one aggregate is required for %s.", type.getName());
+        this.type = type;
+        this.groupBy = ImmutableList.copyOf(groupBy);
+        this.aggregates = ImmutableList.copyOf(aggregates);
+        this.condition = condition;
+        this.parameters = parameters;
+        this.shardKey = shardKey;
+        this.accumulatorWidth = aggregates.stream().mapToInt(Aggregate::partialWidth).sum();
+    }
+
+    String partialSql() {
+        final String keys = groupBy.stream().map(column -> column + ",").collect(joining());
+        final String partials = aggregates.stream().map(Aggregate::partialSql).collect(joining(","));
+        final String grouping = groupBy.isEmpty() ? "" : format(" group by %s", String.join(",", groupBy));
+        final String where = condition.isEmpty() ? "" : " " + condition;
+        return format("select %s%s from %s%s%s", keys, partials, EntityMetadata.of(type).getTableName(), where, grouping);
+    }
+
+    Object[] partialRowOf(final Object entity) {
+        final EntityMetadata metadata = EntityMetadata.of(type);
+        final Object[] row = new Object[groupBy.size() + accumulatorWidth];
+        for (int i = 0; i < groupBy.size(); i++) {
+            row[i] = metadata.column(groupBy.get(i)).valueOf(entity);
+        }
+        int position = groupBy.size();
+        for (final Aggregate aggregate : aggregates) {
+            final Object value = aggregate.isOverAllRows() ? null : metadata.column(aggregate.getColumn()).valueOf(entity);
+            switch (aggregate.getFunction()) {
+                case COUNT:
+                    row[position] = aggregate.isOverAllRows() || value != null ? 1L : 0L;
+                    break;
+                case AVG:
+                    row[position] = value;
+                    row[position + 1] = value != null ? 1L : 0L;
+                    break;
+                default:
+                    row[position] = value;
+            }
+            position += aggregate.partialWidth();
+        }
+        return row;
+    }
+
+    List<AggregateRow> merge(final List<List<Object[]>> partials) {
+        final Map<List<Object>, Object[]> merged = new LinkedHashMap<>();
+        for (final List<Object[]> shardRows : partials) {
+            for (final Object[] row : shardRows) {
+                final List<Object> key = Arrays.asList(Arrays.copyOfRange(row, 0, groupBy.size()));
+                combine(merged.computeIfAbsent(key, ignored -> emptyAccumulator()), row);
+            }
+        }
+        if (merged.isEmpty() && groupBy.isEmpty()) {
+            merged.put(List.of(), emptyAccumulator());
+        }
+        return merged.entrySet().stream()
+                .map(entry -> new AggregateRow(entry.getKey(), finish(entry.getValue())))
+                .collect(toList());
+    }
+
+    private Object[] emptyAccumulator() {
+        final Object[] accumulator = new Object[accumulatorWidth];
+        int position = 0;
+        for (final Aggregate aggregate : aggregates) {
+            if (aggregate.getFunction() == Aggregate.Function.COUNT) {
+                accumulator[position] = 0L;
+            } else if (aggregate.getFunction() == Aggregate.Function.AVG) {
+                accumulator[position + 1] = 0L;
+            }
+            position += aggregate.partialWidth();
+        }
+        return accumulator;
+    }
+
+    private void combine(final Object[] accumulator, final Object[] row) {
+        int position = 0;
+        for (final Aggregate aggregate : aggregates) {
+            final Object value = row[groupBy.size() + position];
+            switch (aggregate.getFunction()) {
+                case COUNT:
+                    accumulator[position] = (Long) accumulator[position] + countOf(value);
+                    break;
+                case SUM:
+                    accumulator[position] = add(accumulator[position], value);
+                    break;
+                case MIN:
+                    accumulator[position] = pick(accumulator[position], value, -1);
+                    break;
+                case MAX:
+                    accumulator[position] = pick(accumulator[position], value, 1);
+                    break;
+                case AVG:
+                    accumulator[position] = add(accumulator[position], value);
+                    accumulator[position + 1] = (Long) accumulator[position + 1] + countOf(row[groupBy.size() + position + 1]);
+                    break;
+                default:
+                    throw new IllegalStateException(format("Unsupported aggregate %s.", aggregate.getFunction()));
+            }
+            position += aggregate.partialWidth();
+        }
+    }
+
+    private Map<String, Object> finish(final Object[] accumulator) {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        int position = 0;
+        for (final Aggregate aggregate : aggregates) {
+            if (aggregate.getFunction() == Aggregate.Function.AVG) {
+                final long count = (Long) accumulator[position + 1];
+                values.put(aggregate.getAlias(), count == 0
+                        ? null
+                        : ((BigDecimal) accumulator[position]).divide(BigDecimal.valueOf(count), MathContext.DECIMAL64));
+            } else {
+                values.put(aggregate.getAlias(), accumulator[position]);
+            }
+            position += aggregate.partialWidth();
+        }
+        return values;
+    }
+
+    private static long countOf(final Object value) {
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    private static BigDecimal add(final Object accumulated, final Object value) {
+        if (value == null) {
+            return (BigDecimal) accumulated;
+        }
+        final BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+        return accumulated == null ? decimal : ((BigDecimal) accumulated).add(decimal);
+    }
+
+    private static Object pick(final Object accumulated, final Object value, final int direction) {
+        if (value == null) {
+            return accumulated;
+        }
+        if (accumulated == null) {
+            return value;
+        }
+        final int comparison = ((Comparable<Object>) value).compareTo(accumulated);
+        return Integer.signum(comparison) == direction ? value : accumulated;
+    }
+}
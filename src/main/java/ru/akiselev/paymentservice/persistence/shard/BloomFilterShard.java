@@ -0,0 +1,155 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * Knows only the ids inserted through this process, so it may be used only while no other instance writes to
+ * the shard; the service enforces that with an exclusive cluster lock.
+ */
+public class BloomFilterShard implements Shard, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BloomFilterShard.class);
+
+    private final Shard delegate;
+    private final Class<?> entityClass;
+    private final BloomFilter<Object> ids;
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    public BloomFilterShard(final Shard delegate, final Class<?> entityClass, final long expectedInsertions,
+                            final double falsePositiveProbability, final Executor warmUpExecutor) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(entityClass);
+        this.delegate = delegate;
+        this.entityClass = entityClass;
+        this.ids = BloomFilter.create(IdFunnel.INSTANCE, expectedInsertions, falsePositiveProbability);
+        warmUpExecutor.execute(this::warmUp);
+    }
+
+    /**
+     * Ids inserted while the existing ones are streamed are put by the insert methods, so the filter is complete
+     * once the stream ends. Until then every id is probed in the database.
+     */
+    private void warmUp() {
+        final EntityMetadata metadata = EntityMetadata.of(entityClass);
+        try (final SessionToken.Scope primary = SessionToken.primaryOnly().bind();
+             final Stream<Object> rows = delegate.stream(entityClass, "", List.of())) {
+            rows.forEach(row -> put(metadata.idValueOf(row)));
+            ready = true;
+        } catch (RuntimeException e) {
+            if (!closed) {
+                LOG.warn("Cannot warm up the existence filter of shard {}, its ids are probed in the database.", getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public boolean mightContain(final Class<?> tClass, final Object id) {
+        return tClass != entityClass || !ready || ids.mightContain(id);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return delegate.isAvailable();
+    }
+
+    @Override
+    public int getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
+        final ID id = delegate.insert(entity, tClass);
+        if (tClass == entityClass) {
+            put(id);
+        }
+        return id;
+    }
+
+    @Override
+    public <T, ID> List<ID> executeQuery(final String query, final Class<T> idClass) {
+        return delegate.executeQuery(query, idClass);
+    }
+
+    @Override
+    public List<Object[]> selectRows(final String sqlQuery, final List<Object> parameters) {
+        return delegate.selectRows(sqlQuery, parameters);
+    }
+
+    @Override
+    public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+        final List<ID> inserted = delegate.insertAllInBatch(entities, tClass);
+        if (tClass == entityClass) {
+            inserted.forEach(this::put);
+        }
+        return inserted;
+    }
+
+    @Override
+    public <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters) {
+        return delegate.findAll(tClass, s, parameters);
+    }
+
+    @Override
+    public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        return delegate.stream(tClass, condition, parameters);
+    }
+
+    @Override
+    public <T> T findOne(final Class<T> tClass, final String s, final List<Object> parameters) {
+        return delegate.findOne(tClass, s, parameters);
+    }
+
+    @Override
+    public <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass) {
+        if (tClass == entityClass) {
+            final EntityMetadata metadata = EntityMetadata.of(tClass);
+            entities.forEach(entity -> put(metadata.idValueOf(entity)));
+        }
+        return delegate.insertAllIfAbsent(entities, tClass);
+    }
+
+    @Override
+    public int delete(final Class<?> tClass, final String condition, final List<Object> parameters) {
+        return delegate.delete(tClass, condition, parameters);
+    }
+
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        if (delegate instanceof AutoCloseable) {
+            ((AutoCloseable) delegate).close();
+        }
+    }
+
+    private void put(final Object id) {
+        if (id != null) {
+            ids.put(id);
+        }
+    }
+
+    private enum IdFunnel implements Funnel<Object> {
+        INSTANCE;
+
+        @Override
+        public void funnel(final Object id, final PrimitiveSink into) {
+            if (id instanceof Long || id instanceof Integer || id instanceof Short) {
+                into.putLong(((Number) id).longValue());
+            } else {
+                into.putString(id.toString(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
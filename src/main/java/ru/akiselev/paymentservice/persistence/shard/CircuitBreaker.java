@@ -0,0 +1,168 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int probeFailureThreshold;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private int probeFailures;
+    private int trialCalls;
+    private int trialSuccesses;
+    private long halfOpenedAt;
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+
+    public CircuitBreaker(final int windowSize, final double failureRateThreshold, final long slowCallMillis,
+                          final double slowCallRateThreshold, final long openMillis, final int probeFailureThreshold,
+                          final int halfOpenCalls) {
+        this(windowSize, failureRateThreshold, slowCallMillis, slowCallRateThreshold, openMillis, probeFailureThreshold,
+                halfOpenCalls, System::nanoTime);
+    }
+
+    CircuitBreaker(final int windowSize, final double failureRateThreshold, final long slowCallMillis,
+                   final double slowCallRateThreshold, final long openMillis, final int probeFailureThreshold,
+                   final int halfOpenCalls, final LongSupplier clock) {
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive, but got %s.", windowSize);
+        Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1,
+                "Failure rate threshold must be in (0, 1], but got %s.", failureRateThreshold);
+        Preconditions.checkArgument(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1,
+                "Slow call rate threshold must be in (0, 1], but got %s.", slowCallRateThreshold);
+        Preconditions.checkArgument(slowCallMillis > 0, "Slow call duration must be positive, but got %s.", slowCallMillis);
+        Preconditions.checkArgument(openMillis >= 0, "Open duration must not be negative, but got %s.", openMillis);
+        Preconditions.checkArgument(probeFailureThreshold > 0,
+                "Probe failure threshold must be positive, but got %s.", probeFailureThreshold);
+        Preconditions.checkArgument(halfOpenCalls > 0, "Half-open trial calls must be positive, but got %s.", halfOpenCalls);
+        this.windowSize = windowSize;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.probeFailureThreshold = probeFailureThreshold;
+        this.halfOpenCalls = halfOpenCalls;
+        this.clock = clock;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public synchronized boolean allowsCalls() {
+        return state == State.CLOSED || state == State.HALF_OPEN && trialCalls < halfOpenCalls;
+    }
+
+    /**
+     * A half-open breaker lets through only a few trial calls; the rest fail fast until the trials close or reopen it.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.HALF_OPEN && trialCalls < halfOpenCalls) {
+            trialCalls++;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Gives back the permit of a call that was cancelled and so says nothing about the shard.
+     */
+    synchronized void release() {
+        if (state == State.HALF_OPEN && trialCalls > 0) {
+            trialCalls--;
+        }
+    }
+
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    public synchronized void record(final long startedAt, final boolean succeeded) {
+        if (state == State.OPEN) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (startedAt - halfOpenedAt < 0) {
+                return;
+            }
+            if (!succeeded || clock.getAsLong() - startedAt >= slowCallNanos) {
+                open();
+            } else if (++trialSuccesses >= halfOpenCalls) {
+                reset();
+            }
+            return;
+        }
+        if (recorded == windowSize) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failed[next] = !succeeded;
+        slow[next] = clock.getAsLong() - startedAt >= slowCallNanos;
+        failures += failed[next] ? 1 : 0;
+        slowCalls += slow[next] ? 1 : 0;
+        next = (next + 1) % windowSize;
+        if (recorded == windowSize
+                && (failures >= failureRateThreshold * windowSize || slowCalls >= slowCallRateThreshold * windowSize)) {
+            open();
+        }
+    }
+
+    synchronized boolean probeDue() {
+        return state != State.OPEN || clock.getAsLong() - openedAt >= openNanos;
+    }
+
+    synchronized void probed(final boolean succeeded) {
+        if (succeeded) {
+            probeFailures = 0;
+            if (state == State.OPEN) {
+                halfOpen();
+            }
+        } else if (state != State.CLOSED || ++probeFailures >= probeFailureThreshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        probeFailures = 0;
+    }
+
+    private void halfOpen() {
+        trialCalls = 0;
+        trialSuccesses = 0;
+        halfOpenedAt = clock.getAsLong();
+        state = State.HALF_OPEN;
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+        state = State.CLOSED;
+    }
+}
@@ -0,0 +1,14 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+public interface ClusterLock {
+
+    ClusterLock SINGLE_PROCESS = () -> () -> { };
+
+    Lease acquireExclusive();
+
+    interface Lease extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
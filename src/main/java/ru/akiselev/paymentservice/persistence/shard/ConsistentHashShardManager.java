@@ -0,0 +1,80 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public class ConsistentHashShardManager extends HashShardManager {
+
+    private static final HashFunction RING_HASH = Hashing.murmur3_128();
+
+    private final long[] ring;
+    private final int[] owners;
+
+    public ConsistentHashShardManager(final List<Shard> shards, final FanOutExecutor fanOutExecutor,
+                                      final int virtualNodes, final Map<Integer, Integer> weights) {
+        super(shards, fanOutExecutor);
+        Preconditions.checkArgument(virtualNodes > 0, "Virtual nodes count must be positive, but got %s.", virtualNodes);
+        Preconditions.checkNotNull(weights);
+
+        final int pointCount = this.shards.keySet().stream()
+                .mapToInt(shardId -> virtualNodes * weightOf(weights, shardId))
+                .sum();
+        final long[][] points = new long[pointCount][];
+        int next = 0;
+        for (final Integer shardId : this.shards.keySet()) {
+            final int shardPoints = virtualNodes * weightOf(weights, shardId);
+            for (int replica = 0; replica < shardPoints; replica++) {
+                final long position = RING_HASH.newHasher().putInt(shardId).putInt(replica).hash().asLong();
+                points[next++] = new long[]{position, shardId};
+            }
+        }
+        Arrays.sort(points, Comparator.comparingLong(point -> point[0]));
+
+        this.ring = new long[pointCount];
+        this.owners = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+    }
+
+    @Override
+    protected int evaluateShardIdForKey(final Object shardKey) {
+        Preconditions.checkNotNull(shardKey, "Shard key cannot be null.");
+        final int index = Arrays.binarySearch(ring, positionOf(shardKey));
+        final int point = index >= 0 ? index : -(index + 1);
+        return owners[point == ring.length ? 0 : point];
+    }
+
+    private static int weightOf(final Map<Integer, Integer> weights, final Integer shardId) {
+        final int weight = weights.getOrDefault(shardId, 1);
+        Preconditions.checkArgument(weight > 0, "Weight of shard %s must be positive, but got %s.", shardId, weight);
+        return weight;
+    }
+
+    private static long positionOf(final Object shardKey) {
+        if (shardKey instanceof Long || shardKey instanceof Integer || shardKey instanceof Short) {
+            return mix(((Number) shardKey).longValue());
+        } else if (shardKey instanceof String) {
+            return RING_HASH.hashString((String) shardKey, StandardCharsets.UTF_8).asLong();
+        } else {
+            return mix(shardKey.hashCode());
+        }
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,262 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+public class FanOutExecutor implements AutoCloseable {
+
+    public static final String SKEW_TIMER = "shard.fanout.skew";
+
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+    private final MeterRegistry registry;
+
+    public FanOutExecutor(final int poolSize, final long timeoutMillis) {
+        this(poolSize, timeoutMillis, Metrics.globalRegistry);
+    }
+
+    public FanOutExecutor(final int poolSize, final long timeoutMillis, final MeterRegistry registry) {
+        Preconditions.checkArgument(poolSize > 0, "Fan-out pool size must be positive, but got %s.", poolSize);
+        Preconditions.checkArgument(timeoutMillis > 0, "Fan-out timeout must be positive, but got %s.", timeoutMillis);
+        this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactoryBuilder()
+                .setNameFormat("shard-fan-out-%d")
+                .setDaemon(true)
+                .build());
+        this.timeoutMillis = timeoutMillis;
+        this.registry = Preconditions.checkNotNull(registry);
+    }
+
+    public <R> List<R> invokeAll(final Collection<? extends Shard> shards, final Function<? super Shard, ? extends R> call) {
+        Preconditions.checkNotNull(shards);
+        if (shards.size() == 1) {
+            final Shard shard = shards.iterator().next();
+            return Collections.singletonList(new ReadCancellation(timeoutMillis).running(() -> call.apply(shard)).get());
+        }
+
+        final SessionToken token = SessionToken.current();
+        final ShardSession session = ShardSession.current();
+        final TraceSpan span = TraceSpan.current();
+        final CompletionService<R> completionService = new ExecutorCompletionService<>(executor);
+        final Map<Future<R>, Integer> positions = new HashMap<>();
+        final Map<Future<R>, Shard> owners = new HashMap<>();
+        final List<ShardTask<R>> tasks = newArrayList();
+        final List<R> results = new ArrayList<>(Collections.nCopies(shards.size(), null));
+        try {
+            int position = 0;
+            for (final Shard shard : shards) {
+                final ShardTask<R> task = new ShardTask<>(timeoutMillis, () -> callWith(token, session, span, call, shard));
+                tasks.add(task);
+                final Future<R> future = completionService.submit(task);
+                positions.put(future, position++);
+                owners.put(future, shard);
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long firstDoneAt = 0L;
+            for (int i = 0; i < shards.size(); i++) {
+                final Future<R> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    throw new RuntimeException(format("Shard queries did not complete in %d ms, pending shards: %s.",
+                            timeoutMillis, pendingShardIds(owners)));
+                }
+                if (i == 0) {
+                    firstDoneAt = System.nanoTime();
+                }
+                try {
+                    results.set(positions.get(done), done.get());
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(format("Query failed on shard %d.", owners.get(done).getId()), cause);
+                }
+            }
+            if (shards.size() >= 2) {
+                registry.timer(SKEW_TIMER, "shards", String.valueOf(shards.size()))
+                        .record(System.nanoTime() - firstDoneAt, TimeUnit.NANOSECONDS);
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for shard queries.", e);
+        } finally {
+            tasks.forEach(ShardTask::cancel);
+            positions.keySet().forEach(future -> future.cancel(true));
+            awaitStopped(session, tasks);
+        }
+    }
+
+    public <R> PartialResult<R> invokeAvailable(final Collection<? extends Shard> shards, final Function<? super Shard, ? extends R> call) {
+        Preconditions.checkNotNull(shards);
+        final SessionToken token = SessionToken.current();
+        final ShardSession session = ShardSession.current();
+        final TraceSpan span = TraceSpan.current();
+        final List<Integer> missing = newArrayList();
+        final Map<Future<R>, Shard> owners = new LinkedHashMap<>();
+        final List<ShardTask<R>> tasks = newArrayList();
+        for (final Shard shard : shards) {
+            if (shard.isAvailable()) {
+                final ShardTask<R> task = new ShardTask<>(timeoutMillis, () -> callWith(token, session, span, call, shard));
+                tasks.add(task);
+                owners.put(executor.submit(task), shard);
+            } else {
+                missing.add(shard.getId());
+            }
+        }
+
+        final List<R> results = newArrayList();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (final Map.Entry<Future<R>, Shard> owned : owners.entrySet()) {
+                try {
+                    results.add(owned.getKey().get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException | TimeoutException e) {
+                    missing.add(owned.getValue().getId());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for shard queries.", e);
+        } finally {
+            tasks.forEach(ShardTask::cancel);
+            owners.keySet().forEach(future -> future.cancel(true));
+            awaitStopped(session, tasks);
+        }
+        Collections.sort(missing);
+        return new PartialResult<>(results, missing);
+    }
+
+    private static <R> R callWith(final SessionToken token, final ShardSession session, final TraceSpan span,
+                                  final Function<? super Shard, ? extends R> call, final Shard shard) {
+        try (final SessionToken.Scope tokenScope = token == null ? null : token.bind();
+             final ShardSession.Scope sessionScope = session == null ? null : session.bind();
+             final TraceSpan.Scope spanScope = span == null ? null : span.bind()) {
+            return call.apply(shard);
+        }
+    }
+
+    /**
+     * Cancelled tasks of a session keep using its pinned connections until they notice, so the caller must not
+     * go on to commit or roll back the session before they stop. Their statements are already cancelled, and a
+     * session whose tasks still run after another timeout can no longer be committed.
+     */
+    private <R> void awaitStopped(final ShardSession session, final List<ShardTask<R>> tasks) {
+        if (session == null) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean interrupted = false;
+        for (final ShardTask<R> task : tasks) {
+            while (true) {
+                try {
+                    if (!task.awaitStopped(deadline - System.nanoTime())) {
+                        session.abandon();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <R> List<Integer> pendingShardIds(final Map<Future<R>, Shard> owners) {
+        return owners.entrySet().stream()
+                .filter(entry -> !entry.getKey().isDone())
+                .map(entry -> entry.getValue().getId())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Interrupting a task does not stop a query already running on the shard, so its statements are cancelled
+     * through its {@link ReadCancellation} and bounded by the fan-out timeout on the server side.
+     */
+    private static final class ShardTask<R> implements Callable<R> {
+
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int STOPPED = 2;
+
+        private final Supplier<R> call;
+        private final ReadCancellation cancellation;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private ShardTask(final long timeoutMillis, final Supplier<R> call) {
+            this.cancellation = new ReadCancellation(timeoutMillis);
+            this.call = cancellation.running(call);
+        }
+
+        @Override
+        public R call() throws Exception {
+            if (!state.compareAndSet(PENDING, RUNNING)) {
+                throw new CancellationException("Shard task was cancelled before it started.");
+            }
+            try {
+                return call.get();
+            } finally {
+                synchronized (this) {
+                    state.set(STOPPED);
+                    notifyAll();
+                }
+            }
+        }
+
+        void cancel() {
+            if (state.get() != STOPPED) {
+                cancellation.cancel();
+            }
+        }
+
+        synchronized boolean awaitStopped(final long timeoutNanos) throws InterruptedException {
+            if (state.compareAndSet(PENDING, STOPPED)) {
+                return true;
+            }
+            final long deadline = System.nanoTime() + timeoutNanos;
+            while (state.get() != STOPPED) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+
+public class GroupCommitWriter<T> implements AutoCloseable {
+
+    private static final long POLL_MILLIS = 100L;
+
+    private final ShardManager shardManager;
+    private final Class<T> tClass;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final long enqueueTimeoutMillis;
+    private final ThreadFactory threadFactory;
+    private final ConcurrentMap<Integer, Worker> workers = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public GroupCommitWriter(final ShardManager shardManager, final Class<T> tClass, final int queueCapacity,
+                             final int batchSize, final long lingerMillis, final long enqueueTimeoutMillis) {
+        Preconditions.checkNotNull(shardManager);
+        Preconditions.checkNotNull(tClass);
+        Preconditions.checkArgument(queueCapacity > 0, "Queue capacity must be positive, but got %s.", queueCapacity);
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive, but got %s.", batchSize);
+        Preconditions.checkArgument(lingerMillis >= 0, "Linger time must not be negative, but got %s.", lingerMillis);
+        Preconditions.checkArgument(enqueueTimeoutMillis >= 0, "Enqueue timeout must not be negative, but got %s.", enqueueTimeoutMillis);
+        this.shardManager = shardManager;
+        this.tClass = tClass;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+        this.threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(format("group-commit-%s-%%d", tClass.getSimpleName().toLowerCase()))
+                .setDaemon(true)
+                .build();
+    }
+
+    public <ID> CompletableFuture<List<ID>> submit(final List<T> entities) {
+        Preconditions.checkNotNull(entities);
+        Preconditions.checkState(running, "Group commit writer for %s is closed.", tClass.getSimpleName());
+        final Map<Integer, List<Integer>> positionsByShard = new LinkedHashMap<>();
+        for (int i = 0; i < entities.size(); i++) {
+            positionsByShard.computeIfAbsent(shardManager.evaluateShardIdFor(entities.get(i)), shardId -> newArrayList()).add(i);
+        }
+
+        final List<Pending> pendings = newArrayList();
+        for (final Map.Entry<Integer, List<Integer>> positions : positionsByShard.entrySet()) {
+            final Pending pending = new Pending(positions.getValue().stream().map(entities::get).collect(toList()), SessionToken.current());
+            enqueue(positions.getKey(), pending);
+            pendings.add(pending);
+        }
+
+        return CompletableFuture.allOf(pendings.stream().map(pending -> pending.done).toArray(CompletableFuture[]::new))
+                .thenApply(written -> {
+                    final List<ID> ids = new ArrayList<>(Collections.nCopies(entities.size(), null));
+                    int next = 0;
+                    for (final List<Integer> positions : positionsByShard.values()) {
+                        final List<?> shardIds = pendings.get(next++).done.join();
+                        for (int i = 0; i < positions.size(); i++) {
+                            ids.set(positions.get(i), (ID) shardIds.get(i));
+                        }
+                    }
+                    return ids;
+                });
+    }
+
+    private void enqueue(final int shardId, final Pending pending) {
+        final Worker worker = workers.computeIfAbsent(shardId, Worker::new);
+        try {
+            if (!worker.queue.offer(pending, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException(format("Write queue of shard %s for %s is full, rejected after %s ms.",
+                        shardId, tClass.getSimpleName(), enqueueTimeoutMillis));
+            }
+            if (!running && !worker.thread.isAlive() && worker.queue.remove(pending)) {
+                throw new RuntimeException(format("Group commit writer for %s is closed.", tClass.getSimpleName()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while queueing %s for shard %s.", tClass.getSimpleName(), shardId), e);
+        }
+    }
+
+    /**
+     * Writes queued after a worker made its last check of the queue are failed here, so no caller waits forever.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (final Worker worker : workers.values()) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (final Worker worker : workers.values()) {
+            final List<Pending> abandoned = newArrayList();
+            worker.queue.drainTo(abandoned);
+            worker.fail(abandoned, new IllegalStateException(format("Group commit writer for %s is closed.", tClass.getSimpleName())));
+        }
+    }
+
+    private final class Pending {
+
+        private final List<T> rows;
+        private final SessionToken token;
+        private final CompletableFuture<List<?>> done = new CompletableFuture<>();
+
+        private Pending(final List<T> rows, final SessionToken token) {
+            this.rows = rows;
+            this.token = token;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final int shardId;
+        private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final Thread thread;
+
+        private Worker(final int shardId) {
+            this.shardId = shardId;
+            this.thread = threadFactory.newThread(this);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            final List<Pending> batch = newArrayList();
+            while (running || !queue.isEmpty()) {
+                try {
+                    final Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    fill(batch, first.rows.size());
+                    write(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queue.drainTo(batch);
+                    fail(batch, e);
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void fill(final List<Pending> batch, final int firstRows) throws InterruptedException {
+            int rows = firstRows;
+            final long deadline = System.nanoTime() + lingerNanos;
+            while (rows < batchSize) {
+                final long remaining = deadline - System.nanoTime();
+                final Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+                rows += next.rows.size();
+            }
+        }
+
+        /**
+         * One invalid row must not fail the other callers grouped with it, so a batch is written in its own
+         * session and, once rolled back, written again caller by caller.
+         */
+        private void write(final List<Pending> batch) {
+            final List<T> rows = batch.stream()
+                    .flatMap(pending -> pending.rows.stream())
+                    .collect(toList());
+            final List<Object> ids;
+            try {
+                ids = batch.size() == 1
+                        ? shardManager.saveAllInBatch(rows, tClass)
+                        : shardManager.inSession(() -> shardManager.saveAllInBatch(rows, tClass));
+            } catch (RuntimeException e) {
+                if (batch.size() == 1) {
+                    fail(batch, e);
+                } else {
+                    batch.forEach(this::writeAlone);
+                }
+                return;
+            }
+            int from = 0;
+            for (final Pending pending : batch) {
+                final int to = from + pending.rows.size();
+                complete(pending, ids.subList(from, to));
+                from = to;
+            }
+        }
+
+        private void writeAlone(final Pending pending) {
+            try {
+                complete(pending, shardManager.saveAllInBatch(pending.rows, tClass));
+            } catch (RuntimeException e) {
+                fail(List.of(pending), e);
+            }
+        }
+
+        private void complete(final Pending pending, final List<?> ids) {
+            if (pending.token != null) {
+                pending.token.recordWrite(shardId);
+            }
+            pending.done.complete(ids);
+        }
+
+        private void fail(final List<Pending> batch, final Exception cause) {
+            final RuntimeException failure = new RuntimeException(
+                    format("Group commit of %s rows on shard %s failed.", tClass.getSimpleName(), shardId), cause);
+            batch.forEach(pending -> pending.done.completeExceptionally(failure));
+        }
+    }
+}
@@ -1,91 +1,170 @@
 package ru.akiselev.paymentservice.persistence.shard;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
-import static java.util.stream.Collectors.groupingBy;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.shardIdValueFor;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 public class HashShardManager extends ShardManager {
 
-    public HashShardManager(final List<Shard> shards) {
-        super(shards);
+    public HashShardManager(final List<Shard> shards, final FanOutExecutor fanOutExecutor) {
+        super(shards, fanOutExecutor);
     }
 
     @Override
     public <T> int evaluateShardIdFor(final T entity) {
-        final Object shardIdValue = shardIdValueFor(entity.getClass(), entity);
-        final int hashKey = HashGen.hashKey(shardIdValue);
-        return evaluateShardId(hashKey);
+        final Object shardIdValue = EntityMetadata.of(entity.getClass()).shardKeyValueOf(entity);
+        return evaluateShardIdForKey(shardIdValue);
     }
 
     @Override
     public Shard evaluateShard(final Object id) {
-        final int hashKey = HashGen.hashKey(id);
-        final int shardId = evaluateShardId(hashKey);
+        final ShardEvents.Routing event = new ShardEvents.Routing();
+        event.begin();
+        final int shardId = evaluateShardIdForKey(id);
+        event.end();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.keyType = id == null ? null : id.getClass().getSimpleName();
+            event.commit();
+        }
         return shards.get(shardId);
     }
 
+    protected int evaluateShardIdForKey(final Object shardKey) {
+        final int hashKey = HashGen.hashKey(shardKey);
+        return evaluateShardId(hashKey);
+    }
+
     private int evaluateShardId(final int id) {
         final var shardCount = shards.size();
-        final var hash = id % shardCount;
+        final var hash = Math.floorMod(id, shardCount);
         return hash == 0 ? hash + shardCount : hash;
     }
 
     @Override
     public <T, ID> ID save(final T entity, final Class<T> tClass) {
-        final Object shardIdValue = shardIdValueFor(tClass, entity);
-        final Shard shard = evaluateShard(shardIdValue);
-        return shard.insert(entity, tClass);
+        return traced("save", tClass, () -> {
+            final Object shardIdValue = EntityMetadata.of(tClass).shardKeyValueOf(entity);
+            final Shard shard = evaluateShard(shardIdValue);
+            return shard.insert(entity, tClass);
+        });
     }
 
     @Override
     public <T, ID> List<ID> saveAllInBatch(final List<T> entities, final Class<T> tClass) {
-        final List<ID> ids = newArrayList();
-        final Map<Integer, List<T>> elementMap = entities.stream().collect(groupingBy(this::evaluateShardIdFor));
-        for (final Map.Entry<Integer, List<T>> entry : elementMap.entrySet()) {
-            final Shard shardServer = shards.get(entry.getKey());
-            ids.addAll(shardServer.insertAllInBatch(entry.getValue(), tClass));
+        return traced("saveAllInBatch", tClass, () -> insertGroupedByShard(entities, tClass));
+    }
+
+    private <T, ID> List<ID> insertGroupedByShard(final List<T> entities, final Class<T> tClass) {
+        final Map<Integer, List<Integer>> positionsByShard = new LinkedHashMap<>();
+        for (int i = 0; i < entities.size(); i++) {
+            positionsByShard.computeIfAbsent(evaluateShardIdFor(entities.get(i)), shardId -> newArrayList()).add(i);
+        }
+        final List<Shard> targets = positionsByShard.keySet().stream()
+                .map(shards::get)
+                .collect(toList());
+        final List<List<ID>> generatedIds = fanOutExecutor.invokeAll(targets, shard -> {
+            final List<T> batch = positionsByShard.get(shard.getId()).stream()
+                    .map(entities::get)
+                    .collect(toList());
+            return shard.insertAllInBatch(batch, tClass);
+        });
+
+        final List<ID> ids = new ArrayList<>(Collections.nCopies(entities.size(), null));
+        for (int i = 0; i < targets.size(); i++) {
+            final List<Integer> positions = positionsByShard.get(targets.get(i).getId());
+            final List<ID> shardIds = generatedIds.get(i);
+            Preconditions.checkState(shardIds.size() == positions.size(),
+                    "Expected %s generated keys from shard %s, but got %s.",
+                    positions.size(), targets.get(i).getId(), shardIds.size());
+            for (int j = 0; j < positions.size(); j++) {
+                ids.set(positions.get(j), shardIds.get(j));
+            }
         }
         return ids;
     }
 
     @Override
     public <T, ID> List<ID> executeQuery(final String query, final Class<T> tClass) {
-        final List<ID> result = newArrayList();
-        for (final Shard shard : shards.values()) {
-            final List<ID> elements = shard.executeQuery(query, tClass);
-            result.addAll(elements);
-        }
-        return result;
+        return traced("executeQuery", tClass, () -> concat(fanOutExecutor.invokeAll(shards.values(), shard -> shard.<T, ID>executeQuery(query, tClass))));
     }
 
     @Override
-    protected  <T> List<T> findAll(final Class<? extends T> tClass, final String s) {
-        final List<T> selected = newArrayList();
-        for (final Shard shard : shards.values()) {
-            final List<T> portion = shard.findAll(tClass, s);
-            selected.addAll(portion);
-        }
-        return selected;
+    protected  <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters) {
+        final List<List<T>> portions = fanOutExecutor.invokeAll(shards.values(), shard -> shard.findAll(tClass, s, parameters));
+        return concat(portions);
     }
 
     @Override
-    protected  <T> T findOne(final Class<? extends T> tClass, final String s, final Object shardId) {
+    protected <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        return ShardStreams.concat(shards.values(), shard -> shard.stream(tClass, condition, parameters));
+    }
+
+    @Override
+    protected <T> List<T> findPage(final Class<? extends T> tClass, final String keyColumn, final Object after, final int limit) {
+        final String condition = pageCondition(keyColumn, after);
+        final List<Object> parameters = pageParameters(after, limit);
+        final List<List<T>> portions = fanOutExecutor.invokeAll(shards.values(), shard -> shard.findAll(tClass, condition, parameters));
+        return ShardStreams.mergeSorted(portions, ShardStreams.byColumn(EntityMetadata.of(tClass).column(keyColumn)), limit);
+    }
+
+    @Override
+    protected  <T> T findOne(final Class<? extends T> tClass, final String s, final List<Object> parameters, final Object shardId) {
         Preconditions.checkNotNull(shardId, format("Shard id cannot be null for %s.", tClass.getName()));
         final Shard shard = evaluateShard(shardId);
-        return shard.findOne(tClass, s);
+        return shard.findOne(tClass, s, parameters);
     }
 
     @Override
-    protected <ID> ID executeQuery(final String query, final Class<? extends ID> idClass, final Object shardId) {
-        Preconditions.checkNotNull(shardId, "Shard id cannot be null.");
-        final Shard shard = evaluateShard(shardId);
-        return shard.selectSingle(query, idClass);
+    protected List<AggregateRow> executeAggregation(final Aggregation aggregation) {
+        final Collection<Shard> targets = aggregation.getShardKey() == null
+                ? shards.values()
+                : List.of(evaluateShard(aggregation.getShardKey()));
+        final String query = aggregation.partialSql();
+        final List<List<Object[]>> partials = fanOutExecutor.invokeAll(targets, shard -> shard.selectRows(query, aggregation.getParameters()));
+        return aggregation.merge(partials);
+    }
+
+    @Override
+    protected Set<Object> existingIds(final Class<?> tClass, final Collection<?> ids) {
+        final Map<Integer, List<Object>> candidatesByShard = new LinkedHashMap<>();
+        for (final Object id : ids) {
+            final Shard shard = evaluateShard(id);
+            if (shard.mightContain(tClass, id)) {
+                candidatesByShard.computeIfAbsent(shard.getId(), shardId -> newArrayList()).add(id);
+            }
+        }
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final List<Shard> targets = candidatesByShard.keySet().stream()
+                .map(shards::get)
+                .collect(toList());
+        final List<List<Object[]>> found = fanOutExecutor.invokeAll(targets, shard -> {
+            final List<Object[]> rows = new ArrayList<>();
+            for (final List<Object> chunk : Lists.partition(candidatesByShard.get(shard.getId()), REFERENCE_BATCH_SIZE)) {
+                final String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+                rows.addAll(shard.selectRows(format("select %s from %s where %s in (%s)",
+                        metadata.getIdName(), metadata.getTableName(), metadata.getIdName(), placeholders), chunk));
+            }
+            return rows;
+        });
+        return found.stream()
+                .flatMap(List::stream)
+                .map(row -> row[0])
+                .collect(toSet());
     }
 
     static class HashGen {
@@ -0,0 +1,165 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+public class HealthCheckedShard implements Shard, AutoCloseable {
+
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private final Shard delegate;
+    private final CircuitBreaker breaker;
+    private final BooleanSupplier probe;
+    private final ScheduledFuture<?> scheduledProbe;
+
+    public HealthCheckedShard(final Shard delegate, final CircuitBreaker breaker, final BooleanSupplier probe,
+                              final ScheduledExecutorService scheduler, final long probeIntervalMillis) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(breaker);
+        Preconditions.checkNotNull(probe);
+        Preconditions.checkArgument(probeIntervalMillis > 0, "Probe interval must be positive, but got %s.", probeIntervalMillis);
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.probe = probe;
+        this.scheduledProbe = scheduler.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void probe() {
+        if (!breaker.probeDue()) {
+            return;
+        }
+        boolean healthy;
+        try {
+            healthy = probe.getAsBoolean();
+        } catch (RuntimeException e) {
+            healthy = false;
+        }
+        breaker.probed(healthy);
+    }
+
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return breaker.allowsCalls() && delegate.isAvailable();
+    }
+
+    @Override
+    public int getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public boolean mightContain(final Class<?> tClass, final Object id) {
+        return delegate.mightContain(tClass, id);
+    }
+
+    @Override
+    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
+        return guarded(() -> delegate.insert(entity, tClass));
+    }
+
+    @Override
+    public <T, ID> List<ID> executeQuery(final String query, final Class<T> idClass) {
+        return guarded(() -> delegate.executeQuery(query, idClass));
+    }
+
+    @Override
+    public List<Object[]> selectRows(final String sqlQuery, final List<Object> parameters) {
+        return guarded(() -> delegate.selectRows(sqlQuery, parameters));
+    }
+
+    @Override
+    public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+        return guarded(() -> delegate.insertAllInBatch(entities, tClass));
+    }
+
+    @Override
+    public <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters) {
+        return guarded(() -> delegate.findAll(tClass, s, parameters));
+    }
+
+    @Override
+    public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        return guarded(() -> delegate.stream(tClass, condition, parameters));
+    }
+
+    @Override
+    public <T> T findOne(final Class<T> tClass, final String s, final List<Object> parameters) {
+        return guarded(() -> delegate.findOne(tClass, s, parameters));
+    }
+
+    @Override
+    public <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass) {
+        return guarded(() -> delegate.insertAllIfAbsent(entities, tClass));
+    }
+
+    @Override
+    public int delete(final Class<?> tClass, final String condition, final List<Object> parameters) {
+        return guarded(() -> delegate.delete(tClass, condition, parameters));
+    }
+
+    @Override
+    public void close() throws Exception {
+        scheduledProbe.cancel(false);
+        if (delegate instanceof AutoCloseable) {
+            ((AutoCloseable) delegate).close();
+        }
+    }
+
+    private <R> R guarded(final Supplier<R> call) {
+        if (!breaker.tryAcquire()) {
+            throw new RuntimeException(format("Shard %s is unavailable, its circuit breaker is %s.", getId(),
+                    breaker.getState() == CircuitBreaker.State.OPEN ? "open" : "half-open with all trial calls taken"));
+        }
+        final long startedAt = breaker.now();
+        try {
+            final R result = call.get();
+            breaker.record(startedAt, true);
+            return result;
+        } catch (RuntimeException e) {
+            if (ReadCancellation.isCurrentCancelled()) {
+                breaker.release();
+            } else {
+                breaker.record(startedAt, !isShardFailure(e));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Only lost connections and timeouts say something about the shard; constraint violations and bad queries
+     * fail the same way on a healthy one.
+     */
+    static boolean isShardFailure(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (!(cause instanceof SQLException)) {
+                continue;
+            }
+            for (SQLException current = (SQLException) cause; current != null; current = current.getNextException()) {
+                final String state = current.getSQLState();
+                if (current instanceof SQLTimeoutException || current instanceof SQLTransientConnectionException
+                        || current instanceof SQLNonTransientConnectionException
+                        || state != null && (state.startsWith(CONNECTION_EXCEPTION_CLASS) || state.equals(ReadCancellation.QUERY_CANCELED))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+final class LatencyWindow {
+
+    private final long[] samples;
+    private int next;
+    private int recorded;
+
+    LatencyWindow(final int size) {
+        Preconditions.checkArgument(size > 0, "Latency window size must be positive, but got %s.", size);
+        this.samples = new long[size];
+    }
+
+    synchronized void record(final long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        recorded = Math.min(recorded + 1, samples.length);
+    }
+
+    synchronized int size() {
+        return recorded;
+    }
+
+    long percentile(final double quantile) {
+        Preconditions.checkArgument(quantile > 0 && quantile <= 1, "Quantile must be in (0, 1], but got %s.", quantile);
+        final long[] sorted;
+        synchronized (this) {
+            if (recorded == 0) {
+                return 0L;
+            }
+            sorted = Arrays.copyOf(samples, recorded);
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+}
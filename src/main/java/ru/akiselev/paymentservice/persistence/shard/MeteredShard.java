@@ -0,0 +1,186 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.MeterRegistry;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class MeteredShard implements Shard, AutoCloseable {
+
+    public static final String OPERATION_TIMER = "shard.operation";
+    public static final String ROWS_SUMMARY = "shard.rows";
+    public static final String BATCH_SIZE_SUMMARY = "shard.batch.size";
+    private static final String NO_TABLE = "none";
+    private static final String SUCCESS = "success";
+    private static final String ERROR = "error";
+
+    private final Shard delegate;
+    private final MeterRegistry registry;
+    private final String shardId;
+    private final String role;
+
+    public MeteredShard(final Shard delegate, final MeterRegistry registry, final String role) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(registry);
+        Preconditions.checkNotNull(role);
+        this.delegate = delegate;
+        this.registry = registry;
+        this.shardId = String.valueOf(delegate.getId());
+        this.role = role;
+    }
+
+    @Override
+    public int getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return delegate.isAvailable();
+    }
+
+    @Override
+    public boolean mightContain(final Class<?> tClass, final Object id) {
+        return delegate.mightContain(tClass, id);
+    }
+
+    @Override
+    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
+        return timed("insert", tableOf(tClass), () -> delegate.insert(entity, tClass), id -> 1);
+    }
+
+    @Override
+    public <T, ID> List<ID> executeQuery(final String query, final Class<T> idClass) {
+        return timed("executeQuery", tableOf(idClass), () -> delegate.executeQuery(query, idClass), List::size);
+    }
+
+    @Override
+    public List<Object[]> selectRows(final String sqlQuery, final List<Object> parameters) {
+        return timed("selectRows", NO_TABLE, () -> delegate.selectRows(sqlQuery, parameters), List::size);
+    }
+
+    @Override
+    public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+        final String table = tableOf(tClass);
+        registry.summary(BATCH_SIZE_SUMMARY, tags("insertAllInBatch", table)).record(entities.size());
+        return timed("insertAllInBatch", table, () -> delegate.insertAllInBatch(entities, tClass), List::size);
+    }
+
+    @Override
+    public <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters) {
+        return timed("findAll", tableOf(tClass), () -> delegate.findAll(tClass, s, parameters), List::size);
+    }
+
+    @Override
+    public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final String table = tableOf(tClass);
+        final long startedAt = System.nanoTime();
+        final Stream<T> rows;
+        try {
+            rows = delegate.stream(tClass, condition, parameters);
+        } catch (RuntimeException e) {
+            record("stream", table, ERROR, startedAt);
+            throw e;
+        }
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Iterator<T> iterator = rows.iterator();
+        final Iterator<T> metered = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return iterator.hasNext();
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                }
+            }
+
+            @Override
+            public T next() {
+                try {
+                    final T row = iterator.next();
+                    read.incrementAndGet();
+                    return row;
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(metered, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        rows.close();
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        record("stream", table, failed.get() ? ERROR : SUCCESS, startedAt);
+                        registry.summary(ROWS_SUMMARY, tags("stream", table)).record(read.get());
+                    }
+                });
+    }
+
+    @Override
+    public <T> T findOne(final Class<T> tClass, final String s, final List<Object> parameters) {
+        return timed("findOne", tableOf(tClass), () -> delegate.findOne(tClass, s, parameters),
+                entity -> entity == null ? 0 : 1);
+    }
+
+    @Override
+    public <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass) {
+        final String table = tableOf(tClass);
+        registry.summary(BATCH_SIZE_SUMMARY, tags("insertAllIfAbsent", table)).record(entities.size());
+        return timed("insertAllIfAbsent", table, () -> delegate.insertAllIfAbsent(entities, tClass), Integer::intValue);
+    }
+
+    @Override
+    public int delete(final Class<?> tClass, final String condition, final List<Object> parameters) {
+        return timed("delete", tableOf(tClass), () -> delegate.delete(tClass, condition, parameters), Integer::intValue);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (delegate instanceof AutoCloseable) {
+            ((AutoCloseable) delegate).close();
+        }
+    }
+
+    private <R> R timed(final String operation, final String table, final Supplier<R> call, final ToIntFunction<R> rows) {
+        final long startedAt = System.nanoTime();
+        String outcome = ERROR;
+        try {
+            final R result = call.get();
+            outcome = SUCCESS;
+            registry.summary(ROWS_SUMMARY, tags(operation, table)).record(rows.applyAsInt(result));
+            return result;
+        } finally {
+            record(operation, table, outcome, startedAt);
+        }
+    }
+
+    private void record(final String operation, final String table, final String outcome, final long startedAt) {
+        registry.timer(OPERATION_TIMER, "shard", shardId, "role", role, "table", table, "operation", operation, "outcome", outcome)
+                .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+    }
+
+    private String[] tags(final String operation, final String table) {
+        return new String[]{"shard", shardId, "role", role, "table", table, "operation", operation};
+    }
+
+    private static String tableOf(final Class<?> tClass) {
+        return EntityMetadata.of(tClass).getTableName();
+    }
+}
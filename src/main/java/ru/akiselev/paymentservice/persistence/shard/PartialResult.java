@@ -0,0 +1,18 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public final class PartialResult<T> {
+
+    private final List<T> results;
+    private final List<Integer> missingShardIds;
+
+    public boolean isComplete() {
+        return missingShardIds.isEmpty();
+    }
+}
@@ -0,0 +1,99 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+public class QueryLog {
+
+    public static final String OTHER_FINGERPRINT = "<other>";
+    static final QueryLog NONE = new QueryLog(0.0, Long.MAX_VALUE, 0);
+    private static final Logger LOG = LoggerFactory.getLogger(QueryLog.class);
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final double sampleRate;
+    private final long slowQueryNanos;
+    private final int maxFingerprints;
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Counters>> counters = new ConcurrentHashMap<>();
+
+    public QueryLog(final double sampleRate, final long slowQueryMillis, final int maxFingerprints) {
+        Preconditions.checkArgument(sampleRate >= 0.0 && sampleRate <= 1.0,
+                "Query log sample rate must be within [0, 1], but got %s.", sampleRate);
+        Preconditions.checkArgument(slowQueryMillis >= 0, "Slow query threshold cannot be negative, but got %s.", slowQueryMillis);
+        Preconditions.checkArgument(maxFingerprints >= 0, "Fingerprint limit cannot be negative, but got %s.", maxFingerprints);
+        this.sampleRate = sampleRate;
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    void executed(final int shardId, final String operation, final String query, final long elapsedNanos, final int rows) {
+        if (maxFingerprints > 0) {
+            countersFor(shardId, query).record(elapsedNanos, rows);
+        }
+        if (elapsedNanos >= slowQueryNanos) {
+            LOG.warn("Slow {} on shard {} took {} ms: {}", operation, shardId, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), query);
+        } else if (sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            LOG.info("{} on shard {} took {} ms: {}", operation, shardId, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), query);
+        }
+    }
+
+    void mapped(final int shardId, final String query, final int rows) {
+        if (maxFingerprints > 0) {
+            countersFor(shardId, query).rows.add(rows);
+        }
+    }
+
+    public List<QueryStatistics> statistics() {
+        return counters.entrySet().stream()
+                .flatMap(byFingerprint -> byFingerprint.getValue().entrySet().stream()
+                        .map(byShard -> byShard.getValue().snapshot(byFingerprint.getKey(), byShard.getKey())))
+                .sorted(Comparator.comparingDouble(QueryStatistics::getTotalMillis).reversed())
+                .collect(Collectors.toList());
+    }
+
+    public void reset() {
+        counters.clear();
+    }
+
+    private Counters countersFor(final int shardId, final String query) {
+        final String fingerprint = SqlFingerprint.of(query);
+        Map<Integer, Counters> byShard = counters.get(fingerprint);
+        if (byShard == null) {
+            final String key = counters.size() < maxFingerprints ? fingerprint : OTHER_FINGERPRINT;
+            byShard = counters.computeIfAbsent(key, ignored -> new ConcurrentHashMap<>());
+        }
+        final Counters existing = byShard.get(shardId);
+        return existing != null ? existing : byShard.computeIfAbsent(shardId, ignored -> new Counters());
+    }
+
+    private static final class Counters {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder rows = new LongAdder();
+
+        void record(final long elapsedNanos, final int rowCount) {
+            calls.increment();
+            totalNanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+            rows.add(rowCount);
+        }
+
+        QueryStatistics snapshot(final String fingerprint, final int shardId) {
+            return new QueryStatistics(fingerprint, shardId, calls.sum(), totalNanos.sum() / NANOS_PER_MILLI,
+                    maxNanos.get() / NANOS_PER_MILLI, rows.sum());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public final class QueryStatistics {
+
+    private final String fingerprint;
+    private final int shardId;
+    private final long calls;
+    private final double totalMillis;
+    private final double maxMillis;
+    private final long rows;
+
+    public double getMeanMillis() {
+        return calls == 0 ? 0.0 : totalMillis / calls;
+    }
+}
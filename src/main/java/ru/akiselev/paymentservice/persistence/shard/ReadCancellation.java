@@ -0,0 +1,117 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+final class ReadCancellation {
+
+    static final String QUERY_CANCELED = "57014";
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final ThreadLocal<ReadCancellation> CURRENT = new ThreadLocal<>();
+
+    private final List<Statement> statements = newArrayList();
+    private final List<ReadCancellation> children = newArrayList();
+    private final long deadlineNanos;
+    private boolean cancelled;
+
+    ReadCancellation() {
+        this(NO_DEADLINE);
+    }
+
+    /**
+     * A read started inside another one, e.g. a hedged replica read of a fan-out task, is cancelled together with
+     * it and never outlives its deadline.
+     */
+    ReadCancellation(final long timeoutMillis) {
+        final ReadCancellation parent = CURRENT.get();
+        final long deadline = timeoutMillis == NO_DEADLINE
+                ? NO_DEADLINE
+                : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.deadlineNanos = parent == null ? deadline : earlier(deadline, parent.deadlineNanos);
+        if (parent != null) {
+            parent.adopt(this);
+        }
+    }
+
+    private static long earlier(final long deadline, final long other) {
+        if (deadline == NO_DEADLINE) {
+            return other;
+        }
+        return other == NO_DEADLINE || deadline - other < 0 ? deadline : other;
+    }
+
+    static ReadCancellation current() {
+        return CURRENT.get();
+    }
+
+    static boolean isCurrentCancelled() {
+        final ReadCancellation current = CURRENT.get();
+        return current != null && current.isCancelled();
+    }
+
+    <R> Supplier<R> running(final Supplier<R> read) {
+        return () -> {
+            final ReadCancellation previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return read.get();
+            } finally {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        };
+    }
+
+    synchronized void track(final Statement statement) throws SQLException {
+        if (cancelled) {
+            throw new SQLException("Read was cancelled before its statement was executed.", QUERY_CANCELED);
+        }
+        if (deadlineNanos != NO_DEADLINE) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new SQLException("Read timed out before its statement was executed.", QUERY_CANCELED);
+            }
+            statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toSeconds(remainingMillis + 999)));
+        }
+        statements.add(statement);
+    }
+
+    private synchronized void adopt(final ReadCancellation child) {
+        if (cancelled) {
+            child.cancel();
+        } else {
+            children.add(child);
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Aborts statements still executing on the server; their owner thread closes them once the cancelled call fails.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        for (final Statement statement : statements) {
+            try {
+                if (!statement.isClosed()) {
+                    statement.cancel();
+                }
+            } catch (SQLException e) {
+                // the statement has completed and been closed concurrently
+            }
+        }
+        statements.clear();
+        children.forEach(ReadCancellation::cancel);
+        children.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+
+public class Rebalancer {
+
+    private final ReshardingShardManager shardManager;
+    private final int chunkSize;
+    private final RateLimiter rateLimiter;
+    private final ClusterLock clusterLock;
+
+    public Rebalancer(final ReshardingShardManager shardManager, final int chunkSize, final double rowsPerSecond) {
+        this(shardManager, chunkSize, rowsPerSecond, ClusterLock.SINGLE_PROCESS);
+    }
+
+    /**
+     * The shard map and its switch lock live in this process only, so other instances would keep routing writes
+     * with the old map. The cluster lock makes sure no other instance is running while rows are being moved.
+     */
+    public Rebalancer(final ReshardingShardManager shardManager, final int chunkSize, final double rowsPerSecond,
+                      final ClusterLock clusterLock) {
+        Preconditions.checkNotNull(shardManager);
+        Preconditions.checkNotNull(clusterLock);
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive, but got %s.", chunkSize);
+        Preconditions.checkArgument(rowsPerSecond > 0, "Rows per second must be positive, but got %s.", rowsPerSecond);
+        this.shardManager = shardManager;
+        this.chunkSize = chunkSize;
+        this.rateLimiter = RateLimiter.create(rowsPerSecond);
+        this.clusterLock = clusterLock;
+    }
+
+    public long rebalance(final ShardManager target, final List<Class<?>> entityClasses) {
+        return rebalance(target, Set.of(), entityClasses);
+    }
+
+    /**
+     * Moves rows whose owner changes under the target routing, and all rows of the relocated shard ids, whose
+     * target shards keep the id but store the data in another database.
+     */
+    public long rebalance(final ShardManager target, final Set<Integer> relocated, final List<Class<?>> entityClasses) {
+        return migrate(target, relocated, entityClasses, true);
+    }
+
+    /**
+     * Moves only the rows of the relocated shard ids, for a target with the same routing as the current shards.
+     */
+    public long relocate(final ShardManager target, final Set<Integer> relocated, final List<Class<?>> entityClasses) {
+        return migrate(target, relocated, entityClasses, false);
+    }
+
+    /**
+     * Switches to shards that serve the same data with the same routing, e.g. after replicas changed.
+     */
+    public synchronized void replaceShards(final ShardManager replacement) {
+        Preconditions.checkNotNull(replacement);
+        shardManager.replaceShards(replacement);
+    }
+
+    private synchronized long migrate(final ShardManager target, final Set<Integer> relocated,
+                                      final List<Class<?>> entityClasses, final boolean routingChanged) {
+        Preconditions.checkNotNull(target);
+        Preconditions.checkNotNull(relocated);
+        Preconditions.checkNotNull(entityClasses);
+        try (final ClusterLock.Lease exclusive = clusterLock.acquireExclusive();
+             final SessionToken.Scope primary = SessionToken.primaryOnly().bind()) {
+            final ShardMap migrating = shardManager.beginMigration(target, relocated);
+            long copied = 0;
+            for (final Class<?> entityClass : entityClasses) {
+                for (final Shard shard : migrating.getRouter().shards.values()) {
+                    if (routingChanged || relocated.contains(shard.getId())) {
+                        copied += copy(shard, migrating, entityClass);
+                    }
+                }
+            }
+
+            final ShardMap cleaning = shardManager.switchToTarget();
+            for (final Class<?> entityClass : entityClasses) {
+                for (final Shard shard : cleaning.getPrevious().shards.values()) {
+                    if (routingChanged && !relocated.contains(shard.getId())) {
+                        cleanUp(shard, cleaning.getRouter(), entityClass);
+                    }
+                }
+            }
+            shardManager.completeMigration();
+            return copied;
+        }
+    }
+
+    private <T> long copy(final Shard shard, final ShardMap migrating, final Class<T> tClass) {
+        final ShardManager target = migrating.getTarget();
+        final Object highWaterMark = maxId(shard, tClass);
+        long copied = 0;
+        for (List<T> chunk = nextChunk(shard, tClass, null, highWaterMark); !chunk.isEmpty();
+             chunk = nextChunk(shard, tClass, chunk, highWaterMark)) {
+            rateLimiter.acquire(chunk.size());
+            for (final Map.Entry<Integer, List<T>> moved : movedBy(shard, migrating, chunk).entrySet()) {
+                final Shard owner = target.shards.get(moved.getKey());
+                Preconditions.checkState(owner != null, "Target shard %s is not registered.", moved.getKey());
+                copied += ReshardingShardManager.copyRows(owner, moved.getValue(), tClass);
+            }
+        }
+        return copied;
+    }
+
+    private <T> void cleanUp(final Shard shard, final ShardManager router, final Class<T> tClass) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final Object highWaterMark = maxId(shard, tClass);
+        for (List<T> chunk = nextChunk(shard, tClass, null, highWaterMark); !chunk.isEmpty();
+             chunk = nextChunk(shard, tClass, chunk, highWaterMark)) {
+            rateLimiter.acquire(chunk.size());
+            final List<Object> staleIds = notOwnedBy(shard, router, chunk).values().stream()
+                    .flatMap(List::stream)
+                    .map(metadata::idValueOf)
+                    .collect(toList());
+            if (!staleIds.isEmpty()) {
+                final String placeholders = String.join(",", Collections.nCopies(staleIds.size(), "?"));
+                shard.delete(tClass, format("where %s in (%s)", metadata.getIdName(), placeholders), staleIds);
+            }
+        }
+    }
+
+    private <T> Object maxId(final Shard shard, final Class<T> tClass) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final List<T> last = shard.findAll(tClass, format("order by %s desc limit 1", metadata.getIdName()), List.of());
+        return last.isEmpty() ? null : metadata.idValueOf(last.get(0));
+    }
+
+    private <T> List<T> nextChunk(final Shard shard, final Class<T> tClass, final List<T> previousChunk,
+                                  final Object highWaterMark) {
+        if (highWaterMark == null) {
+            return List.of();
+        }
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final String idName = metadata.getIdName();
+        if (previousChunk == null) {
+            return shard.findAll(tClass, format("where %s<=? order by %s limit ?", idName, idName),
+                    List.of(highWaterMark, chunkSize));
+        }
+        final Object lastId = metadata.idValueOf(previousChunk.get(previousChunk.size() - 1));
+        return shard.findAll(tClass, format("where %s>? and %s<=? order by %s limit ?", idName, idName, idName),
+                List.of(lastId, highWaterMark, chunkSize));
+    }
+
+    private static <T> Map<Integer, List<T>> movedBy(final Shard shard, final ShardMap migrating, final List<T> rows) {
+        final Map<Integer, List<T>> byTarget = new LinkedHashMap<>();
+        for (final T row : rows) {
+            final int owner = migrating.getTarget().evaluateShardIdFor(row);
+            if (migrating.moves(shard.getId(), owner)) {
+                byTarget.computeIfAbsent(owner, shardId -> newArrayList()).add(row);
+            }
+        }
+        return byTarget;
+    }
+
+    private static <T> Map<Integer, List<T>> notOwnedBy(final Shard shard, final ShardManager router, final List<T> rows) {
+        final Map<Integer, List<T>> byOwner = new LinkedHashMap<>();
+        for (final T row : rows) {
+            final int owner = router.evaluateShardIdFor(row);
+            if (owner != shard.getId()) {
+                byOwner.computeIfAbsent(owner, shardId -> newArrayList()).add(row);
+            }
+        }
+        return byOwner;
+    }
+}
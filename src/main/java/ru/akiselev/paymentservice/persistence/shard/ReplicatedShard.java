@@ -0,0 +1,335 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+
+public class ReplicatedShard implements Shard, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicatedShard.class);
+    private static final long UNKNOWN_LAG = Long.MAX_VALUE;
+    private static final long NO_HEDGE = Long.MAX_VALUE;
+    private static final double HEDGE_QUANTILE = 0.95;
+    private static final int LATENCY_WINDOW = 1_000;
+    private static final int MIN_HEDGE_SAMPLES = 100;
+
+    private final Shard primary;
+    private final List<Replica> replicas;
+    private final ReplicationLag replicationLag;
+    private final long maxLagMillis;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ScheduledFuture<?> lagProbe;
+    private final Executor hedgeExecutor;
+    private final long minHedgeDelayNanos;
+    private final Map<ReadOperation, ReadLatency> latencies = new EnumMap<>(ReadOperation.class);
+
+    public ReplicatedShard(final Shard primary, final List<Shard> replicas, final ReplicationLag replicationLag,
+                           final long maxLagMillis, final ScheduledExecutorService scheduler, final long probeIntervalMillis) {
+        this(primary, replicas, replicationLag, maxLagMillis, scheduler, probeIntervalMillis, null, 0L);
+    }
+
+    public ReplicatedShard(final Shard primary, final List<Shard> replicas, final ReplicationLag replicationLag,
+                           final long maxLagMillis, final ScheduledExecutorService scheduler, final long probeIntervalMillis,
+                           final Executor hedgeExecutor, final long minHedgeDelayMillis) {
+        Preconditions.checkNotNull(primary);
+        Preconditions.checkNotNull(replicationLag);
+        Preconditions.checkArgument(maxLagMillis >= 0, "Max replication lag must not be negative, but got %s.", maxLagMillis);
+        Preconditions.checkArgument(probeIntervalMillis > 0, "Lag probe interval must be positive, but got %s.", probeIntervalMillis);
+        replicas.forEach(replica -> Preconditions.checkArgument(replica.getId() == primary.getId(),
+                "Replica of shard %s has id %s.", primary.getId(), replica.getId()));
+        this.primary = primary;
+        this.replicas = replicas.stream().map(Replica::new).collect(toList());
+        this.replicationLag = replicationLag;
+        this.maxLagMillis = maxLagMillis;
+        this.hedgeExecutor = hedgeExecutor;
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+        for (final ReadOperation operation : ReadOperation.values()) {
+            latencies.put(operation, new ReadLatency());
+        }
+        this.lagProbe = replicas.isEmpty()
+                ? null
+                : scheduler.scheduleWithFixedDelay(this::probeLag, 0L, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void probeLag() {
+        for (final Replica replica : replicas) {
+            try {
+                replica.lagMillis = replicationLag.lagMillis(replica.shard);
+            } catch (RuntimeException e) {
+                replica.lagMillis = UNKNOWN_LAG;
+            }
+        }
+        for (final ReadLatency latency : latencies.values()) {
+            latency.hedgeDelayNanos = latency.window.size() < MIN_HEDGE_SAMPLES
+                    ? NO_HEDGE
+                    : Math.max(minHedgeDelayNanos, latency.window.percentile(HEDGE_QUANTILE));
+        }
+    }
+
+    @Override
+    public int getId() {
+        return primary.getId();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return primary.isAvailable();
+    }
+
+    @Override
+    public boolean mightContain(final Class<?> tClass, final Object id) {
+        return primary.mightContain(tClass, id);
+    }
+
+    @Override
+    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
+        return written(primary.insert(entity, tClass));
+    }
+
+    @Override
+    public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+        return written(primary.insertAllInBatch(entities, tClass));
+    }
+
+    @Override
+    public <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass) {
+        return written(primary.insertAllIfAbsent(entities, tClass));
+    }
+
+    @Override
+    public int delete(final Class<?> tClass, final String condition, final List<Object> parameters) {
+        return written(primary.delete(tClass, condition, parameters));
+    }
+
+    @Override
+    public <T, ID> List<ID> executeQuery(final String query, final Class<T> idClass) {
+        return read(ReadOperation.EXECUTE_QUERY, shard -> shard.executeQuery(query, idClass));
+    }
+
+    @Override
+    public List<Object[]> selectRows(final String sqlQuery, final List<Object> parameters) {
+        return read(ReadOperation.SELECT_ROWS, shard -> shard.selectRows(sqlQuery, parameters));
+    }
+
+    @Override
+    public <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters) {
+        return read(ReadOperation.FIND_ALL, shard -> shard.findAll(tClass, s, parameters));
+    }
+
+    @Override
+    public <T> T findOne(final Class<T> tClass, final String s, final List<Object> parameters) {
+        return read(ReadOperation.FIND_ONE, shard -> shard.findOne(tClass, s, parameters));
+    }
+
+    @Override
+    public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final Replica replica = chooseReplica(null);
+        if (replica == null) {
+            return primary.stream(tClass, condition, parameters);
+        }
+        replica.outstanding.incrementAndGet();
+        try {
+            return replica.shard.<T>stream(tClass, condition, parameters)
+                    .onClose(replica.outstanding::decrementAndGet);
+        } catch (RuntimeException e) {
+            replica.outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (lagProbe != null) {
+            lagProbe.cancel(false);
+        }
+        replicas.forEach(replica -> closeQuietly(replica.shard));
+        closeQuietly(primary);
+    }
+
+    private static void closeQuietly(final Shard shard) {
+        if (shard instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) shard).close();
+            } catch (Exception e) {
+                LOG.warn("Cannot close a connection pool of shard {}.", shard.getId(), e);
+            }
+        }
+    }
+
+    private <R> R written(final R result) {
+        final SessionToken token = SessionToken.current();
+        if (token != null) {
+            token.recordWrite(getId());
+        }
+        return result;
+    }
+
+    private <R> R read(final ReadOperation operation, final Function<Shard, R> query) {
+        final Replica replica = chooseReplica(null);
+        if (replica == null) {
+            return query.apply(primary);
+        }
+        final long hedgeDelay = latencies.get(operation).hedgeDelayNanos;
+        if (hedgeExecutor == null || hedgeDelay == NO_HEDGE) {
+            try {
+                return read(operation, replica, query);
+            } catch (RuntimeException e) {
+                return failOver(operation, replica, query, e);
+            }
+        }
+        final ReadCancellation firstCancellation = new ReadCancellation();
+        final CompletableFuture<R> first = CompletableFuture.supplyAsync(
+                TraceSpan.propagating(firstCancellation.running(() -> read(operation, replica, query))), hedgeExecutor);
+        try {
+            return first.get(hedgeDelay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            final ReadCancellation hedgeCancellation = new ReadCancellation();
+            final CompletableFuture<R> hedge = CompletableFuture.supplyAsync(TraceSpan.propagating(
+                    hedgeCancellation.running(() -> readElsewhere(operation, replica, query))), hedgeExecutor);
+            try {
+                return firstSucceeded(first, hedge);
+            } finally {
+                cancel(first, firstCancellation);
+                cancel(hedge, hedgeCancellation);
+            }
+        } catch (ExecutionException e) {
+            return failOver(operation, replica, query, propagate(e.getCause()));
+        } catch (InterruptedException e) {
+            cancel(first, firstCancellation);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(format("Interrupted while reading from shard %s.", getId()), e);
+        }
+    }
+
+    private static void cancel(final CompletableFuture<?> read, final ReadCancellation cancellation) {
+        if (!read.isDone()) {
+            read.cancel(false);
+            cancellation.cancel();
+        }
+    }
+
+    /**
+     * A replica that lost its connection or timed out is retried once elsewhere; other errors would fail the same way
+     * on every copy of the shard.
+     */
+    private <R> R failOver(final ReadOperation operation, final Replica failed, final Function<Shard, R> query,
+                           final RuntimeException failure) {
+        if (!HealthCheckedShard.isShardFailure(failure) || ReadCancellation.isCurrentCancelled()) {
+            throw failure;
+        }
+        LOG.debug("Read from a replica of shard {} failed, retrying it elsewhere.", getId(), failure);
+        try {
+            return readElsewhere(operation, failed, query);
+        } catch (RuntimeException e) {
+            e.addSuppressed(failure);
+            throw e;
+        }
+    }
+
+    private <R> R readElsewhere(final ReadOperation operation, final Replica excluded, final Function<Shard, R> query) {
+        final Replica other = chooseReplica(excluded);
+        return other == null ? query.apply(primary) : read(operation, other, query);
+    }
+
+    private <R> R read(final ReadOperation operation, final Replica replica, final Function<Shard, R> query) {
+        replica.outstanding.incrementAndGet();
+        final long startedAt = System.nanoTime();
+        try {
+            final R result = query.apply(replica.shard);
+            latencies.get(operation).window.record(System.nanoTime() - startedAt);
+            return result;
+        } finally {
+            replica.outstanding.decrementAndGet();
+        }
+    }
+
+    private static <R> R firstSucceeded(final CompletableFuture<R> first, final CompletableFuture<R> second) {
+        final CompletableFuture<R> winner = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final BiConsumer<R, Throwable> done = (result, failure) -> {
+            if (failure == null) {
+                winner.complete(result);
+            } else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(failure);
+            }
+        };
+        first.whenComplete(done);
+        second.whenComplete(done);
+        try {
+            return winner.join();
+        } catch (CompletionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    private static RuntimeException propagate(final Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+
+    private Replica chooseReplica(final Replica excluded) {
+        if (replicas.isEmpty() || ShardSession.current() != null) {
+            return null;
+        }
+        final SessionToken token = SessionToken.current();
+        final int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        Replica chosen = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            final Replica replica = replicas.get((start + i) % replicas.size());
+            final long lag = replica.lagMillis;
+            if (replica == excluded || !replica.shard.isAvailable() || lag > maxLagMillis || token != null && !token.allowsReplica(getId(), lag)) {
+                continue;
+            }
+            if (chosen == null || replica.outstanding.get() < chosen.outstanding.get()) {
+                chosen = replica;
+            }
+        }
+        return chosen;
+    }
+
+    private enum ReadOperation {
+        EXECUTE_QUERY,
+        SELECT_ROWS,
+        FIND_ALL,
+        FIND_ONE
+    }
+
+    /**
+     * Lookups by id and fan-out scans differ by orders of magnitude, so each operation is hedged at its own p95.
+     */
+    private static final class ReadLatency {
+
+        private final LatencyWindow window = new LatencyWindow(LATENCY_WINDOW);
+        private volatile long hedgeDelayNanos = NO_HEDGE;
+    }
+
+    private static final class Replica {
+
+        private final Shard shard;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long lagMillis = UNKNOWN_LAG;
+
+        private Replica(final Shard shard) {
+            this.shard = shard;
+        }
+    }
+}
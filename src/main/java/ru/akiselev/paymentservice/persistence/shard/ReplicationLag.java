@@ -0,0 +1,14 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import java.util.List;
+
+public interface ReplicationLag {
+
+    ReplicationLag POSTGRES = replica -> {
+        final List<Object[]> rows = replica.selectRows("select case when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0 "
+                + "else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()) * 1000, 0) end", List.of());
+        return ((Number) rows.get(0)[0]).longValue();
+    };
+
+    long lagMillis(final Shard replica);
+}
@@ -0,0 +1,336 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import ru.akiselev.paymentservice.persistence.EntityColumn;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+public class ReshardingShardManager extends ShardManager {
+
+    private final ReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private final Set<ShardSession> writingSessions = ConcurrentHashMap.newKeySet();
+    private final Object sessionGate = new Object();
+    private boolean switching;
+    private volatile ShardMap shardMap;
+
+    public ReshardingShardManager(final ShardManager router, final FanOutExecutor fanOutExecutor) {
+        super(newArrayList(router.shards.values()), fanOutExecutor);
+        this.shardMap = ShardMap.initial(router);
+    }
+
+    public ShardMap shardMap() {
+        return shardMap;
+    }
+
+    ShardMap beginMigration(final ShardManager target, final Set<Integer> relocated) {
+        return transition(map -> map.migrateTo(target, relocated));
+    }
+
+    ShardMap replaceShards(final ShardManager replacement) {
+        return transition(map -> map.replaceRouter(replacement));
+    }
+
+    ShardMap switchToTarget() {
+        return transition(ShardMap::switchToTarget);
+    }
+
+    ShardMap completeMigration() {
+        return transition(ShardMap::complete);
+    }
+
+    private ShardMap transition(final UnaryOperator<ShardMap> change) {
+        synchronized (sessionGate) {
+            switching = true;
+            try {
+                while (!writingSessions.isEmpty()) {
+                    sessionGate.wait();
+                }
+            } catch (InterruptedException e) {
+                switching = false;
+                sessionGate.notifyAll();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for shard sessions to commit.", e);
+            }
+        }
+        final Lock lock = switchLock.writeLock();
+        lock.lock();
+        try {
+            shardMap = change.apply(shardMap);
+            return shardMap;
+        } finally {
+            lock.unlock();
+            synchronized (sessionGate) {
+                switching = false;
+                sessionGate.notifyAll();
+            }
+        }
+    }
+
+    private void enterSession() {
+        final ShardSession session = ShardSession.current();
+        if (session == null || writingSessions.contains(session)) {
+            return;
+        }
+        synchronized (sessionGate) {
+            try {
+                while (switching) {
+                    sessionGate.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the shard map switch.", e);
+            }
+            writingSessions.add(session);
+        }
+        session.onClose(() -> {
+            synchronized (sessionGate) {
+                writingSessions.remove(session);
+                sessionGate.notifyAll();
+            }
+        });
+    }
+
+    @Override
+    public <T> int evaluateShardIdFor(final T entity) {
+        return shardMap.getRouter().evaluateShardIdFor(entity);
+    }
+
+    @Override
+    public Shard evaluateShard(final Object id) {
+        return shardMap.getRouter().evaluateShard(id);
+    }
+
+    @Override
+    public <T> int encodedShardIdFor(final T entity) {
+        return shardMap.getRouter().encodedShardIdFor(entity);
+    }
+
+    @Override
+    protected Shard ownerOfId(final Class<?> tClass, final Object id) {
+        return shardMap.getRouter().ownerOfId(tClass, id);
+    }
+
+    @Override
+    protected Collection<Shard> allShards() {
+        return shardMap.getRouter().allShards();
+    }
+
+    /**
+     * While migrating, a row is written to its current and its target shard in one shard session, so a failed
+     * copy also rolls back the row on its current shard.
+     */
+    @Override
+    public <T, ID> ID save(final T entity, final Class<T> tClass) {
+        if (ShardSession.current() == null && shardMap.getPhase() == ShardMap.Phase.MIGRATING) {
+            return inSession(() -> save(entity, tClass));
+        }
+        enterSession();
+        final Lock lock = switchLock.readLock();
+        lock.lock();
+        try {
+            final ShardMap map = shardMap;
+            final ID id = map.getRouter().save(entity, tClass);
+            if (map.getPhase() == ShardMap.Phase.MIGRATING) {
+                EntityMetadata.of(tClass).assignIdIfAbsent(entity, id);
+                copyToTarget(map, List.of(entity), tClass);
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T, ID> List<ID> saveAllInBatch(final List<T> entities, final Class<T> tClass) {
+        if (ShardSession.current() == null && shardMap.getPhase() == ShardMap.Phase.MIGRATING) {
+            return inSession(() -> saveAllInBatch(entities, tClass));
+        }
+        enterSession();
+        final Lock lock = switchLock.readLock();
+        lock.lock();
+        try {
+            final ShardMap map = shardMap;
+            final List<ID> ids = map.getRouter().saveAllInBatch(entities, tClass);
+            if (map.getPhase() == ShardMap.Phase.MIGRATING) {
+                final EntityMetadata metadata = EntityMetadata.of(tClass);
+                for (int i = 0; i < entities.size(); i++) {
+                    metadata.assignIdIfAbsent(entities.get(i), ids.get(i));
+                }
+                copyToTarget(map, entities, tClass);
+            }
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> void copyToTarget(final ShardMap map, final List<T> entities, final Class<T> tClass) {
+        final Map<Integer, List<T>> moved = new LinkedHashMap<>();
+        for (final T entity : entities) {
+            final int targetShardId = map.getTarget().evaluateShardIdFor(entity);
+            if (map.moves(map.getRouter().evaluateShardIdFor(entity), targetShardId)) {
+                moved.computeIfAbsent(targetShardId, shardId -> newArrayList()).add(entity);
+            }
+        }
+        moved.forEach((shardId, batch) -> copyRows(map.getTarget().shards.get(shardId), batch, tClass));
+    }
+
+    /**
+     * Rows already present on the target are skipped, which is expected for rows copied both by the rebalancer
+     * and by a dual write, but a present row with other content means the target holds foreign data.
+     */
+    static <T> int copyRows(final Shard target, final List<T> rows, final Class<T> tClass) {
+        final int inserted = target.insertAllIfAbsent(rows, tClass);
+        if (inserted == rows.size()) {
+            return inserted;
+        }
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final List<Object> ids = rows.stream().map(metadata::idValueOf).collect(toList());
+        final String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        final Map<Object, T> copies = target.<T>findAll(tClass, format("where %s in (%s)", metadata.getIdName(), placeholders), ids)
+                .stream()
+                .collect(toMap(metadata::idValueOf, copy -> copy));
+        final List<EntityColumn> columns = metadata.columnsFor(-1L);
+        for (final T row : rows) {
+            final T copy = copies.get(metadata.idValueOf(row));
+            if (copy == null || columns.stream().anyMatch(column -> !Objects.equals(column.valueOf(row), column.valueOf(copy)))) {
+                throw new IllegalStateException(format("Row %s of %s differs from the row with the same id on target shard %s.",
+                        metadata.idValueOf(row), tClass.getSimpleName(), target.getId()));
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    public <T, ID> List<ID> executeQuery(final String query, final Class<T> tClass) {
+        final ShardMap map = shardMap;
+        final List<ID> ids = map.getRouter().executeQuery(query, tClass);
+        return map.isStable() ? ids : ids.stream().distinct().collect(toList());
+    }
+
+    @Override
+    protected <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.findAll(tClass, condition, parameters);
+        }
+        return concat(fanOutExecutor.invokeAll(router.shards.values(), shard -> owned(router, shard, shard.<T>findAll(tClass, condition, parameters))));
+    }
+
+    @Override
+    protected <T> PartialResult<T> findAvailable(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.findAvailable(tClass, condition, parameters);
+        }
+        final PartialResult<List<T>> portions = fanOutExecutor.invokeAvailable(router.shards.values(),
+                shard -> owned(router, shard, shard.<T>findAll(tClass, condition, parameters)));
+        return new PartialResult<>(concat(portions.getResults()), portions.getMissingShardIds());
+    }
+
+    private static <T> List<T> owned(final ShardManager router, final Shard shard, final List<T> rows) {
+        return rows.stream()
+                .filter(entity -> router.evaluateShardIdFor(entity) == shard.getId())
+                .collect(toList());
+    }
+
+    @Override
+    protected <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.stream(tClass, condition, parameters);
+        }
+        return ShardStreams.concat(router.shards.values(), shard -> shard.<T>stream(tClass, condition, parameters)
+                .filter(entity -> router.evaluateShardIdFor(entity) == shard.getId()));
+    }
+
+    @Override
+    protected <T> List<T> findPage(final Class<? extends T> tClass, final String keyColumn, final Object after, final int limit) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.findPage(tClass, keyColumn, after, limit);
+        }
+        final List<List<T>> portions = fanOutExecutor.invokeAll(router.shards.values(),
+                shard -> ownedPage(router, shard, tClass, keyColumn, after, limit));
+        return ShardStreams.mergeSorted(portions, ShardStreams.byColumn(EntityMetadata.of(tClass).column(keyColumn)), limit);
+    }
+
+    @Override
+    protected <T> PartialResult<T> findPageAvailable(final Class<? extends T> tClass, final String keyColumn, final Object after, final int limit) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.findPageAvailable(tClass, keyColumn, after, limit);
+        }
+        final PartialResult<List<T>> portions = fanOutExecutor.invokeAvailable(router.shards.values(),
+                shard -> ownedPage(router, shard, tClass, keyColumn, after, limit));
+        return new PartialResult<>(
+                ShardStreams.mergeSorted(portions.getResults(), ShardStreams.byColumn(EntityMetadata.of(tClass).column(keyColumn)), limit),
+                portions.getMissingShardIds());
+    }
+
+    private static <T> List<T> ownedPage(final ShardManager router, final Shard shard, final Class<? extends T> tClass,
+                                         final String keyColumn, final Object after, final int limit) {
+        final String condition = after == null
+                ? format("order by %s", keyColumn)
+                : format("where %s>? order by %s", keyColumn, keyColumn);
+        final List<Object> parameters = after == null ? List.of() : List.of(after);
+        try (final Stream<T> rows = shard.stream(tClass, condition, parameters)) {
+            return rows.filter(entity -> router.evaluateShardIdFor(entity) == shard.getId())
+                    .limit(limit)
+                    .collect(toList());
+        }
+    }
+
+    @Override
+    protected <T> T findOne(final Class<? extends T> tClass, final String condition, final List<Object> parameters, final Object shardId) {
+        return shardMap.getRouter().findOne(tClass, condition, parameters, shardId);
+    }
+
+    @Override
+    protected Set<Object> existingIds(final Class<?> tClass, final Collection<?> ids) {
+        return shardMap.getRouter().existingIds(tClass, ids);
+    }
+
+    @Override
+    protected List<AggregateRow> executeAggregation(final Aggregation aggregation) {
+        final ShardMap map = shardMap;
+        final ShardManager router = map.getRouter();
+        if (map.isStable()) {
+            return router.executeAggregation(aggregation);
+        }
+        final Collection<Shard> targets = aggregation.getShardKey() == null
+                ? router.shards.values()
+                : List.of(router.evaluateShard(aggregation.getShardKey()));
+        final List<List<Object[]>> partials = fanOutExecutor.invokeAll(targets, shard -> {
+            try (final Stream<Object> rows = shard.stream(aggregation.getType(), aggregation.getCondition(), aggregation.getParameters())) {
+                return rows.filter(entity -> router.evaluateShardIdFor(entity) == shard.getId())
+                        .map(aggregation::partialRowOf)
+                        .collect(toList());
+            }
+        });
+        return aggregation.merge(partials);
+    }
+}
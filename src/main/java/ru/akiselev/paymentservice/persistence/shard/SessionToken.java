@@ -0,0 +1,87 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Splitter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+public final class SessionToken {
+
+    private static final ThreadLocal<SessionToken> CURRENT = new ThreadLocal<>();
+
+    private final boolean primaryOnly;
+    private final ConcurrentMap<Integer, Long> lastWrites = new ConcurrentHashMap<>();
+    private volatile boolean written;
+
+    private SessionToken(final boolean primaryOnly) {
+        this.primaryOnly = primaryOnly;
+    }
+
+    public static SessionToken current() {
+        return CURRENT.get();
+    }
+
+    public static SessionToken primaryOnly() {
+        return new SessionToken(true);
+    }
+
+    public static SessionToken decode(final String encoded) {
+        final SessionToken token = new SessionToken(false);
+        if (encoded == null || encoded.isBlank()) {
+            return token;
+        }
+        try {
+            Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator(':').split(encoded)
+                    .forEach((shardId, writtenAt) -> token.lastWrites.put(Integer.parseInt(shardId), Long.parseLong(writtenAt)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(format("Malformed session token %s.", encoded), e);
+        }
+        return token;
+    }
+
+    public String encode() {
+        return lastWrites.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .map(entry -> entry.getKey() + ":" + entry.getValue())
+                .collect(Collectors.joining(","));
+    }
+
+    public Scope bind() {
+        final SessionToken previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    void recordWrite(final int shardId) {
+        lastWrites.merge(shardId, System.currentTimeMillis(), Math::max);
+        written = true;
+    }
+
+    public boolean isWritten() {
+        return written;
+    }
+
+    boolean allowsReplica(final int shardId, final long lagMillis) {
+        if (primaryOnly) {
+            return false;
+        }
+        final Long writtenAt = lastWrites.get(shardId);
+        return writtenAt == null || lagMillis < System.currentTimeMillis() - writtenAt;
+    }
+
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
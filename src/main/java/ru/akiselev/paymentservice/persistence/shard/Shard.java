@@ -1,6 +1,7 @@
 package ru.akiselev.paymentservice.persistence.shard;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface Shard {
 
@@ -10,13 +11,25 @@ public interface Shard {
 
     <T, ID> List<ID> executeQuery(final String query, final Class<T> idClass);
 
-    <T> T selectSingle(final String sqlQuery, final Class<T> tClass);
+    List<Object[]> selectRows(final String sqlQuery, final List<Object> parameters);
 
     <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass);
 
-    <T> List<T> findAll(final Class<? extends T> tClass, final String s);
+    <T> List<T> findAll(final Class<? extends T> tClass, final String s, final List<Object> parameters);
 
-    <T> T findOne(final Class<T> tClass, final String s);
+    <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters);
 
+    <T> T findOne(final Class<T> tClass, final String s, final List<Object> parameters);
 
+    <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass);
+
+    int delete(final Class<?> tClass, final String condition, final List<Object> parameters);
+
+    default boolean mightContain(final Class<?> tClass, final Object id) {
+        return true;
+    }
+
+    default boolean isAvailable() {
+        return true;
+    }
 }
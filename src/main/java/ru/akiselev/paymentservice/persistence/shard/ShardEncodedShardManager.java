@@ -0,0 +1,70 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+public class ShardEncodedShardManager extends HashShardManager {
+
+    private static final int MAX_SHARD_BITS = 16;
+
+    private final long mask;
+    private final int[] owners;
+    private final int[] placements;
+    private final AtomicInteger nextPlacement = new AtomicInteger();
+
+    public ShardEncodedShardManager(final List<Shard> shards, final FanOutExecutor fanOutExecutor,
+                                    final int shardBits, final Map<Integer, Integer> overrides) {
+        super(shards, fanOutExecutor);
+        Preconditions.checkArgument(shardBits > 0 && shardBits <= MAX_SHARD_BITS,
+                "Shard bits must be between 1 and %s, but got %s.", MAX_SHARD_BITS, shardBits);
+        Preconditions.checkNotNull(overrides);
+
+        this.mask = (1L << shardBits) - 1;
+        this.owners = new int[1 << shardBits];
+        this.shards.keySet().stream()
+                .filter(shardId -> shardId > 0 && shardId < owners.length)
+                .forEach(shardId -> owners[shardId] = shardId);
+        overrides.forEach((encoded, shardId) -> {
+            Preconditions.checkArgument(encoded > 0 && encoded < owners.length,
+                    "Encoded shard %s does not fit into %s bits.", encoded, shardBits);
+            Preconditions.checkArgument(this.shards.containsKey(shardId),
+                    "Encoded shard %s is relocated to unknown shard %s.", encoded, shardId);
+            owners[encoded] = shardId;
+        });
+        Preconditions.checkArgument(IntStream.of(owners).anyMatch(owner -> owner != 0),
+                "No shard can be encoded into %s bits.", shardBits);
+        this.placements = IntStream.range(1, owners.length)
+                .filter(encoded -> owners[encoded] != 0)
+                .toArray();
+    }
+
+    @Override
+    protected int evaluateShardIdForKey(final Object shardKey) {
+        Preconditions.checkNotNull(shardKey, "Shard key cannot be null.");
+        Preconditions.checkArgument(shardKey instanceof Long || shardKey instanceof Integer,
+                "Shard encoded key must be an integral number, but got %s.", shardKey);
+        final int encoded = (int) (((Number) shardKey).longValue() & mask);
+        final int owner = owners[encoded];
+        Preconditions.checkArgument(owner != 0, "Key %s encodes unknown shard %s.", shardKey, encoded);
+        return owner;
+    }
+
+    @Override
+    public <T> int encodedShardIdFor(final T entity) {
+        final Object shardKey = EntityMetadata.of(entity.getClass()).shardKeyValueOf(entity);
+        if (shardKey == null) {
+            return placements[Math.floorMod(nextPlacement.getAndIncrement(), placements.length)];
+        }
+        return (int) (((Number) shardKey).longValue() & mask);
+    }
+
+    @Override
+    protected Shard ownerOfId(final Class<?> tClass, final Object id) {
+        return evaluateShard(id);
+    }
+}
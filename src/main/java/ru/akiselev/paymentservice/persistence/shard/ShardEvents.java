@@ -0,0 +1,74 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+final class ShardEvents {
+
+    private static final String CATEGORY = "Payment Service";
+    private static final String SHARDING = "Sharding";
+
+    private ShardEvents() {
+    }
+
+    @Name("ru.akiselev.paymentservice.ShardRouting")
+    @Label("Shard Routing")
+    @Category({CATEGORY, SHARDING})
+    @StackTrace(false)
+    static final class Routing extends Event {
+
+        @Label("Shard Id")
+        int shardId;
+
+        @Label("Key Type")
+        String keyType;
+    }
+
+    @Name("ru.akiselev.paymentservice.ShardConnectionAcquisition")
+    @Label("Shard Connection Acquisition")
+    @Category({CATEGORY, SHARDING})
+    @StackTrace(false)
+    static final class ConnectionAcquisition extends Event {
+
+        @Label("Shard Id")
+        int shardId;
+
+        @Label("Pinned To Session")
+        boolean pinned;
+    }
+
+    @Name("ru.akiselev.paymentservice.ShardStatementExecution")
+    @Label("Shard Statement Execution")
+    @Category({CATEGORY, SHARDING})
+    @StackTrace(false)
+    static final class StatementExecution extends Event {
+
+        @Label("Shard Id")
+        int shardId;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("SQL Fingerprint")
+        String fingerprint;
+    }
+
+    @Name("ru.akiselev.paymentservice.ShardRowMapping")
+    @Label("Shard Row Mapping")
+    @Category({CATEGORY, SHARDING})
+    @StackTrace(false)
+    static final class RowMapping extends Event {
+
+        @Label("Shard Id")
+        int shardId;
+
+        @Label("SQL Fingerprint")
+        String fingerprint;
+
+        @Label("Rows")
+        int rows;
+    }
+}
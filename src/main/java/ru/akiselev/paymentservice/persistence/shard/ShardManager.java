@@ -1,45 +1,209 @@
 package ru.akiselev.paymentservice.persistence.shard;
 
 import com.google.common.base.Preconditions;
-
+import com.google.common.base.Verify;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Streams;
+import ru.akiselev.paymentservice.persistence.EntityColumn;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.String.format;
 import static ru.akiselev.paymentservice.persistence.PersistenceUtils.checkIsEntity;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isShardId;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.tableNameForClass;
 
 public abstract class ShardManager {
 
+    protected static final int REFERENCE_BATCH_SIZE = 500;
+
     protected final Map<Integer, Shard> shards;
+    protected final FanOutExecutor fanOutExecutor;
 
-    protected ShardManager(final List<Shard> shardList) {
+    protected ShardManager(final List<Shard> shardList, final FanOutExecutor fanOutExecutor) {
         Preconditions.checkNotNull(shardList);
+        Preconditions.checkNotNull(fanOutExecutor);
         this.shards = shardList.stream().collect(Collectors.toMap(Shard::getId, Function.identity()));
+        this.fanOutExecutor = fanOutExecutor;
     }
 
     public abstract <T> int evaluateShardIdFor(final T entity);
 
     public abstract Shard evaluateShard(final Object id);
 
+    public <T> int encodedShardIdFor(final T entity) {
+        return 0;
+    }
+
+    protected Shard ownerOfId(final Class<?> tClass, final Object id) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        return metadata.isShardKeyColumn(metadata.getIdName()) ? evaluateShard(id) : null;
+    }
+
+    protected Collection<Shard> allShards() {
+        return shards.values();
+    }
+
     public abstract <T, ID> ID save(final T entity, final Class<T> tClass);
 
     public abstract <T, ID> List<ID> saveAllInBatch(final List<T> entities, final Class<T> tClass);
 
     public abstract <T, ID> List<ID> executeQuery(final String query, final Class<T> tClass);
 
-    protected abstract <T> List<T> findAll(final Class<? extends T> tClass, final String condition);
+    protected abstract <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters);
+
+    protected abstract <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters);
+
+    protected abstract <T> List<T> findPage(final Class<? extends T> tClass, final String keyColumn, final Object after, final int limit);
+
+    protected abstract <T> T findOne(final Class<? extends T> entity, final String condition, final List<Object> parameters, final Object shardId);
 
-    protected abstract <T> T findOne(final Class<? extends T> entity, final String condition, final Object shardId);
+    protected abstract List<AggregateRow> executeAggregation(final Aggregation aggregation);
 
-    protected abstract <ID> ID executeQuery(final String condition, final Class<? extends ID> idClass, final Object shardId);
+    protected abstract Set<Object> existingIds(final Class<?> tClass, final Collection<?> ids);
+
+    public <R> R inSession(final Supplier<R> work) {
+        Preconditions.checkNotNull(work);
+        if (ShardSession.current() != null) {
+            return work.get();
+        }
+        try (final ShardSession session = ShardSession.open()) {
+            final R result = work.get();
+            session.commit();
+            return result;
+        }
+    }
 
     public <T> SelectQuery<T> find(final Class<? extends T> tClass) {
         checkIsEntity(tClass, format("This is not an entity class: %s.", tClass.getName()));
-        return new SelectQuery<>(tClass);
+        return new SelectQuery<>(tClass, false);
+    }
+
+    public <T> T findById(final Class<T> tClass, final Object id) {
+        checkIsEntity(tClass, format("This is not an entity class: %s.", tClass.getName()));
+        Preconditions.checkNotNull(id, format("Id cannot be null for %s.", tClass.getName()));
+        final String condition = format("where %s=?", EntityMetadata.of(tClass).getIdName());
+        return traced("findById", tClass, () -> {
+            final Shard owner = ownerOfId(tClass, id);
+            if (owner != null) {
+                return resolveReferences(List.of(owner.findOne(tClass, condition, List.of(id)))).get(0);
+            }
+            final List<T> found = resolveReferences(findAll(tClass, condition, List.of(id)));
+            Verify.verify(found.size() == 1, "Expected unique %s with id %s, but got %s.", tClass.getSimpleName(), id, found.size());
+            return found.get(0);
+        });
+    }
+
+    protected static <R> R traced(final String operation, final Class<?> tClass, final Supplier<R> work) {
+        try (final TraceSpan.Scope span = TraceSpan.start(() -> operation + " " + EntityMetadata.of(tClass).getTableName())) {
+            return work.get();
+        }
+    }
+
+    protected <T> List<T> resolveReferences(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return entities;
+        }
+        final EntityMetadata metadata = EntityMetadata.of(entities.get(0).getClass());
+        if (metadata.getReferenceColumns().isEmpty()) {
+            return entities;
+        }
+        final Map<Class<?>, Map<Object, Object>> loaded = new HashMap<>();
+        for (final EntityColumn column : metadata.getReferenceColumns()) {
+            final Class<?> type = column.getField().getType();
+            final Map<Object, Object> byId = loaded.computeIfAbsent(type, referenced -> new HashMap<>());
+            final Set<Object> ids = entities.stream()
+                    .map(column::valueOf)
+                    .filter(id -> id != null && !byId.containsKey(id))
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            final EntityMetadata referenced = EntityMetadata.of(type);
+            loadReferences(type, ids).forEach(entity -> byId.put(referenced.idValueOf(entity), entity));
+        }
+        return entities.stream()
+                .map(entity -> metadata.withReferences(entity, loaded))
+                .collect(Collectors.toList());
+    }
+
+    private List<Object> loadReferences(final Class<?> type, final Collection<Object> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        final EntityMetadata metadata = EntityMetadata.of(type);
+        final Map<Integer, List<Object>> idsByShard = new LinkedHashMap<>();
+        final Map<Integer, Shard> owners = new LinkedHashMap<>();
+        if (metadata.isShardKeyColumn(metadata.getIdName())) {
+            for (final Object id : ids) {
+                final Shard owner = evaluateShard(id);
+                owners.putIfAbsent(owner.getId(), owner);
+                idsByShard.computeIfAbsent(owner.getId(), shardId -> new ArrayList<>()).add(id);
+            }
+        } else {
+            allShards().forEach(shard -> {
+                owners.put(shard.getId(), shard);
+                idsByShard.put(shard.getId(), new ArrayList<>(ids));
+            });
+        }
+        final List<List<Object>> portions = fanOutExecutor.invokeAll(owners.values(), shard -> {
+            final List<Object> found = new ArrayList<>();
+            for (final List<Object> chunk : Lists.partition(idsByShard.get(shard.getId()), REFERENCE_BATCH_SIZE)) {
+                final String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+                found.addAll(shard.findAll(type, format("where %s in (%s)", metadata.getIdName(), placeholders), chunk));
+            }
+            return found;
+        });
+        return resolveReferences(portions.stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList()));
+    }
+
+    private <T> Stream<T> resolveReferences(final Stream<T> entities) {
+        final Iterator<List<T>> chunks = Iterators.partition(entities.iterator(), REFERENCE_BATCH_SIZE);
+        return Streams.stream(Iterators.concat(Iterators.transform(chunks, chunk -> resolveReferences(chunk).iterator())))
+                .onClose(entities::close);
+    }
+
+    protected <T> PartialResult<T> findAvailable(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final PartialResult<List<T>> portions = fanOutExecutor.invokeAvailable(allShards(), shard -> shard.<T>findAll(tClass, condition, parameters));
+        return new PartialResult<>(concat(portions.getResults()), portions.getMissingShardIds());
+    }
+
+    protected <T> PartialResult<T> findPageAvailable(final Class<? extends T> tClass, final String keyColumn, final Object after, final int limit) {
+        final String condition = pageCondition(keyColumn, after);
+        final List<Object> parameters = pageParameters(after, limit);
+        final PartialResult<List<T>> portions = fanOutExecutor.invokeAvailable(allShards(), shard -> shard.<T>findAll(tClass, condition, parameters));
+        return new PartialResult<>(
+                ShardStreams.mergeSorted(portions.getResults(), ShardStreams.byColumn(EntityMetadata.of(tClass).column(keyColumn)), limit),
+                portions.getMissingShardIds());
+    }
+
+    protected static String pageCondition(final String keyColumn, final Object after) {
+        return after == null
+                ? format("order by %s limit ?", keyColumn)
+                : format("where %s>? order by %s limit ?", keyColumn, keyColumn);
+    }
+
+    protected static List<Object> pageParameters(final Object after, final int limit) {
+        return after == null ? List.of(limit) : List.of(after, limit);
+    }
+
+    protected static <E> List<E> concat(final List<List<E>> portions) {
+        final List<E> result = new ArrayList<>(portions.stream().mapToInt(List::size).sum());
+        portions.forEach(result::addAll);
+        return result;
     }
 
     public <T> SumQuery<T> sum(final Class<T> tClass, final String parameter) {
@@ -47,99 +211,200 @@ public abstract class ShardManager {
         return new SumQuery<>(tClass, parameter);
     }
 
+    public <ID> Set<ID> findExistingIds(final Class<?> tClass, final Collection<? extends ID> ids) {
+        checkIsEntity(tClass, format("This is not an entity class: %s.", tClass.getName()));
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        Preconditions.checkArgument(metadata.isShardKeyColumn(metadata.getIdName()),
+                "Existence check requires the id of %s to be its shard key.", tClass.getName());
+        if (ids.isEmpty()) {
+            return Set.of();
+        }
+        final Set<Object> existing = traced("findExistingIds", tClass, () -> existingIds(tClass, ids));
+        return ids.stream()
+                .filter(existing::contains)
+                .collect(Collectors.toSet());
+    }
+
+    public <T> AggregateQuery<T> aggregate(final Class<T> tClass) {
+        checkIsEntity(tClass, format("This is not an entity class: %s.", tClass.getName()));
+        return new AggregateQuery<>(tClass, List.of(), List.of());
+    }
+
     public class SelectQuery<T> extends BaseQuery<T> implements Query<T> {
 
-        SelectQuery(final Class<? extends T> tClass) {
+        private final boolean lazyReferences;
+
+        SelectQuery(final Class<? extends T> tClass, final boolean lazyReferences) {
             super(tClass);
+            this.lazyReferences = lazyReferences;
+        }
+
+        public SelectQuery<T> lazyReferences() {
+            return new SelectQuery<>(tClass, true);
         }
 
         public SelectQueryCondition where() {
-            return new SelectQueryCondition("where ");
+            return new SelectQueryCondition("where ", List.of(), null);
         }
 
         @Override
         public List<T> all() {
-            return findAll(tClass, "");
+            return traced("findAll", tClass, () -> resolved(findAll(tClass, "", List.of())));
         }
 
-        public class SelectQueryCondition extends BaseQueryCondition {
+        public Stream<T> stream() {
+            return resolved(ShardManager.this.stream(tClass, "", List.of()));
+        }
 
-            private SelectQueryCondition(final String condition) {
-                super(condition);
-            }
+        public List<T> page(final String keyColumn, final Object after, final int limit) {
+            Preconditions.checkArgument(limit > 0, "Page limit must be positive, but got %s.", limit);
+            return traced("findPage", tClass, () -> resolved(findPage(tClass, keyColumn, after, limit)));
+        }
+
+        public PartialResult<T> allAvailable() {
+            return traced("findAvailable", tClass, () -> resolved(findAvailable(tClass, "", List.of())));
+        }
 
-            private SelectQueryCondition(final String condition, final Object shardId) {
-                super(condition, shardId);
+        public PartialResult<T> pageAvailable(final String keyColumn, final Object after, final int limit) {
+            Preconditions.checkArgument(limit > 0, "Page limit must be positive, but got %s.", limit);
+            return traced("findPageAvailable", tClass, () -> resolved(findPageAvailable(tClass, keyColumn, after, limit)));
+        }
+
+        private PartialResult<T> resolved(final PartialResult<T> available) {
+            return new PartialResult<>(resolved(available.getResults()), available.getMissingShardIds());
+        }
+
+        private List<T> resolved(final List<T> entities) {
+            return lazyReferences ? entities : resolveReferences(entities);
+        }
+
+        private Stream<T> resolved(final Stream<T> entities) {
+            return lazyReferences ? entities : resolveReferences(entities);
+        }
+
+        public class SelectQueryCondition extends BaseQueryCondition {
+
+            private SelectQueryCondition(final String condition, final List<Object> parameters, final Object shardId) {
+                super(condition, parameters, shardId);
             }
 
             public SelectQueryCondition shardId(final Object shardId) {
-                return new SelectQueryCondition(condition, shardId);
+                return new SelectQueryCondition(condition, parameters, shardId);
             }
 
             public SelectQueryCondition eq(final String parameter, final Object o) {
-                final String template;
-                if (o instanceof String)
-                    template = "%s %s=\"%s\"";
-                else
-                    template = "%s %s=%s";
-                if (isShardId(tClass, parameter)) {
-                    return new SelectQueryCondition(format(template, condition, parameter, o), o);
+                if (EntityMetadata.of(tClass).isShardKeyColumn(parameter)) {
+                    return new SelectQueryCondition(appendEq(parameter), appendParameter(o), o);
                 } else {
-                    return new SelectQueryCondition(format(template, condition, parameter, o), shardId);
+                    return new SelectQueryCondition(appendEq(parameter), appendParameter(o), shardId);
                 }
             }
 
             public T one() {
-                return findOne(tClass, condition, shardId);
+                return traced("findOne", tClass, () -> resolved(List.of(findOne(tClass, condition, parameters, shardId))).get(0));
             }
 
             public List<T> list() {
-                return findAll(tClass, condition);
+                return traced("findAll", tClass, () -> resolved(findAll(tClass, condition, parameters)));
+            }
+
+            public Stream<T> stream() {
+                return resolved(ShardManager.this.stream(tClass, condition, parameters));
+            }
+
+            public PartialResult<T> listAvailable() {
+                return traced("findAvailable", tClass, () -> resolved(findAvailable(tClass, condition, parameters)));
             }
         }
     }
 
     public class SumQuery<T> extends BaseQuery<T> {
-        private final String query;
+        private final Aggregate sum;
 
         public SumQuery(final Class<? extends T> tClass, final String parameter) {
             super(tClass);
-            this.query = format("select sum(%s) from %s", parameter, tableNameForClass(tClass));
+            this.sum = Aggregate.sum(parameter);
         }
 
         public SumQueryCondition where() {
-            return new SumQueryCondition(format("%s %s", query, "where "));
+            return new SumQueryCondition("where ", List.of(), null);
         }
 
         public class SumQueryCondition extends BaseQueryCondition {
 
-            private SumQueryCondition(final String condition) {
-                super(condition);
-            }
-
-            private SumQueryCondition(final String condition, final Object shardId) {
-                super(condition, shardId);
+            private SumQueryCondition(final String condition, final List<Object> parameters, final Object shardId) {
+                super(condition, parameters, shardId);
             }
 
             public SumQueryCondition shardId(final long shardId) {
-                return new SumQueryCondition(this.condition, shardId);
+                return new SumQueryCondition(this.condition, parameters, shardId);
             }
 
             public SumQueryCondition eq(final String parameter, final Object o) {
-                final String template;
-                if (o instanceof String)
-                    template = "%s %s=\"%s\"";
-                else
-                    template = "%s %s=%s";
-                if (isShardId(tClass, parameter)) {
-                    return new SumQueryCondition(format(template, condition, parameter, o), o);
+                if (EntityMetadata.of(tClass).isShardKeyColumn(parameter)) {
+                    return new SumQueryCondition(appendEq(parameter), appendParameter(o), o);
                 } else {
-                    return new SumQueryCondition(format(template, condition, parameter, o, shardId));
+                    return new SumQueryCondition(appendEq(parameter), appendParameter(o), shardId);
                 }
             }
 
             public <R> R exec(final Class<? extends R> resType) {
-                return executeQuery(condition, resType, shardId);
+                final Aggregation aggregation = new Aggregation(tClass, List.of(), List.of(sum), condition, parameters, shardId);
+                return traced("sum", tClass, () -> executeAggregation(aggregation).get(0).get(sum.getAlias(), resType));
+            }
+        }
+    }
+
+    public class AggregateQuery<T> extends BaseQuery<T> {
+        private final List<Aggregate> aggregates;
+        private final List<String> groupBy;
+
+        private AggregateQuery(final Class<? extends T> tClass, final List<Aggregate> aggregates, final List<String> groupBy) {
+            super(tClass);
+            this.aggregates = aggregates;
+            this.groupBy = groupBy;
+        }
+
+        public AggregateQuery<T> select(final Aggregate... selected) {
+            final List<Aggregate> appended = new ArrayList<>(aggregates);
+            appended.addAll(Arrays.asList(selected));
+            return new AggregateQuery<>(tClass, Collections.unmodifiableList(appended), groupBy);
+        }
+
+        public AggregateQuery<T> groupBy(final String... columns) {
+            final List<String> appended = new ArrayList<>(groupBy);
+            appended.addAll(Arrays.asList(columns));
+            return new AggregateQuery<>(tClass, aggregates, Collections.unmodifiableList(appended));
+        }
+
+        public AggregateQueryCondition where() {
+            return new AggregateQueryCondition("where ", List.of(), null);
+        }
+
+        public List<AggregateRow> exec() {
+            return traced("aggregate", tClass, () -> executeAggregation(new Aggregation(tClass, groupBy, aggregates, "", List.of(), null)));
+        }
+
+        public class AggregateQueryCondition extends BaseQueryCondition {
+
+            private AggregateQueryCondition(final String condition, final List<Object> parameters, final Object shardId) {
+                super(condition, parameters, shardId);
+            }
+
+            public AggregateQueryCondition shardId(final Object shardId) {
+                return new AggregateQueryCondition(condition, parameters, shardId);
+            }
+
+            public AggregateQueryCondition eq(final String parameter, final Object o) {
+                if (EntityMetadata.of(tClass).isShardKeyColumn(parameter)) {
+                    return new AggregateQueryCondition(appendEq(parameter), appendParameter(o), o);
+                } else {
+                    return new AggregateQueryCondition(appendEq(parameter), appendParameter(o), shardId);
+                }
+            }
+
+            public List<AggregateRow> exec() {
+                return traced("aggregate", tClass, () -> executeAggregation(new Aggregation(tClass, groupBy, aggregates, condition, parameters, shardId)));
             }
         }
     }
@@ -162,14 +427,24 @@ abstract class BaseQuery<T> {
 abstract class BaseQueryCondition {
 
     protected final String condition;
+    protected final List<Object> parameters;
     protected Object shardId;
 
-    protected BaseQueryCondition(final String condition) {
+    protected BaseQueryCondition(final String condition, final List<Object> parameters, final Object shardId) {
         this.condition = condition;
+        this.parameters = parameters;
+        this.shardId = shardId;
     }
 
-    protected BaseQueryCondition(final String condition, final Object shardId) {
-        this.condition = condition;
-        this.shardId = shardId;
+    protected String appendEq(final String parameter) {
+        return parameters.isEmpty()
+                ? format("%s%s=?", condition, parameter)
+                : format("%s and %s=?", condition, parameter);
     }
-}
\ No newline at end of file
+
+    protected List<Object> appendParameter(final Object value) {
+        final List<Object> appended = new ArrayList<>(parameters);
+        appended.add(value);
+        return Collections.unmodifiableList(appended);
+    }
+}
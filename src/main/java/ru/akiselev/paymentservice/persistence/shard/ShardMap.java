@@ -0,0 +1,70 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Set;
+
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ShardMap {
+
+    public enum Phase {
+        STABLE,
+        MIGRATING,
+        CLEANING
+    }
+
+    private final long version;
+    private final Phase phase;
+    private final ShardManager router;
+    private final ShardManager target;
+    private final ShardManager previous;
+    /** Shard ids whose datasource changed, so all their rows move even though routing keeps them in place. */
+    private final Set<Integer> relocated;
+
+    public static ShardMap initial(final ShardManager router) {
+        Preconditions.checkNotNull(router);
+        return new ShardMap(1L, Phase.STABLE, router, null, null, Set.of());
+    }
+
+    ShardMap migrateTo(final ShardManager target, final Set<Integer> relocated) {
+        Preconditions.checkNotNull(target);
+        Preconditions.checkNotNull(relocated);
+        if (phase == Phase.MIGRATING && this.target == target && this.relocated.equals(relocated)) {
+            return this;
+        }
+        Preconditions.checkState(phase == Phase.STABLE,
+                "Cannot start migration of shard map version %s in phase %s.", version, phase);
+        return new ShardMap(version + 1, Phase.MIGRATING, router, target, null, Set.copyOf(relocated));
+    }
+
+    ShardMap switchToTarget() {
+        Preconditions.checkState(phase == Phase.MIGRATING,
+                "Cannot switch shard map version %s in phase %s.", version, phase);
+        return new ShardMap(version + 1, Phase.CLEANING, target, null, router, relocated);
+    }
+
+    ShardMap complete() {
+        Preconditions.checkState(phase == Phase.CLEANING,
+                "Cannot complete shard map version %s in phase %s.", version, phase);
+        return new ShardMap(version + 1, Phase.STABLE, router, null, null, Set.of());
+    }
+
+    ShardMap replaceRouter(final ShardManager replacement) {
+        Preconditions.checkNotNull(replacement);
+        Preconditions.checkState(phase == Phase.STABLE,
+                "Cannot replace shards of shard map version %s in phase %s.", version, phase);
+        return new ShardMap(version + 1, Phase.STABLE, replacement, null, null, Set.of());
+    }
+
+    boolean moves(final int routedShardId, final int targetShardId) {
+        return routedShardId != targetShardId || relocated.contains(targetShardId);
+    }
+
+    boolean isStable() {
+        return phase == Phase.STABLE;
+    }
+}
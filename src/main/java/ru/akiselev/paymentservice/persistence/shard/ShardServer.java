@@ -2,68 +2,69 @@ package ru.akiselev.paymentservice.persistence.shard;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
+import com.google.common.collect.AbstractIterator;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import ru.akiselev.paymentservice.persistence.PersistenceUtils;
+import ru.akiselev.paymentservice.persistence.Binder;
+import ru.akiselev.paymentservice.persistence.EntityMetadata;
+import ru.akiselev.paymentservice.persistence.ReferenceHandles;
+import ru.akiselev.paymentservice.persistence.ReferenceResolver;
+import ru.akiselev.paymentservice.persistence.RowMapper;
 
 import javax.sql.DataSource;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Parameter;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static java.lang.String.format;
-import static java.util.Arrays.stream;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.entityClassFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.extractValueFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.findConstructorFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.getValue;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.idFieldFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.idNameFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.idTypeFor;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isAnyFieldNull;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isEntity;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.isFieldNull;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.referenceKeyColumnName;
-import static ru.akiselev.paymentservice.persistence.PersistenceUtils.tableNameForClass;
 
 @RequiredArgsConstructor
 @Getter
 public class ShardServer implements Shard {
 
-    public static final String QUERY_HL = "QUERY: ";
+    public static final int DEFAULT_FETCH_SIZE = 500;
+    private static final String UNIQUE_VIOLATION = "23505";
 
     private final int id;
     private final DataSource dataSource;
+    private final int fetchSize;
+    private final QueryLog queryLog;
 
-    @Override
-    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
-        final String paramAsStr = collectParametersAsString(tClass, entity);
-        final String valuesAsStr = collectValuesAsString(tClass, entity);
-        final String query = format("insert into %s(%s) values(%s)", tableNameForClass(tClass), paramAsStr, valuesAsStr);
-        return insert(query, tClass);
+    public ShardServer(final int id, final DataSource dataSource) {
+        this(id, dataSource, DEFAULT_FETCH_SIZE);
     }
 
-    private <T, ID> ID insert(final String query, final Class<T> tClass) {
-        System.out.println(QUERY_HL + query);
-        try (final Connection connection = dataSource.getConnection();
-             final PreparedStatement statement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+    public ShardServer(final int id, final DataSource dataSource, final int fetchSize) {
+        this(id, dataSource, fetchSize, QueryLog.NONE);
+    }
 
-            statement.executeUpdate();
+    @Override
+    public <T, ID> ID insert(final T entity, final Class<T> tClass) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final Binder<T> binder = metadata.binder();
+        final long mask = binder.presentColumnsMask(entity);
+        final String query = metadata.insertSqlFor(mask);
+        try (final Lease lease = lease();
+             final PreparedStatement statement = lease.connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+
+            binder.bind(statement, entity, mask);
+            execute("insert", query, statement::executeUpdate);
             try (final ResultSet generatedKeys = statement.getGeneratedKeys()) {
 
                 Preconditions.checkState(generatedKeys.next());
-                final Class<? extends ID> idType = idTypeFor(tClass);
-                return generatedKeys.getObject(idNameFor(tClass), idType);
+                return generatedKeys.getObject(metadata.getIdName(), (Class<? extends ID>) metadata.getIdType());
 
             } catch (SQLException e) {
                 throw new RuntimeException(e);
@@ -74,56 +75,23 @@ public class ShardServer implements Shard {
         }
     }
 
-    private <T> String collectParametersAsString(final  Class<T> tClass, final T entity) {
-        return stream(tClass.getDeclaredFields())
-                .filter(field -> !isFieldNull(field, entity))
-                .map(PersistenceUtils::columnNameFor)
-                .collect(Collectors.joining(","));
-    }
-
-    private <T> String collectValuesAsString(final Class<T> tClass, final T entity) {
-        return stream(tClass.getDeclaredFields())
-                .filter(field -> !isFieldNull(field, entity))
-                .map(field -> {
-                    Object value;
-                    if (isEntity(field)) {
-                        final Object entityValue = getValue(field, entity);
-                        final Field idField = idFieldFor(field.getType());
-                        value = getValue(idField, entityValue);
-                    } else {
-                        value = getValue(field, entity);
-                    }
-                    if (value != null) {
-                        if (field.getType().equals(String.class)) {
-                            return format("'%s'", value);
-                        } else if (field.getType().equals(Boolean.class)) {
-                            return String.valueOf((Boolean) value ? 1 : 0);
-                        } else {
-                            return format("%s", value);
-                        }
-                    } else {
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .collect(Collectors.joining(","));
-    }
-
     @Override
     public <T, ID> List<ID> executeQuery(final String query, final Class<T> tClass) {
-        System.out.println(QUERY_HL + query);
-        try (final Connection connection = dataSource.getConnection();
-             final Statement statement = connection.createStatement();
-             final ResultSet resultSet = statement.executeQuery(query)) {
-
-            final List<ID> ids = newArrayList();
-            final String idName = idNameFor(tClass);
-            final Class<? extends ID> idType = idTypeFor(tClass);
-            while (resultSet.next()) {
-                final ID id = resultSet.getObject(idName, idType);
-                ids.add(id);
-            }
-            return ids;
+        try (final Lease lease = lease();
+             final PreparedStatement statement = lease.connection.prepareStatement(query);
+             final ResultSet resultSet = execute("executeQuery", query, statement::executeQuery)) {
+
+            final EntityMetadata metadata = EntityMetadata.of(tClass);
+            final String idName = metadata.getIdName();
+            final Class<? extends ID> idType = (Class<? extends ID>) metadata.getIdType();
+            return map(query, () -> {
+                final List<ID> ids = newArrayList();
+                while (resultSet.next()) {
+                    final ID id = resultSet.getObject(idName, idType);
+                    ids.add(id);
+                }
+                return ids;
+            }, List::size);
 
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -131,14 +99,23 @@ public class ShardServer implements Shard {
     }
 
     @Override
-    public <T> T selectSingle(final String query, final Class<T> tClass) {
-        System.out.println(QUERY_HL + query);
-        try (final Connection connection = dataSource.getConnection();
-             final Statement statement = connection.createStatement();
-             final ResultSet resultSet = statement.executeQuery(query)) {
-
-            Preconditions.checkState(resultSet.next());
-            return resultSet.getObject(1, tClass);
+    public List<Object[]> selectRows(final String query, final List<Object> parameters) {
+        try (final Lease lease = lease();
+             final PreparedStatement statement = prepareStatement(lease.connection, query, parameters);
+             final ResultSet resultSet = execute("selectRows", query, statement::executeQuery)) {
+
+            final int width = resultSet.getMetaData().getColumnCount();
+            return map(query, () -> {
+                final List<Object[]> rows = newArrayList();
+                while (resultSet.next()) {
+                    final Object[] row = new Object[width];
+                    for (int i = 0; i < width; i++) {
+                        row[i] = resultSet.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+                return rows;
+            }, List::size);
 
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -147,36 +124,24 @@ public class ShardServer implements Shard {
 
     @Override
     public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
-        try (final Connection connection = dataSource.getConnection()) {
-
-            final String query = batchInsertFor(tClass, entities);
-            System.out.println(QUERY_HL + query);
+        Preconditions.checkNotNull(entities);
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final Binder<T> binder = metadata.binder();
+        final long mask = metadata.presentColumnsMaskForAll(entities);
+        try (final Lease lease = lease()) {
 
-            try (final PreparedStatement statement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-                final List<Field> fields = getColumnFields(tClass, entities);
+            final String query = metadata.insertSqlFor(mask);
+            try (final PreparedStatement statement = lease.connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
                 for (final T entity : entities) {
-                    for (int i = 0; i < fields.size(); i++) {
-                        final Field field = fields.get(i);
-                        Object value;
-                        if (isEntity(field)) {
-                            final Object entityValue = getValue(field, entity);
-                            final Field idField = idFieldFor(field.getType());
-                            value = getValue(idField, entityValue);
-                        } else {
-                            value = getValue(field, entity);
-                        }
-                        if (value != null) {
-                            statement.setObject(i + 1, value);
-                        }
-                    }
+                    binder.bind(statement, entity, mask);
                     statement.addBatch();
                 }
-                statement.executeBatch();
+                execute("insertAllInBatch", query, statement::executeBatch);
 
                 try (final ResultSet resultSet = statement.getGeneratedKeys()) {
-                    final List<ID> ids = newArrayList();
-                    final String idName = idNameFor(tClass);
-                    final Class<? extends ID> idType = idTypeFor(tClass);
+                    final List<ID> ids = newArrayListWithCapacity(entities.size());
+                    final String idName = metadata.getIdName();
+                    final Class<? extends ID> idType = (Class<? extends ID>) metadata.getIdType();
                     while (resultSet.next()) {
                         ids.add(resultSet.getObject(idName, idType));
                     }
@@ -188,150 +153,343 @@ public class ShardServer implements Shard {
         }
     }
 
-    private <T> List<Field> getColumnFields(final Class<?> clazz, final List<? extends T> entities) {
-        Preconditions.checkNotNull(entities);
-        final List<Field> columnFields = newArrayList();
-        for (final Field field : clazz.getDeclaredFields()) {
-            if (!isAnyFieldNull(field, entities)) {
-                columnFields.add(field);
+    @Override
+    public <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final String query = queryForClassWithCondition(metadata, condition);
+        try (final Lease lease = lease();
+             final PreparedStatement statement = prepareStatement(lease.connection, query, parameters);
+             final ResultSet selected = execute("findAll", query, statement::executeQuery)) {
+
+            final ReferenceResolver references = new ReferenceHandles();
+            try {
+                return map(query, () -> {
+                    final List<T> entities = newArrayList();
+                    while (selected.next()) {
+                        T entity = metadata.<T>rowMapper().map(selected, references);
+                        entities.add(entity);
+                    }
+                    return entities;
+                }, List::size);
+            } catch (SQLException e) {
+                throw new RuntimeException(format(
+                        "Error while fetching all data for class %s %s.",
+                        tClass.getSimpleName(), condition
+                ), e);
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
-        return columnFields;
     }
 
-    private String batchInsertFor(final Class<?> tClass, final List<?> entities) {
-        final String parameters = String.join(",", collectParametersAsString(tClass, entities));
-        final String args = fieldsAsEmptyArgs(tClass, entities);
-        return format("insert into %s (%s) values(%s)", tableNameForClass(tClass), parameters, args);
-    }
-
-    private String collectParametersAsString(final Class<?> clazz, final List<?> entities) {
-        Preconditions.checkNotNull(entities);
-        return stream(clazz.getDeclaredFields())
-                .filter(field -> !isAnyFieldNull(field, entities))
-                .map(PersistenceUtils::columnNameFor)
-                .collect(Collectors.joining(","));
+    @Override
+    public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final String query = queryForClassWithCondition(metadata, condition);
+        final Cursor cursor = Cursor.open(this, query, parameters);
+        final RowMapper<T> rowMapper = metadata.rowMapper();
+        final Iterator<T> rows = new AbstractIterator<>() {
+            @Override
+            protected T computeNext() {
+                try {
+                    if (cursor.resultSet.next()) {
+                        return rowMapper.map(cursor.resultSet, ReferenceHandles.UNSHARED);
+                    }
+                    cursor.close();
+                    return endOfData();
+                } catch (SQLException e) {
+                    cursor.close();
+                    throw new RuntimeException(format(
+                            "Error while streaming data for class %s %s.",
+                            tClass.getSimpleName(), condition
+                    ), e);
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
     }
 
-    private String fieldsAsEmptyArgs(final Class<?> clazz, final List<?> entities) {
-        Preconditions.checkNotNull(entities);
-        return stream(clazz.getDeclaredFields())
-                .filter(field -> !isAnyFieldNull(field, entities))
-                .map(field -> "?")
-                .collect(Collectors.joining(","));
+    @Override
+    public <T> T findOne(final Class<T> tClass, final String condition, final List<Object> parameters) {
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final String query = queryForClassWithCondition(metadata, condition);
+        try (final Lease lease = lease();
+             final PreparedStatement statement = prepareStatement(lease.connection, query, parameters);
+             final ResultSet resultSet = execute("findOne", query, statement::executeQuery)) {
+
+            return map(query, () -> {
+                Verify.verify(resultSet.next());
+                final T mapped = metadata.<T>rowMapper().map(resultSet, new ReferenceHandles());
+                Verify.verify(!resultSet.next(), "Expected unique instance, but got more");
+                return mapped;
+            }, mapped -> 1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
-    public <T> List<T> findAll(final Class<? extends T> tClass, final String condition) {
-        final String query = queryForClassWithCondition(tClass, condition);
-        System.out.println(QUERY_HL + query);
-        try (final Connection connection = dataSource.getConnection();
-             final Statement statement = connection.createStatement();
-             final ResultSet selected = statement.executeQuery(query)) {
-
-            final List<T> entities = newArrayList();
-
-            try {
-                while (selected.next()) {
-                    T entity = map(selected, tClass);
-                    entities.add(entity);
+    public <T> int insertAllIfAbsent(final List<T> entities, final Class<T> tClass) {
+        Preconditions.checkNotNull(entities);
+        if (entities.isEmpty()) {
+            return 0;
+        }
+        final EntityMetadata metadata = EntityMetadata.of(tClass);
+        final Binder<T> binder = metadata.binder();
+        final long mask = metadata.presentColumnsMaskForAll(entities);
+        final String query = metadata.insertSqlFor(mask);
+        try (final Lease lease = lease()) {
+            final Connection connection = lease.connection;
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            final Savepoint batch = lease.savepoint();
+            try (final PreparedStatement statement = connection.prepareStatement(query)) {
+                for (final T entity : entities) {
+                    binder.bind(statement, entity, mask);
+                    statement.addBatch();
                 }
+                execute("insertAllIfAbsent", query, statement::executeBatch);
+                lease.commit(batch);
+                return entities.size();
             } catch (SQLException e) {
-                throw new RuntimeException(format(
-                        "Error while fetching all data for class %s %s.",
-                        tClass.getSimpleName(), condition
-                ));
+                lease.rollback(batch);
+                if (!isUniqueViolation(e)) {
+                    throw e;
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+
+            int inserted = 0;
+            for (final T entity : entities) {
+                final Savepoint row = lease.savepoint();
+                try (final PreparedStatement statement = connection.prepareStatement(query)) {
+                    binder.bind(statement, entity, mask);
+                    inserted += execute("insertAllIfAbsent", query, statement::executeUpdate);
+                } catch (SQLException e) {
+                    if (row != null) {
+                        connection.rollback(row);
+                    }
+                    if (!isUniqueViolation(e)) {
+                        throw e;
+                    }
+                }
             }
-            return entities;
+            return inserted;
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
     @Override
-    public <T> T findOne(final Class<T> tClass, final String condition) {
-        final String query = queryForClassWithCondition(tClass, condition);
-        System.out.println(QUERY_HL + query);
-        try (final Connection connection = dataSource.getConnection();
-             final Statement statement = connection.createStatement();
-             final ResultSet resultSet = statement.executeQuery(query)) {
-
-            Verify.verify(resultSet.next());
-            final T mapped = map(resultSet, tClass);
-            Verify.verify(!resultSet.next(), "Expected unique instance, but got more");
-            return mapped;
+    public int delete(final Class<?> tClass, final String condition, final List<Object> parameters) {
+        final String query = format("delete from %s %s", EntityMetadata.of(tClass).getTableName(), condition);
+        try (final Lease lease = lease();
+             final PreparedStatement statement = prepareStatement(lease.connection, query, parameters)) {
+            return execute("delete", query, statement::executeUpdate);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private String queryForClassWithCondition(final Class<?> tClass, final String condition) {
-        return format("select * from %s %s", tableNameForClass(tClass), condition);
+    private Lease lease() throws SQLException {
+        final ShardEvents.ConnectionAcquisition event = new ShardEvents.ConnectionAcquisition();
+        event.begin();
+        try (final TraceSpan.Scope span = TraceSpan.start(() -> format("shard %s connection", id))) {
+            return Lease.of(dataSource);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.shardId = id;
+                event.pinned = ShardSession.current() != null;
+                event.commit();
+            }
+        }
+    }
+
+    private <R> R execute(final String operation, final String query, final SqlCall<R> call) throws SQLException {
+        final ShardEvents.StatementExecution event = new ShardEvents.StatementExecution();
+        event.begin();
+        final long startedAt = System.nanoTime();
+        final R result;
+        try (final TraceSpan.Scope span = TraceSpan.start(() -> format("shard %s %s: %s", id, operation, SqlFingerprint.of(query)))) {
+            result = call.call();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.shardId = id;
+                event.operation = operation;
+                event.fingerprint = SqlFingerprint.of(query);
+                event.commit();
+            }
+        }
+        queryLog.executed(id, operation, query, System.nanoTime() - startedAt, affectedRows(result));
+        return result;
+    }
+
+    private <R> R map(final String query, final SqlCall<R> mapping, final ToIntFunction<R> rows) throws SQLException {
+        final ShardEvents.RowMapping event = new ShardEvents.RowMapping();
+        event.begin();
+        final R mapped;
+        try (final TraceSpan.Scope span = TraceSpan.start(() -> format("shard %s mapping", id))) {
+            mapped = mapping.call();
+        } finally {
+            event.end();
+        }
+        final int rowCount = rows.applyAsInt(mapped);
+        if (event.shouldCommit()) {
+            event.shardId = id;
+            event.fingerprint = SqlFingerprint.of(query);
+            event.rows = rowCount;
+            event.commit();
+        }
+        queryLog.mapped(id, query, rowCount);
+        return mapped;
+    }
+
+    private static int affectedRows(final Object result) {
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        if (result instanceof int[]) {
+            int rows = 0;
+            for (final int updated : (int[]) result) {
+                rows += updated == Statement.SUCCESS_NO_INFO ? 1 : Math.max(updated, 0);
+            }
+            return rows;
+        }
+        return 0;
     }
 
-    private <T> T map(final ResultSet resultSet, final Class<? extends T> tClass) {
-        final Constructor<?> constructor = findConstructorFor(tClass);
-        final Object[] args = extractArgsForConstructor(resultSet, constructor);
+    private static boolean isUniqueViolation(final SQLException e) {
+        for (SQLException current = e; current != null; current = current.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(current.getSQLState())
+                    || current.getCause() instanceof SQLException
+                    && UNIQUE_VIOLATION.equals(((SQLException) current.getCause()).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static PreparedStatement prepareStatement(final Connection connection, final String query,
+                                                      final List<Object> parameters) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(query);
         try {
-            constructor.setAccessible(true);
-            return (T) constructor.newInstance(args);
-        } catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException(format("Cannot create instance of type %s using constructor %s.", tClass, constructor));
+            final ReadCancellation cancellation = ReadCancellation.current();
+            if (cancellation != null) {
+                cancellation.track(statement);
+            }
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            return statement;
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
         }
     }
 
-    private Object[] extractArgsForConstructor(final ResultSet resultSet, final Constructor<?> constructor) {
-        final Parameter[] parameters = constructor.getParameters();
-        final Object[] args = new Object[parameters.length];
-        for (int i = 0; i < parameters.length; i++) {
-            Preconditions.checkState(parameters[i].isNamePresent(), "Parameter name is not presented. Please use -parameters options for javac.");
-            args[i] = extractArgsForConstructorParameters(resultSet, parameters[i]);
+    private String queryForClassWithCondition(final EntityMetadata metadata, final String condition) {
+        return format("select * from %s %s", metadata.getTableName(), condition);
+    }
+
+    @FunctionalInterface
+    private interface SqlCall<R> {
+
+        R call() throws SQLException;
+    }
+
+    private static final class Lease implements AutoCloseable {
+
+        private final Connection connection;
+        private final boolean pinned;
+
+        private Lease(final Connection connection, final boolean pinned) {
+            this.connection = connection;
+            this.pinned = pinned;
+        }
+
+        static Lease of(final DataSource dataSource) throws SQLException {
+            final ShardSession session = ShardSession.current();
+            return session == null
+                    ? new Lease(dataSource.getConnection(), false)
+                    : new Lease(session.connectionFor(dataSource), true);
+        }
+
+        Savepoint savepoint() throws SQLException {
+            return pinned ? connection.setSavepoint() : null;
+        }
+
+        void commit(final Savepoint savepoint) throws SQLException {
+            if (pinned) {
+                connection.releaseSavepoint(savepoint);
+            } else {
+                connection.commit();
+            }
+        }
+
+        void rollback(final Savepoint savepoint) throws SQLException {
+            if (pinned) {
+                connection.rollback(savepoint);
+            } else {
+                connection.rollback();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (!pinned) {
+                connection.close();
+            }
         }
-        return args;
     }
 
-    private Object extractArgsForConstructorParameters(final ResultSet rs, final Parameter parameter) {
-        final Class<?> parameterType = parameter.getType();
-        if (isEntity(parameterType)) {
-            final String referenceKeyColumnName = referenceKeyColumnName(parameter.getName());
-            final Object extracted = extractValueFor(rs, referenceKeyColumnName);
-            if (extracted == null) return null;
-            final Class<?> entityParameterType = entityClassFor(parameterType);
-            return selectSingle(format("select * from %s", tableNameForClass(entityParameterType)), entityParameterType);
-        } else {
-            final Object extracted = extractValueFor(rs, parameter.getName());
-            if (!parameterType.isAssignableFrom(extracted.getClass())) {
-                if (extracted instanceof Number) {
-                    if (parameterType.equals(int.class)) {
-                        return ((Number) extracted).intValue();
-                    } else if (parameterType.equals(boolean.class)) {
-                        final int extractedAsInt = ((Number) extracted).intValue();
-                        return extractedAsInt == 1;
-                    } else if (parameterType.equals(long.class)) {
-                        return ((Number) extracted).longValue();
-                    } else {
-                        throw new RuntimeException(
-                                format("Cannot cast %s to type %s to parameter %s of type %s",
-                                        extracted,
-                                        extracted.getClass().getSimpleName(),
-                                        parameter.getName(),
-                                        parameterType.getSimpleName())
-                        );
-                    }
-                } else {
-                    throw new RuntimeException(
-                            format(
-                                    "Cannot cast %s of type %s to parameter %s of type %s",
-                                    extracted,
-                                    extracted.getClass().getSimpleName(),
-                                    parameter.getName(),
-                                    parameterType.getSimpleName()
-                            )
-                    );
+    private static final class Cursor implements AutoCloseable {
+
+        private final Lease lease;
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        private boolean closed;
+
+        private Cursor(final Lease lease, final PreparedStatement statement, final ResultSet resultSet) {
+            this.lease = lease;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        static Cursor open(final ShardServer server, final String query, final List<Object> parameters) {
+            Lease lease = null;
+            PreparedStatement statement = null;
+            try {
+                lease = server.lease();
+                lease.connection.setAutoCommit(false);
+                statement = prepareStatement(lease.connection, query, parameters);
+                statement.setFetchSize(server.fetchSize);
+                return new Cursor(lease, statement, server.execute("stream", query, statement::executeQuery));
+            } catch (SQLException e) {
+                new Cursor(lease, statement, null).close();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try (final Lease ignoredLease = lease;
+                 final PreparedStatement ignoredStatement = statement;
+                 final ResultSet ignoredResultSet = resultSet) {
+                if (lease != null && !lease.pinned) {
+                    lease.connection.rollback();
+                    lease.connection.setAutoCommit(true);
                 }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
             }
-            return extracted;
         }
     }
-
 }
@@ -0,0 +1,132 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+public final class ShardSession implements AutoCloseable {
+
+    private static final ThreadLocal<ShardSession> CURRENT = new ThreadLocal<>();
+
+    private final Map<DataSource, Connection> connections = new IdentityHashMap<>();
+    private final List<Runnable> closeListeners = newArrayList();
+    private final Scope scope;
+    private boolean committed;
+    private boolean abandoned;
+    private boolean closed;
+
+    private ShardSession() {
+        this.scope = bind();
+    }
+
+    public static ShardSession current() {
+        return CURRENT.get();
+    }
+
+    public static ShardSession open() {
+        Preconditions.checkState(CURRENT.get() == null, "A shard session is already open on this thread.");
+        return new ShardSession();
+    }
+
+    Scope bind() {
+        final ShardSession previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    synchronized Connection connectionFor(final DataSource dataSource) throws SQLException {
+        Preconditions.checkState(!closed, "Shard session is already closed.");
+        Preconditions.checkState(!committed, "Shard session is already committed.");
+        final Connection pinned = connections.get(dataSource);
+        if (pinned != null) {
+            return pinned;
+        }
+        final Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        connections.put(dataSource, connection);
+        return connection;
+    }
+
+    synchronized void onClose(final Runnable listener) {
+        Preconditions.checkState(!closed, "Shard session is already closed.");
+        closeListeners.add(listener);
+    }
+
+    /**
+     * Marks a session whose cancelled fan-out tasks did not stop in time, so their partial writes are rolled back.
+     */
+    synchronized void abandon() {
+        abandoned = true;
+    }
+
+    public synchronized void commit() {
+        Preconditions.checkState(!closed, "Shard session is already closed.");
+        Preconditions.checkState(!abandoned, "Shard session has fan-out tasks that did not stop and cannot be committed.");
+        int done = 0;
+        for (final Connection connection : connections.values()) {
+            try {
+                connection.commit();
+                done++;
+            } catch (SQLException e) {
+                throw new RuntimeException(format("Cannot commit shard session, %s of %s shards are committed.",
+                        done, connections.size()), e);
+            }
+        }
+        committed = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        scope.close();
+        RuntimeException failure = null;
+        for (final Connection connection : connections.values()) {
+            try (final Connection ignored = connection) {
+                if (!committed) {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = new RuntimeException("Cannot release shard session connections.", e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        connections.clear();
+        closeListeners.forEach(Runnable::run);
+        closeListeners.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
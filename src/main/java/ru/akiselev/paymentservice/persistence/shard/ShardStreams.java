@@ -0,0 +1,86 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import ru.akiselev.paymentservice.persistence.EntityColumn;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+
+final class ShardStreams {
+
+    private ShardStreams() {
+
+    }
+
+    static <T> Stream<T> concat(final Collection<? extends Shard> shards, final Function<? super Shard, Stream<T>> open) {
+        final List<Shard> pending = newArrayList(shards);
+        final OpenStream<T> current = new OpenStream<>();
+        final Iterator<T> rows = new AbstractIterator<>() {
+            private Iterator<T> iterator;
+
+            @Override
+            protected T computeNext() {
+                while (iterator == null || !iterator.hasNext()) {
+                    current.close();
+                    if (pending.isEmpty()) {
+                        return endOfData();
+                    }
+                    current.stream = open.apply(pending.remove(0));
+                    iterator = current.stream.iterator();
+                }
+                return iterator.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(current::close);
+    }
+
+    static <T> List<T> mergeSorted(final List<List<T>> portions, final Comparator<? super T> order, final int limit) {
+        final PriorityQueue<PeekingIterator<T>> heads = new PriorityQueue<>(
+                Math.max(1, portions.size()), (left, right) -> order.compare(left.peek(), right.peek()));
+        for (final List<T> portion : portions) {
+            if (!portion.isEmpty()) {
+                heads.add(Iterators.peekingIterator(portion.iterator()));
+            }
+        }
+        final List<T> merged = newArrayListWithCapacity(limit);
+        while (merged.size() < limit && !heads.isEmpty()) {
+            final PeekingIterator<T> head = heads.poll();
+            merged.add(head.next());
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    static <T> Comparator<T> byColumn(final EntityColumn column) {
+        return (left, right) -> ((Comparable<Object>) column.valueOf(left)).compareTo(column.valueOf(right));
+    }
+
+    private static final class OpenStream<T> {
+
+        private Stream<T> stream;
+
+        void close() {
+            if (stream != null) {
+                final Stream<T> closing = stream;
+                stream = null;
+                closing.close();
+            }
+        }
+    }
+}
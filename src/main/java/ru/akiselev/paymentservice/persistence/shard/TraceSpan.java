@@ -0,0 +1,110 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+public final class TraceSpan {
+
+    private static final ThreadLocal<TraceSpan> CURRENT = new ThreadLocal<>();
+    private static final Scope NO_SCOPE = () -> { };
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final String name;
+    private final long startedAt;
+    private final Queue<TraceSpan> children = new ConcurrentLinkedQueue<>();
+    private volatile long finishedAt;
+
+    private TraceSpan(final String name) {
+        this.name = name;
+        this.startedAt = System.nanoTime();
+    }
+
+    public static TraceSpan current() {
+        return CURRENT.get();
+    }
+
+    public static TraceSpan root(final String name) {
+        Preconditions.checkNotNull(name);
+        return new TraceSpan(name);
+    }
+
+    public static Scope start(final String name) {
+        final TraceSpan parent = CURRENT.get();
+        return parent == null ? NO_SCOPE : parent.child(name);
+    }
+
+    public static Scope start(final Supplier<String> name) {
+        final TraceSpan parent = CURRENT.get();
+        return parent == null ? NO_SCOPE : parent.child(name.get());
+    }
+
+    public static <R> Supplier<R> propagating(final Supplier<R> work) {
+        final TraceSpan span = CURRENT.get();
+        if (span == null) {
+            return work;
+        }
+        return () -> {
+            try (final Scope scope = span.bind()) {
+                return work.get();
+            }
+        };
+    }
+
+    public Scope bind() {
+        final TraceSpan previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    public void finish() {
+        if (finishedAt == 0L) {
+            finishedAt = System.nanoTime();
+        }
+    }
+
+    public long elapsedNanos() {
+        final long finished = finishedAt;
+        return (finished == 0L ? System.nanoTime() : finished) - startedAt;
+    }
+
+    public String render() {
+        final StringBuilder tree = new StringBuilder();
+        render(tree, startedAt, 0);
+        return tree.toString();
+    }
+
+    private Scope child(final String childName) {
+        final TraceSpan child = new TraceSpan(childName);
+        children.add(child);
+        final Scope scope = child.bind();
+        return () -> {
+            child.finish();
+            scope.close();
+        };
+    }
+
+    private void render(final StringBuilder tree, final long origin, final int depth) {
+        tree.append("  ".repeat(depth))
+                .append(format("+%.3f ms %.3f ms %s%s", (startedAt - origin) / NANOS_PER_MILLI,
+                        elapsedNanos() / NANOS_PER_MILLI, name, finishedAt == 0L ? " (running)" : ""))
+                .append(System.lineSeparator());
+        children.forEach(child -> child.render(tree, origin, depth + 1));
+    }
+
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
@@ -6,14 +6,19 @@ import org.springframework.stereotype.Service;
 import ru.akiselev.paymentservice.dto.CustomerDto;
 import ru.akiselev.paymentservice.entity.Customer;
 import ru.akiselev.paymentservice.persistence.dao.CustomerDao;
+import ru.akiselev.paymentservice.persistence.shard.PartialResult;
 import ru.akiselev.paymentservice.utils.CustomerConverter;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 @Service
 @RequiredArgsConstructor
 public class CustomerService {
 
+    public static final int MAX_PAGE_SIZE = 1_000;
+
     private final CustomerDao customerDao;
 
     public CustomerDto saveCustomer(final CustomerDto customerDto) {
@@ -27,6 +32,11 @@ public class CustomerService {
         return customerDao.findAllIds();
     }
 
+    public Set<Long> getExistingCustomerIds(final Collection<Long> ids) {
+        Preconditions.checkNotNull(ids);
+        return customerDao.findExistingIds(ids);
+    }
+
     public List<CustomerDto> saveAllCustomers(final List<CustomerDto> customerDtos) {
         Preconditions.checkNotNull(customerDtos);
         final List<Customer> customers = CustomerConverter.fromDto(customerDtos);
@@ -34,11 +44,20 @@ public class CustomerService {
         return CustomerConverter.toDto(savedCustomers);
     }
 
-    public List<CustomerDto> getAllCustomer() {
-        final List<Customer> customers = customerDao.findAll();
+    public List<CustomerDto> getCustomers(final Long after, final int limit) {
+        Preconditions.checkArgument(limit > 0 && limit <= MAX_PAGE_SIZE,
+                "Page limit must be between 1 and %s, but got %s.", MAX_PAGE_SIZE, limit);
+        final List<Customer> customers = customerDao.findPage(after, limit);
         return CustomerConverter.toDto(customers);
     }
 
+    public PartialResult<CustomerDto> getAvailableCustomers(final Long after, final int limit) {
+        Preconditions.checkArgument(limit > 0 && limit <= MAX_PAGE_SIZE,
+                "Page limit must be between 1 and %s, but got %s.", MAX_PAGE_SIZE, limit);
+        final PartialResult<Customer> customers = customerDao.findAvailablePage(after, limit);
+        return new PartialResult<>(CustomerConverter.toDto(customers.getResults()), customers.getMissingShardIds());
+    }
+
     public CustomerDto getCustomer(final long id) {
         final Customer customer = customerDao.findOne(id);
         return CustomerConverter.toDto(customer);
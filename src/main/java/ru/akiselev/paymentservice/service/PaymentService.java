@@ -3,12 +3,14 @@ package ru.akiselev.paymentservice.service;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import ru.akiselev.paymentservice.dto.PaymentDto;
-import ru.akiselev.paymentservice.entity.Payment;
 import ru.akiselev.paymentservice.persistence.dao.PaymentDao;
+import ru.akiselev.paymentservice.persistence.shard.ShardManager;
 import ru.akiselev.paymentservice.utils.PaymentConverter;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static java.util.Collections.emptyList;
@@ -20,27 +22,48 @@ public class PaymentService {
 
     private final PaymentDao paymentDao;
     private final CustomerService customerService;
+    private final ShardManager shardManager;
 
-    public List<PaymentDto> savePayments(final List<PaymentDto> paymentDtos) {
+    public CompletableFuture<List<PaymentDto>> savePayments(final List<PaymentDto> paymentDtos) {
         if (isEmpty(paymentDtos)) {
-            return emptyList();
+            return CompletableFuture.completedFuture(emptyList());
         }
+        if (paymentDao.commitsInGroups()) {
+            checkReceivers(paymentDtos);
+            return paymentDao.saveAllAsync(PaymentConverter.fromDto(paymentDtos))
+                    .thenApply(PaymentConverter::toDto);
+        }
+        return CompletableFuture.completedFuture(shardManager.inSession(() -> {
+            checkReceivers(paymentDtos);
+            return PaymentConverter.toDto(paymentDao.saveAll(PaymentConverter.fromDto(paymentDtos)));
+        }));
+    }
+
+    private void checkReceivers(final List<PaymentDto> paymentDtos) {
         final Set<Long> receiverIds = paymentDtos.stream()
                 .map(PaymentDto::getReceiverId)
                 .collect(Collectors.toSet());
 
-        final List<Long> customerIds = customerService.getAllCustomerIds();
-        customerIds.forEach(receiverIds::remove);
+        final Set<Long> existingIds = customerService.getExistingCustomerIds(receiverIds);
+        receiverIds.removeAll(existingIds);
         if (!receiverIds.isEmpty()) {
             throw new IllegalArgumentException("Receiver IDs are not valid: " + receiverIds);
         }
+    }
 
-        final List<Payment> payments = PaymentConverter.fromDto(paymentDtos);
-        final List<Payment> savedPayments = paymentDao.saveAll(payments);
-        return PaymentConverter.toDto(savedPayments);
+    public PaymentDto getPayment(final long id) {
+        return PaymentConverter.toDto(paymentDao.findOne(id));
     }
 
     public long getAmountBySenderId(long senderId) {
         return paymentDao.sumAmountBySenderId(senderId);
     }
+
+    public Map<Long, Long> getAmountsBySender() {
+        return paymentDao.sumAmountGroupedBySender();
+    }
+
+    public Map<String, Object> getAmountStatistics() {
+        return paymentDao.amountStatistics().getValues();
+    }
 }
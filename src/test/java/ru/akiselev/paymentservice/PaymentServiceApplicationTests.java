@@ -3,7 +3,7 @@ package ru.akiselev.paymentservice;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(properties = "sharding.id.node-id=0")
 class PaymentServiceApplicationTests {
 
 	@Test
@@ -0,0 +1,172 @@
+package ru.akiselev.paymentservice.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.persistence.shard.FanOutExecutor;
+import ru.akiselev.paymentservice.persistence.shard.HashShardManager;
+import ru.akiselev.paymentservice.persistence.shard.Rebalancer;
+import ru.akiselev.paymentservice.persistence.shard.ReshardingShardManager;
+import ru.akiselev.paymentservice.persistence.shard.ShardServer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardTopologyTest {
+
+    private static final List<Class<?>> ENTITIES = List.of(Customer.class);
+
+    private FanOutExecutor fanOutExecutor;
+    private ShardTopology topology;
+    private ReshardingShardManager shardManager;
+    private Rebalancer rebalancer;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(4, 5_000L);
+        topology = new ShardTopology(List.of(shard(1, 4), shard(2, 4)), ShardTopologyTest::openPool,
+                pools -> new HashShardManager(pools.stream().map(ShardPool::getShard).collect(toList()), fanOutExecutor),
+                false, 5_000L);
+        shardManager = new ReshardingShardManager(topology.router(), fanOutExecutor);
+        rebalancer = new Rebalancer(shardManager, 10, 1_000_000);
+        shardManager.saveAllInBatch(LongStream.rangeClosed(1, 30)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList()), Customer.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        topology.close();
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void addedShardIsWarmedAndReceivesItsRows() {
+        final ShardPool first = pool(1);
+        final ShardPool second = pool(2);
+
+        topology.apply(List.of(shard(1, 4), shard(2, 6), shard(3, 4)), rebalancer, ENTITIES);
+
+        assertEquals(List.of(1, 2, 3), topology.pools().stream().map(ShardPool::getId).collect(Collectors.toList()));
+        assertSame(first, pool(1));
+        assertSame(second, pool(2));
+        assertEquals(6, second.getPrimary().getHikariConfigMXBean().getMaximumPoolSize());
+        assertTrue(pool(3).getPrimary().getHikariPoolMXBean().getTotalConnections() > 0);
+        assertFalse(pool(3).getShard().findAll(Customer.class, "", List.of()).isEmpty());
+        assertEquals(30, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void removedShardIsDrainedBeforeClosing() throws Exception {
+        final ShardPool removed = pool(2);
+        final Connection inFlight = removed.getPrimary().getConnection();
+
+        final CompletableFuture<Void> reload = CompletableFuture.runAsync(() ->
+                topology.apply(List.of(shard(1, 4)), rebalancer, ENTITIES));
+        while (topology.pools().contains(removed)) {
+            Thread.sleep(10L);
+        }
+        assertFalse(removed.getPrimary().isClosed());
+
+        inFlight.close();
+        reload.get(5, TimeUnit.SECONDS);
+        assertTrue(removed.getPrimary().isClosed());
+        assertEquals(30, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void resizingPoolsDoesNotRebalance() {
+        final long version = shardManager.shardMap().getVersion();
+
+        topology.apply(List.of(shard(1, 6), shard(2, 6)), rebalancer, ENTITIES);
+
+        assertEquals(version, shardManager.shardMap().getVersion());
+        assertEquals(6, pool(1).getPrimary().getHikariConfigMXBean().getMaximumPoolSize());
+    }
+
+    @Test
+    void reweightingUnweightedRoutingDoesNotRebalance() {
+        final long version = shardManager.shardMap().getVersion();
+        final ShardingProperties.ShardingDataSourceProperties heavier = shard(2, 4);
+        heavier.setWeight(3);
+
+        topology.apply(List.of(shard(1, 4), heavier), rebalancer, ENTITIES);
+
+        assertEquals(version, shardManager.shardMap().getVersion());
+        assertEquals(30, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void shardMovedToAnotherDatabaseKeepsItsRows() {
+        final ShardPool moved = pool(2);
+        final int rows = moved.getShard().findAll(Customer.class, "", List.of()).size();
+
+        topology.apply(List.of(shard(1, 4), shard(2, 4, "topology2moved")), rebalancer, ENTITIES);
+
+        assertTrue(moved.getPrimary().isClosed());
+        assertEquals(rows, pool(2).getShard().findAll(Customer.class, "", List.of()).size());
+        assertEquals(30, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void invalidTopologyKeepsCurrentShards() {
+        assertThrows(IllegalArgumentException.class,
+                () -> topology.apply(List.of(shard(1, 4), shard(1, 4)), rebalancer, ENTITIES));
+
+        assertEquals(2, topology.pools().size());
+        assertEquals(30, shardManager.find(Customer.class).all().size());
+    }
+
+    private ShardPool pool(final int id) {
+        return topology.pools().stream()
+                .filter(pool -> pool.getId() == id)
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static ShardingProperties.ShardingDataSourceProperties shard(final int id, final int maximumPoolSize) {
+        return shard(id, maximumPoolSize, "topology" + id);
+    }
+
+    private static ShardingProperties.ShardingDataSourceProperties shard(final int id, final int maximumPoolSize,
+                                                                        final String database) {
+        final ShardingProperties.ShardingDataSourceProperties shard = new ShardingProperties.ShardingDataSourceProperties();
+        shard.setId(id);
+        shard.setJdbcUrl("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        shard.setMaximumPoolSize(maximumPoolSize);
+        shard.setMinimumIdle(2);
+        return shard;
+    }
+
+    private static ShardPool openPool(final ShardingProperties.ShardingDataSourceProperties shard) {
+        final HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(shard.getJdbcUrl());
+        config.setMaximumPoolSize(shard.getMaximumPoolSize());
+        config.setMinimumIdle(shard.getMinimumIdle());
+        final HikariDataSource dataSource = new HikariDataSource(config);
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists customer");
+            statement.execute("create table customer(id bigint auto_increment primary key, name varchar(100))");
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return new ShardPool(shard, dataSource, List.of(), new ShardServer(shard.getId(), dataSource));
+    }
+}
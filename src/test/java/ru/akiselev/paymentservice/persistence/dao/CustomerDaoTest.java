@@ -0,0 +1,79 @@
+package ru.akiselev.paymentservice.persistence.dao;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.dto.CustomerDto;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.persistence.generator.IdGenerator;
+import ru.akiselev.paymentservice.persistence.generator.SnowflakeIdGenerator;
+import ru.akiselev.paymentservice.persistence.shard.FanOutExecutor;
+import ru.akiselev.paymentservice.persistence.shard.ShardEncodedShardManager;
+import ru.akiselev.paymentservice.persistence.shard.ShardServer;
+import ru.akiselev.paymentservice.utils.CustomerConverter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class CustomerDaoTest {
+
+    private final AtomicInteger generated = new AtomicInteger();
+    private final SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(0L, 1, 8, 2, 12);
+    private final IdGenerator idGenerator = shardId -> {
+        generated.incrementAndGet();
+        return snowflake.next(shardId);
+    };
+    private FanOutExecutor fanOutExecutor;
+    private CustomerDao customerDao;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:customerDao;DB_CLOSE_DELAY=-1");
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists customer");
+            statement.execute("create table customer(id bigint auto_increment primary key, name varchar(100))");
+        }
+        fanOutExecutor = new FanOutExecutor(2, 5_000L);
+        customerDao = new CustomerDao(
+                new ShardEncodedShardManager(List.of(new ShardServer(1, dataSource)), fanOutExecutor, 2, Map.of()),
+                idGenerator);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void customerPostedWithoutIdGetsGeneratedId() {
+        final Customer first = customerDao.save(CustomerConverter.fromDto(new CustomerDto(null, "first")));
+        final Customer second = customerDao.save(CustomerConverter.fromDto(new CustomerDto(null, "second")));
+
+        assertNotNull(first.getId());
+        assertNotEquals(0L, first.getId().longValue());
+        assertNotEquals(first.getId(), second.getId());
+        assertEquals("second", customerDao.findOne(second.getId()).getName());
+        assertEquals(2, generated.get());
+    }
+
+    @Test
+    void customerWithIdDoesNotConsumeGeneratedIds() {
+        final long id = snowflake.next(1);
+
+        customerDao.saveAllInBatch(List.of(new Customer(id, "given")));
+
+        assertEquals("given", customerDao.findOne(id).getName());
+        assertEquals(0, generated.get());
+    }
+}
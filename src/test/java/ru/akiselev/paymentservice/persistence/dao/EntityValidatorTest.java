@@ -0,0 +1,41 @@
+package ru.akiselev.paymentservice.persistence.dao;
+
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityValidatorTest {
+
+    @Test
+    void batchReportsEveryInvalidEntity() {
+        final List<Customer> customers = List.of(
+                new Customer(1L, null),
+                new Customer(2L, "valid"),
+                new Customer(3L, "x".repeat(101))
+        );
+
+        final RuntimeException error = assertThrows(RuntimeException.class, () -> EntityValidator.validate(customers));
+
+        assertTrue(error.getMessage().contains("#0 name: Customer name can't be null"), error.getMessage());
+        assertTrue(error.getMessage().contains("#2 name: Customer name can't be more than 100 symbols"), error.getMessage());
+    }
+
+    @Test
+    void largeBatchIsValidatedInParallel() {
+        final List<Customer> customers = LongStream.range(0, EntityValidator.PARALLEL_THRESHOLD * 5L)
+                .mapToObj(id -> new Customer(id, id == 4_321L ? null : "customer" + id))
+                .collect(toList());
+
+        final RuntimeException error = assertThrows(RuntimeException.class, () -> EntityValidator.validate(customers));
+
+        assertTrue(error.getMessage().contains("#4321 name"), error.getMessage());
+        assertDoesNotThrow(() -> EntityValidator.validate(customers.subList(0, 4_321)));
+    }
+}
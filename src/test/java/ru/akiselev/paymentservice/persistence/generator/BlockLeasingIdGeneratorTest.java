@@ -0,0 +1,62 @@
+package ru.akiselev.paymentservice.persistence.generator;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BlockLeasingIdGeneratorTest {
+
+    @Test
+    void instancesSharingSequenceTableNeverCollide() throws SQLException {
+        final DataSource dataSource = sequenceDatabase("blockLeasing");
+        final List<IdGenerator> instances = List.of(
+                new BlockLeasingIdGenerator(Map.of(1, dataSource), "customer", 10, 0),
+                new BlockLeasingIdGenerator(Map.of(1, dataSource), "customer", 10, 0)
+        );
+        final Set<Long> ids = ConcurrentHashMap.newKeySet();
+        final List<CompletableFuture<Void>> workers = IntStream.range(0, 4)
+                .mapToObj(worker -> CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < 1_000; i++) {
+                        ids.add(instances.get(worker % 2).next());
+                    }
+                }))
+                .collect(toList());
+        workers.forEach(CompletableFuture::join);
+
+        assertEquals(4_000, ids.size());
+    }
+
+    @Test
+    void shardBitsAreKeptInLowBits() throws SQLException {
+        final IdGenerator generator = new BlockLeasingIdGenerator(
+                Map.of(1, sequenceDatabase("blockShard1"), 2, sequenceDatabase("blockShard2")), "customer", 100, 2);
+
+        assertEquals(1L << 2 | 1, generator.next(1));
+        assertEquals(2L << 2 | 1, generator.next(1));
+        assertEquals(1L << 2 | 2, generator.next(2));
+    }
+
+    private static DataSource sequenceDatabase(final String name) throws SQLException {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists id_sequence");
+            statement.execute("create table id_sequence(name varchar(64) primary key, next_value bigint not null)");
+        }
+        return dataSource;
+    }
+}
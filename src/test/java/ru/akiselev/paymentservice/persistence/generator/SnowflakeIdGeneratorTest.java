@@ -0,0 +1,82 @@
+package ru.akiselev.paymentservice.persistence.generator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdGeneratorTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 50_000;
+
+    @Test
+    void idsAreUniqueAndIncreasingPerThread() {
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0L, 1, 10, 0, 12);
+        final Set<Long> ids = ConcurrentHashMap.newKeySet();
+        final List<CompletableFuture<Void>> workers = IntStream.range(0, THREADS)
+                .mapToObj(thread -> CompletableFuture.runAsync(() -> {
+                    long previous = 0;
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        final long id = generator.next();
+                        assertTrue(id > previous, "Ids are not increasing");
+                        ids.add(id);
+                        previous = id;
+                    }
+                }))
+                .collect(toList());
+        workers.forEach(CompletableFuture::join);
+
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    void layoutCarriesNodeShardAndSequence() {
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1_000L, 5, 4, 3, 6, () -> 1_002L);
+
+        final long first = generator.next(3);
+        final long second = generator.next(6);
+
+        assertEquals(3L, first & 0b111);
+        assertEquals(6L, second & 0b111);
+        assertEquals(0L, first >>> 3 & 0b111111);
+        assertEquals(1L, second >>> 3 & 0b111111);
+        assertEquals(5L, first >>> 9 & 0b1111);
+        assertEquals(2L, first >>> 13);
+    }
+
+    @Test
+    void sequenceOverflowAndClockRollbackKeepIdsIncreasing() {
+        final AtomicLong clock = new AtomicLong(100L);
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0L, 0, 0, 0, 2, clock::get);
+
+        long previous = 0;
+        for (int i = 0; i < 4; i++) {
+            final long id = generator.next();
+            assertTrue(id > previous);
+            previous = id;
+        }
+        clock.set(101L);
+        final long nextMillisecond = generator.next();
+        assertEquals(101L, nextMillisecond >>> 2);
+        clock.set(50L);
+        assertTrue(generator.next() > nextMillisecond);
+    }
+
+    @Test
+    void rejectsShardOutsideOfShardBits() {
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0L, 0, 10, 2, 12);
+
+        assertThrows(IllegalArgumentException.class, () -> generator.next(4));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(0L, 1024, 10, 2, 12));
+    }
+}
@@ -0,0 +1,98 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashShardManagerTest {
+
+    private static final int KEYS = 2_000_000;
+    private static final int VIRTUAL_NODES = 256;
+
+    private FanOutExecutor fanOutExecutor;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(1, 1_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void keysAreSpreadEvenlyAcrossShards() {
+        final ConsistentHashShardManager shardManager = manager(4, Map.of());
+
+        final int[] counts = countByShard(shardManager, 4);
+
+        final double fairShare = (double) KEYS / 4;
+        for (int shardId = 1; shardId <= 4; shardId++) {
+            final double deviation = Math.abs(counts[shardId] - fairShare) / fairShare;
+            assertTrue(deviation < 0.15, "Shard " + shardId + " got " + counts[shardId] + " keys");
+        }
+    }
+
+    @Test
+    void addingShardMovesOnlyItsShareOfKeysToTheNewShard() {
+        final ConsistentHashShardManager before = manager(3, Map.of());
+        final ConsistentHashShardManager after = manager(4, Map.of());
+
+        int moved = 0;
+        for (long key = 0; key < KEYS; key++) {
+            final int oldShardId = before.evaluateShardIdForKey(key);
+            final int newShardId = after.evaluateShardIdForKey(key);
+            if (oldShardId != newShardId) {
+                assertEquals(4, newShardId, "Key " + key + " moved between existing shards");
+                moved++;
+            }
+        }
+
+        final double movedFraction = (double) moved / KEYS;
+        assertTrue(movedFraction > 0.15 && movedFraction < 0.35, "Moved fraction " + movedFraction);
+    }
+
+    @Test
+    void weightedShardReceivesProportionalShare() {
+        final ConsistentHashShardManager shardManager = manager(3, Map.of(3, 2));
+
+        final int[] counts = countByShard(shardManager, 3);
+
+        final double ratio = counts[3] / ((counts[1] + counts[2]) / 2.0);
+        assertTrue(ratio > 1.6 && ratio < 2.4, "Weighted shard ratio " + ratio);
+    }
+
+    @Test
+    void stringKeysAreRoutedToExistingShards() {
+        final ConsistentHashShardManager shardManager = manager(3, Map.of());
+
+        for (int i = 0; i < 1_000; i++) {
+            final int shardId = shardManager.evaluateShardIdForKey("customer" + i);
+            assertTrue(shardId >= 1 && shardId <= 3, "Unknown shard " + shardId);
+        }
+    }
+
+    private ConsistentHashShardManager manager(final int shardCount, final Map<Integer, Integer> weights) {
+        final List<Shard> shards = IntStream.rangeClosed(1, shardCount)
+                .mapToObj(shardId -> (Shard) new ShardServer(shardId, null))
+                .collect(toList());
+        return new ConsistentHashShardManager(shards, fanOutExecutor, VIRTUAL_NODES, weights);
+    }
+
+    private static int[] countByShard(final ConsistentHashShardManager shardManager, final int shardCount) {
+        final int[] counts = new int[shardCount + 1];
+        for (long key = 0; key < KEYS; key++) {
+            counts[shardManager.evaluateShardIdForKey(key)]++;
+        }
+        return counts;
+    }
+}
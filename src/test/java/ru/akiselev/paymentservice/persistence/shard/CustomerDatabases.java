@@ -0,0 +1,41 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * In-memory H2 databases with an empty customer table, shared by the shard tests.
+ */
+final class CustomerDatabases {
+
+    private CustomerDatabases() {
+    }
+
+    static JdbcDataSource customerDatabase(final String name) throws SQLException {
+        return customerDatabase(new JdbcDataSource(), name);
+    }
+
+    static <D extends JdbcDataSource> D customerDatabase(final D dataSource, final String name) throws SQLException {
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists customer");
+            statement.execute("create table customer(id bigint auto_increment primary key, name varchar(100))");
+        }
+        return dataSource;
+    }
+
+    static List<Shard> customerShards(final String name, final int count) throws SQLException {
+        final List<Shard> shards = newArrayList();
+        for (int shardId = 1; shardId <= count; shardId++) {
+            shards.add(new ShardServer(shardId, customerDatabase(name + shardId)));
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,155 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class GroupCommitWriterTest {
+
+    private FanOutExecutor fanOutExecutor;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(4, 5_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void concurrentSmallRequestsAreCommittedInFewBatches() throws Exception {
+        final AtomicInteger batches = new AtomicInteger();
+        final List<Shard> shards = newArrayList();
+        for (int shardId = 1; shardId <= 3; shardId++) {
+            shards.add(new ShardServer(shardId, customerDatabase("groupCommit" + shardId)) {
+                @Override
+                public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+                    batches.incrementAndGet();
+                    return super.insertAllInBatch(entities, tClass);
+                }
+            });
+        }
+        final ShardManager shardManager = new HashShardManager(shards, fanOutExecutor);
+
+        final List<CompletableFuture<List<Long>>> requests;
+        try (final GroupCommitWriter<Customer> writer = new GroupCommitWriter<>(shardManager, Customer.class, 1_000, 100, 20L, 1_000L)) {
+            requests = IntStream.range(0, 200)
+                    .mapToObj(request -> CompletableFuture.supplyAsync(() -> writer.<Long>submit(customers(request * 3L + 1, 3)))
+                            .thenCompose(submitted -> submitted))
+                    .collect(toList());
+            for (int request = 0; request < requests.size(); request++) {
+                final List<Long> ids = requests.get(request).get(5, TimeUnit.SECONDS);
+                assertEquals(List.of(request * 3L + 1, request * 3L + 2, request * 3L + 3), ids);
+            }
+        }
+
+        assertEquals(600, shardManager.find(Customer.class).all().size());
+        assertTrue(batches.get() < 200, "Requests were not grouped: " + batches.get() + " batches");
+    }
+
+    @Test
+    void fullQueueRejectsCallers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Shard blocked = new ShardServer(1, customerDatabase("groupCommitBlocked")) {
+            @Override
+            public <ID, T> List<ID> insertAllInBatch(final List<T> entities, final Class<T> tClass) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.insertAllInBatch(entities, tClass);
+            }
+        };
+        final ShardManager shardManager = new HashShardManager(List.of(blocked), fanOutExecutor);
+
+        try (final GroupCommitWriter<Customer> writer = new GroupCommitWriter<>(shardManager, Customer.class, 1, 1, 0L, 50L)) {
+            final CompletableFuture<List<Long>> first = writer.submit(customers(1L, 1));
+            final CompletableFuture<List<Long>> second = waitUntilQueued(writer, 2L);
+
+            assertThrows(RuntimeException.class, () -> writer.submit(customers(3L, 1)));
+
+            release.countDown();
+            assertEquals(List.of(1L), first.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of(2L), second.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void failedBatchFailsOnlyTheCallersWithFailingRows() throws Exception {
+        final ShardManager shardManager = new HashShardManager(
+                List.of(new ShardServer(1, customerDatabase("groupCommitRetried"))), fanOutExecutor);
+
+        try (final GroupCommitWriter<Customer> writer = new GroupCommitWriter<>(shardManager, Customer.class, 100, 100, 200L, 1_000L)) {
+            final CompletableFuture<List<Long>> valid = writer.submit(customers(1L, 2));
+            final CompletableFuture<List<Long>> duplicate = writer.submit(customers(2L, 1));
+            final CompletableFuture<List<Long>> alsoValid = writer.submit(customers(3L, 1));
+
+            assertEquals(List.of(1L, 2L), valid.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of(3L), alsoValid.get(5, TimeUnit.SECONDS));
+            assertThrows(ExecutionException.class, () -> duplicate.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(3, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void writesQueuedWhileClosingAreFailed() throws Exception {
+        final ShardManager shardManager = new HashShardManager(
+                List.of(new ShardServer(1, customerDatabase("groupCommitClosed"))), fanOutExecutor);
+        final GroupCommitWriter<Customer> writer = new GroupCommitWriter<>(shardManager, Customer.class, 100, 1, 0L, 1_000L);
+        final List<CompletableFuture<List<Long>>> requests = newArrayList();
+        final CompletableFuture<Void> submitting = CompletableFuture.runAsync(() -> {
+            for (long id = 1; ; id++) {
+                try {
+                    requests.add(writer.submit(customers(id, 1)));
+                } catch (RuntimeException e) {
+                    return;
+                }
+            }
+        });
+        Thread.sleep(50L);
+
+        writer.close();
+        submitting.get(5, TimeUnit.SECONDS);
+
+        for (final CompletableFuture<List<Long>> request : requests) {
+            assertTrue(request.isDone(), "A write queued while closing was never completed");
+        }
+    }
+
+    private static CompletableFuture<List<Long>> waitUntilQueued(final GroupCommitWriter<Customer> writer, final long id) throws InterruptedException {
+        while (true) {
+            try {
+                return writer.submit(customers(id, 1));
+            } catch (RuntimeException e) {
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    private static List<Customer> customers(final long fromId, final int count) {
+        return LongStream.range(fromId, fromId + count)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList());
+    }
+}
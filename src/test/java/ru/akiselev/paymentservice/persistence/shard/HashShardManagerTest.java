@@ -0,0 +1,363 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class HashShardManagerTest {
+
+    private static final long[] SHARD_DELAYS_MILLIS = {200L, 300L, 400L};
+
+    private final Set<Integer> cancelledShards = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger runningStatements = new AtomicInteger();
+    private final AtomicInteger peakRunningStatements = new AtomicInteger();
+    private FanOutExecutor fanOutExecutor;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(SHARD_DELAYS_MILLIS.length, 5_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void findAllTakesTheSlowestShardLatency() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("latency", SHARD_DELAYS_MILLIS), fanOutExecutor);
+        shardManager.find(Customer.class).all();
+
+        final long start = System.nanoTime();
+        final List<Customer> customers = shardManager.find(Customer.class).all();
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+
+        assertEquals(SHARD_DELAYS_MILLIS.length * 2, customers.size());
+        assertTrue(elapsedMillis >= 400L, "Elapsed " + elapsedMillis + " ms is less than the slowest shard delay");
+        assertEquals(SHARD_DELAYS_MILLIS.length, peakRunningStatements.get(), "Shards were not queried concurrently");
+        assertTrue(cancelledShards.isEmpty(), "Cancelled statements of shards " + cancelledShards);
+    }
+
+    @Test
+    void findAllFailsWhenShardExceedsTimeout() throws SQLException {
+        final List<Shard> shards = shards("timeout", SHARD_DELAYS_MILLIS);
+        try (final FanOutExecutor impatientExecutor = new FanOutExecutor(shards.size(), 250L)) {
+            final ShardManager shardManager = new HashShardManager(shards, impatientExecutor);
+            final RuntimeException e = assertThrows(RuntimeException.class, () -> shardManager.find(Customer.class).all());
+            assertTrue(e.getMessage().contains("pending shards: [2, 3]"), e.getMessage());
+            assertEquals(Set.of(2, 3), cancelledShards);
+        }
+    }
+
+    @Test
+    void saveAllInBatchReturnsIdsInInputOrder() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("batch", 0L, 0L, 0L), fanOutExecutor);
+        final List<Customer> customers = customers(101L, 109L);
+
+        final List<Long> ids = shardManager.saveAllInBatch(customers, Customer.class);
+
+        assertEquals(customers.stream().map(Customer::getId).collect(toList()), ids);
+    }
+
+    @Test
+    void streamReturnsRowsOfAllShardsAndReleasesConnections() throws SQLException {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final ShardManager shardManager = new HashShardManager(trackedShards("stream", openConnections), fanOutExecutor);
+
+        try (final Stream<Customer> customers = shardManager.find(Customer.class).stream()) {
+            assertEquals(6L, customers.count());
+        }
+
+        assertEquals(0, openConnections.get());
+    }
+
+    @Test
+    void partiallyConsumedStreamReleasesConnectionOnClose() throws SQLException {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final ShardManager shardManager = new HashShardManager(trackedShards("partial", openConnections), fanOutExecutor);
+
+        try (final Stream<Customer> customers = shardManager.find(Customer.class).where().eq("name", "first").stream()) {
+            final Iterator<Customer> iterator = customers.iterator();
+            assertEquals("first", iterator.next().getName());
+            assertEquals(1, openConnections.get());
+        }
+
+        assertEquals(0, openConnections.get());
+    }
+
+    @Test
+    void pageMergesShardsInKeyOrder() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("page", 0L, 0L, 0L), fanOutExecutor);
+
+        final List<Customer> first = shardManager.<Customer>find(Customer.class).page("id", null, 4);
+        final List<Customer> second = shardManager.<Customer>find(Customer.class).page("id", 22L, 4);
+
+        assertEquals(List.of(11L, 12L, 21L, 22L), first.stream().map(Customer::getId).collect(toList()));
+        assertEquals(List.of(31L, 32L), second.stream().map(Customer::getId).collect(toList()));
+    }
+
+    @Test
+    void aggregateMergesPartialsOfAllShards() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("aggregate", 0L, 0L, 0L), fanOutExecutor);
+
+        final List<AggregateRow> rows = shardManager.aggregate(Customer.class)
+                .select(Aggregate.count(), Aggregate.sum("id"), Aggregate.avg("id"), Aggregate.min("id"), Aggregate.max("id"))
+                .groupBy("name")
+                .exec();
+
+        final Map<Object, AggregateRow> byName = rows.stream().collect(toMap(row -> row.getKeys().get(0), row -> row));
+        assertEquals(2, byName.size());
+        final AggregateRow first = byName.get("first");
+        assertEquals(3L, first.get("count(*)", Long.class));
+        assertEquals(63L, first.get("sum(id)", Long.class));
+        assertEquals(21L, first.get("avg(id)", Long.class));
+        assertEquals(11L, first.get("min(id)", Long.class));
+        assertEquals(31L, first.get("max(id)", Long.class));
+        assertEquals(66L, byName.get("second").get("sum(id)", Long.class));
+    }
+
+    @Test
+    void aggregatePrunesToShardOfShardKey() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("pruned", 0L, 0L, 0L), fanOutExecutor);
+
+        final AggregateRow all = shardManager.aggregate(Customer.class)
+                .select(Aggregate.count())
+                .where()
+                .eq("name", "first")
+                .exec()
+                .get(0);
+        final AggregateRow pruned = shardManager.aggregate(Customer.class)
+                .select(Aggregate.count())
+                .where()
+                .eq("name", "first")
+                .shardId(33L)
+                .exec()
+                .get(0);
+
+        assertEquals(3L, all.get("count(*)", Long.class));
+        assertEquals(1L, pruned.get("count(*)", Long.class));
+    }
+
+    @Test
+    void findExistingIdsProbesOwningShards() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("exists", 0L, 0L, 0L), fanOutExecutor);
+        shardManager.saveAllInBatch(customers(101L, 106L), Customer.class);
+
+        final Set<Long> existing = shardManager.findExistingIds(Customer.class, List.of(101L, 104L, 106L, 500L));
+
+        assertEquals(Set.of(101L, 104L, 106L), existing);
+    }
+
+    @Test
+    void findExistingIdsSplitsLargeProbesIntoBatches() throws SQLException {
+        final ShardManager shardManager = new HashShardManager(shards("existsBatched", 0L, 0L, 0L), fanOutExecutor);
+        shardManager.saveAllInBatch(customers(1L, 3_000L), Customer.class);
+
+        final Set<Long> existing = shardManager.findExistingIds(Customer.class,
+                LongStream.rangeClosed(1L, 3_500L).boxed().collect(toList()));
+
+        assertEquals(LongStream.rangeClosed(1L, 3_000L).boxed().collect(toSet()), existing);
+    }
+
+    @Test
+    void existenceFilterRejectsAbsentIdsWithoutQueries() throws SQLException {
+        final AtomicInteger openedConnections = new AtomicInteger();
+        final List<Shard> shards = newArrayList();
+        for (final Shard shard : shards("bloom", 0L, 0L, 0L)) {
+            shards.add(new BloomFilterShard(counted(shard, openedConnections), Customer.class, 1_000L, 0.001, Runnable::run));
+        }
+        final ShardManager shardManager = new HashShardManager(shards, fanOutExecutor);
+        shardManager.saveAllInBatch(customers(101L, 103L), Customer.class);
+        openedConnections.set(0);
+
+        final Set<Long> existing = shardManager.findExistingIds(Customer.class, List.of(101L, 5_000L, 5_001L));
+
+        assertEquals(Set.of(101L), existing);
+        assertEquals(1, openedConnections.get());
+    }
+
+    @Test
+    void existenceFilterProbesDatabaseUntilWarmedUp() throws SQLException {
+        final List<Shard> unfiltered = shards("bloomWarmUp", 0L, 0L, 0L);
+        new HashShardManager(unfiltered, fanOutExecutor).saveAllInBatch(customers(101L, 106L), Customer.class);
+        final List<Runnable> warmUps = newArrayList();
+        final List<Shard> shards = newArrayList();
+        for (final Shard shard : unfiltered) {
+            shards.add(new BloomFilterShard(shard, Customer.class, 1_000L, 0.001, warmUps::add));
+        }
+        final ShardManager shardManager = new HashShardManager(shards, fanOutExecutor);
+
+        assertEquals(Set.of(101L, 104L, 106L), shardManager.findExistingIds(Customer.class, List.of(101L, 104L, 106L, 500L)));
+
+        warmUps.forEach(Runnable::run);
+        assertEquals(Set.of(101L, 104L, 106L), shardManager.findExistingIds(Customer.class, List.of(101L, 104L, 106L, 500L)));
+    }
+
+    @Test
+    void negativeHashKeysAreRoutedToExistingShards() throws SQLException {
+        final HashShardManager shardManager = new HashShardManager(shards("negative", 0L, 0L, 0L), fanOutExecutor);
+
+        for (long key = -10L; key < 0; key++) {
+            final int shardId = shardManager.evaluateShardIdForKey(key);
+            assertTrue(shardId >= 1 && shardId <= 3, "Unknown shard " + shardId + " for key " + key);
+        }
+    }
+
+    private static List<Customer> customers(final long fromId, final long toId) {
+        return LongStream.rangeClosed(fromId, toId)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList());
+    }
+
+    private List<Shard> shards(final String name, final long... delaysMillis) throws SQLException {
+        final List<Shard> shards = newArrayList();
+        for (int i = 0; i < delaysMillis.length; i++) {
+            final int shardId = i + 1;
+            final DataSource dataSource = seededDatabase(name, shardId);
+            shards.add(new ShardServer(shardId, delaysMillis[i] > 0 ? delayed(dataSource, shardId, delaysMillis[i]) : dataSource));
+        }
+        return shards;
+    }
+
+    private static List<Shard> trackedShards(final String name, final AtomicInteger openConnections) throws SQLException {
+        final List<Shard> shards = newArrayList();
+        for (int shardId = 1; shardId <= 3; shardId++) {
+            shards.add(new ShardServer(shardId, tracked(seededDatabase(name, shardId), openConnections), 1));
+        }
+        return shards;
+    }
+
+    private static DataSource seededDatabase(final String name, final int shardId) throws SQLException {
+        final DataSource dataSource = customerDatabase(name + shardId);
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("insert into customer(id, name) values(" + (shardId * 10 + 1) + ", 'first')");
+            statement.execute("insert into customer(id, name) values(" + (shardId * 10 + 2) + ", 'second')");
+        }
+        return dataSource;
+    }
+
+    private static Shard counted(final Shard shard, final AtomicInteger openedConnections) {
+        final DataSource dataSource = ((ShardServer) shard).getDataSource();
+        return new ShardServer(shard.getId(), (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getConnection")) {
+                        openedConnections.incrementAndGet();
+                    }
+                    return invoke(dataSource, method, args);
+                }));
+    }
+
+    private static DataSource tracked(final DataSource dataSource, final AtomicInteger openConnections) {
+        return (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    final Object result = invoke(dataSource, method, args);
+                    if (method.getName().equals("getConnection")) {
+                        openConnections.incrementAndGet();
+                        return tracked((Connection) result, openConnections);
+                    }
+                    return result;
+                });
+    }
+
+    private static Connection tracked(final Connection connection, final AtomicInteger openConnections) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close") && !connection.isClosed()) {
+                        openConnections.decrementAndGet();
+                    }
+                    return invoke(connection, method, args);
+                });
+    }
+
+    /**
+     * Reads of the shard sleep inside H2 while scanning customer rows, so the slow part is a running statement.
+     */
+    private DataSource delayed(final DataSource dataSource, final int shardId, final long delayMillis) throws SQLException {
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("create alias if not exists SLEEP for \"java.lang.Thread.sleep(long)\"");
+            statement.execute("alter table customer rename to customer_row");
+            statement.execute("create view customer as select * from customer_row"
+                    + " where SLEEP(" + delayMillis + " / (select count(*) from customer_row)) is null");
+        }
+        return (DataSource) Proxy.newProxyInstance(
+                DataSource.class.getClassLoader(),
+                new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    final Object result = invoke(dataSource, method, args);
+                    return method.getName().equals("getConnection") ? observed((Connection) result, shardId) : result;
+                });
+    }
+
+    private Connection observed(final Connection connection, final int shardId) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    final Object result = invoke(connection, method, args);
+                    return method.getName().equals("prepareStatement") ? observed((PreparedStatement) result, shardId) : result;
+                });
+    }
+
+    private PreparedStatement observed(final PreparedStatement statement, final int shardId) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("cancel")) {
+                        cancelledShards.add(shardId);
+                    }
+                    if (!method.getName().startsWith("execute")) {
+                        return invoke(statement, method, args);
+                    }
+                    peakRunningStatements.accumulateAndGet(runningStatements.incrementAndGet(), Math::max);
+                    try {
+                        return invoke(statement, method, args);
+                    } finally {
+                        runningStatements.decrementAndGet();
+                    }
+                });
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class HealthCheckedShardTest {
+
+    private static final int WINDOW_SIZE = 4;
+    private static final long SLOW_CALL_MILLIS = 100L;
+    private static final long OPEN_MILLIS = 1_000L;
+    private static final int PROBE_FAILURE_THRESHOLD = 2;
+    private static final int HALF_OPEN_CALLS = 2;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean healthy = new AtomicBoolean(true);
+    private final AtomicInteger probes = new AtomicInteger();
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private ScheduledExecutorService scheduler;
+    private FanOutExecutor fanOutExecutor;
+    private HealthCheckedShard shard1;
+    private HealthCheckedShard shard2;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        fanOutExecutor = new FanOutExecutor(2, 5_000L);
+        shard1 = healthChecked(new ShardServer(1, customerDatabase("healthChecked1")) {
+            @Override
+            public <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+                if (disconnected.get()) {
+                    throw new RuntimeException(new SQLException("Connection refused.", "08001"));
+                }
+                return super.findAll(tClass, condition, parameters);
+            }
+        });
+        shard2 = healthChecked(new ShardServer(2, customerDatabase("healthChecked2")) {
+            @Override
+            public <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+                clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(SLOW_CALL_MILLIS));
+                return super.findAll(tClass, condition, parameters);
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        shard1.close();
+        shard2.close();
+        fanOutExecutor.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void failingShardOpensAndFailsFast() {
+        shard1.findAll(Customer.class, "", List.of());
+        shard1.findAll(Customer.class, "", List.of());
+        disconnected.set(true);
+        assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "", List.of()));
+        assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "", List.of()));
+
+        assertEquals(CircuitBreaker.State.OPEN, shard1.getState());
+        assertFalse(shard1.isAvailable());
+        final RuntimeException rejected = assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "", List.of()));
+        assertTrue(rejected.getMessage().contains("circuit breaker is open"));
+    }
+
+    @Test
+    void queryErrorsDoNotOpenTheShard() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "where no_such_column = 1", List.of()));
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, shard1.getState());
+        assertTrue(shard1.isAvailable());
+    }
+
+    @Test
+    void closedShardOpensOnlyAfterConsecutiveProbeFailures() {
+        healthy.set(false);
+        shard1.probe();
+        assertEquals(CircuitBreaker.State.CLOSED, shard1.getState());
+
+        healthy.set(true);
+        shard1.probe();
+        healthy.set(false);
+        shard1.probe();
+        assertEquals(CircuitBreaker.State.CLOSED, shard1.getState());
+
+        shard1.probe();
+        assertEquals(CircuitBreaker.State.OPEN, shard1.getState());
+    }
+
+    @Test
+    void slowShardOpensAndReopensOnSlowTrialCall() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            shard2.findAll(Customer.class, "", List.of());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, shard2.getState());
+        probes.set(0);
+
+        shard2.probe();
+        assertEquals(0, probes.get());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+        healthy.set(false);
+        shard2.probe();
+        assertEquals(1, probes.get());
+        assertEquals(CircuitBreaker.State.OPEN, shard2.getState());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+        healthy.set(true);
+        shard2.probe();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, shard2.getState());
+        assertTrue(shard2.isAvailable());
+
+        shard2.findAll(Customer.class, "", List.of());
+        assertEquals(CircuitBreaker.State.OPEN, shard2.getState());
+    }
+
+    @Test
+    void halfOpenShardClosesAfterSuccessfulTrialCalls() {
+        disconnected.set(true);
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "", List.of()));
+        }
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+        shard1.probe();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, shard1.getState());
+
+        assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "", List.of()));
+        assertEquals(CircuitBreaker.State.OPEN, shard1.getState());
+
+        disconnected.set(false);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+        shard1.probe();
+        for (int i = 0; i < HALF_OPEN_CALLS; i++) {
+            assertEquals(CircuitBreaker.State.HALF_OPEN, shard1.getState());
+            shard1.findAll(Customer.class, "", List.of());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, shard1.getState());
+    }
+
+    @Test
+    void partialResultsReportUnavailableShards() {
+        final HashShardManager shardManager = new HashShardManager(List.of(shard1, shard2), fanOutExecutor);
+        shardManager.saveAllInBatch(LongStream.rangeClosed(1, 10)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(Collectors.toList()), Customer.class);
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            shard2.findAll(Customer.class, "", List.of());
+        }
+
+        final PartialResult<Customer> page = shardManager.<Customer>find(Customer.class).pageAvailable("id", null, 3);
+
+        assertFalse(page.isComplete());
+        assertEquals(List.of(2), page.getMissingShardIds());
+        assertEquals(ids(shard1.findAll(Customer.class, "order by id limit 3", List.of())), ids(page.getResults()));
+        assertThrows(RuntimeException.class, () -> shardManager.find(Customer.class).all());
+    }
+
+    private HealthCheckedShard healthChecked(final Shard shard) {
+        final CircuitBreaker breaker = new CircuitBreaker(WINDOW_SIZE, 0.5, SLOW_CALL_MILLIS, 0.5, OPEN_MILLIS,
+                PROBE_FAILURE_THRESHOLD, HALF_OPEN_CALLS, clock::get);
+        return new HealthCheckedShard(shard, breaker, () -> {
+            probes.incrementAndGet();
+            return healthy.get();
+        }, scheduler, 60_000L);
+    }
+
+    private static List<Long> ids(final List<Customer> customers) {
+        return customers.stream().map(Customer::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,81 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class MeteredShardTest {
+
+    private SimpleMeterRegistry registry;
+    private FanOutExecutor fanOutExecutor;
+    private MeteredShard shard1;
+    private MeteredShard shard2;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        registry = new SimpleMeterRegistry();
+        fanOutExecutor = new FanOutExecutor(2, 5_000L, registry);
+        shard1 = new MeteredShard(new ShardServer(1, customerDatabase("metered1")), registry, "primary");
+        shard2 = new MeteredShard(new ShardServer(2, customerDatabase("metered2")), registry, "primary");
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void operationsAreTimedAndCountRows() {
+        shard1.insertAllInBatch(customers(1, 5), Customer.class);
+        shard1.insert(new Customer(6L, "customer6"), Customer.class);
+        assertEquals(6, shard1.findAll(Customer.class, "", List.of()).size());
+        try (final Stream<Customer> rows = shard1.stream(Customer.class, "where id > ?", List.of(3L))) {
+            assertEquals(3, rows.count());
+        }
+
+        assertEquals(1, registry.get(MeteredShard.OPERATION_TIMER)
+                .tags("shard", "1", "table", "customer", "operation", "insertAllInBatch", "outcome", "success")
+                .timer().count());
+        assertEquals(5.0, registry.get(MeteredShard.BATCH_SIZE_SUMMARY).tags("operation", "insertAllInBatch").summary().totalAmount());
+        assertEquals(5.0, registry.get(MeteredShard.ROWS_SUMMARY).tags("operation", "insertAllInBatch").summary().totalAmount());
+        assertEquals(1.0, registry.get(MeteredShard.ROWS_SUMMARY).tags("operation", "insert").summary().totalAmount());
+        assertEquals(6.0, registry.get(MeteredShard.ROWS_SUMMARY).tags("operation", "findAll").summary().totalAmount());
+        assertEquals(3.0, registry.get(MeteredShard.ROWS_SUMMARY).tags("operation", "stream").summary().totalAmount());
+    }
+
+    @Test
+    void failuresAreTaggedAsErrors() {
+        assertThrows(RuntimeException.class, () -> shard1.findAll(Customer.class, "where no_such_column = 1", List.of()));
+
+        assertEquals(1, registry.get(MeteredShard.OPERATION_TIMER)
+                .tags("shard", "1", "operation", "findAll", "outcome", "error")
+                .timer().count());
+    }
+
+    @Test
+    void fanOutRecordsSkewBetweenShards() {
+        final HashShardManager shardManager = new HashShardManager(List.of(shard1, shard2), fanOutExecutor);
+        shardManager.saveAllInBatch(customers(1, 20), Customer.class);
+
+        assertEquals(20, shardManager.find(Customer.class).all().size());
+        assertEquals(2, registry.get(FanOutExecutor.SKEW_TIMER).tags("shards", "2").timer().count());
+    }
+
+    private static List<Customer> customers(final long from, final long to) {
+        return LongStream.rangeClosed(from, to)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(Collectors.toList());
+    }
+}
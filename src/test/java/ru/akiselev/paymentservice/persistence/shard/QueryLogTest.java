@@ -0,0 +1,51 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryLogTest {
+
+    private final QueryLog queryLog = new QueryLog(0.0, 60_000L, 2);
+
+    @Test
+    void statisticsAreKeyedByFingerprintAndShard() {
+        queryLog.executed(1, "findAll", "select * from customer where id = 1", TimeUnit.MILLISECONDS.toNanos(2), 0);
+        queryLog.mapped(1, "select * from customer where id = 1", 1);
+        queryLog.executed(1, "findAll", "select * from customer where id = 2", TimeUnit.MILLISECONDS.toNanos(6), 0);
+        queryLog.mapped(1, "select * from customer where id = 2", 1);
+        queryLog.executed(2, "delete", "delete from customer where id = ?", TimeUnit.MILLISECONDS.toNanos(1), 3);
+
+        final List<QueryStatistics> statistics = queryLog.statistics();
+        assertEquals(2, statistics.size());
+        final QueryStatistics select = statistics.get(0);
+        assertEquals("select * from customer where id = ?", select.getFingerprint());
+        assertEquals(1, select.getShardId());
+        assertEquals(2, select.getCalls());
+        assertEquals(8.0, select.getTotalMillis(), 1e-9);
+        assertEquals(6.0, select.getMaxMillis(), 1e-9);
+        assertEquals(4.0, select.getMeanMillis(), 1e-9);
+        assertEquals(2, select.getRows());
+        assertEquals(3, statistics.get(1).getRows());
+    }
+
+    @Test
+    void fingerprintsOverTheLimitAreCountedTogether() {
+        queryLog.executed(1, "findAll", "select * from customer", 1_000L, 0);
+        queryLog.executed(1, "findAll", "select * from payment", 1_000L, 0);
+        queryLog.executed(1, "delete", "delete from payment where id = ?", 1_000L, 1);
+        queryLog.executed(1, "delete", "delete from customer where id = ?", 1_000L, 1);
+
+        final List<QueryStatistics> statistics = queryLog.statistics();
+        assertEquals(3, statistics.size());
+        assertTrue(statistics.stream().anyMatch(row -> row.getFingerprint().equals(QueryLog.OTHER_FINGERPRINT)
+                && row.getCalls() == 2 && row.getRows() == 2));
+
+        queryLog.reset();
+        assertTrue(queryLog.statistics().isEmpty());
+    }
+}
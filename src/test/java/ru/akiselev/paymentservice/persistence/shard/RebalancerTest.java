@@ -0,0 +1,118 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerShards;
+
+class RebalancerTest {
+
+    private static final int INITIAL_CUSTOMERS = 2_000;
+
+    private FanOutExecutor fanOutExecutor;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(4, 5_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void rebalanceMovesRowsToNewOwnersUnderConcurrentLoad() throws Exception {
+        final List<Shard> shards = customerShards("rebalance", 4);
+        final ShardManager source = new HashShardManager(shards.subList(0, 3), fanOutExecutor);
+        final ShardManager target = new HashShardManager(shards, fanOutExecutor);
+        final ReshardingShardManager shardManager = new ReshardingShardManager(source, fanOutExecutor);
+        shardManager.saveAllInBatch(customers(1L, INITIAL_CUSTOMERS), Customer.class);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong nextId = new AtomicLong(INITIAL_CUSTOMERS + 1);
+        final CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            while (running.get()) {
+                final long id = nextId.getAndIncrement();
+                shardManager.save(new Customer(id, "customer" + id), Customer.class);
+            }
+        });
+        final CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            while (running.get()) {
+                final List<Long> ids = shardManager.find(Customer.class).all().stream()
+                        .map(Customer::getId)
+                        .collect(toList());
+                assertEquals(ids.size(), new HashSet<>(ids).size(), "Customers are visible on two shards");
+            }
+        });
+
+        final Rebalancer rebalancer = new Rebalancer(shardManager, 100, 20_000);
+        final long copied;
+        try {
+            copied = rebalancer.rebalance(target, List.of(Customer.class));
+        } finally {
+            running.set(false);
+        }
+        writer.get();
+        reader.get();
+
+        final long total = nextId.get() - 1;
+        assertTrue(copied > 0, "Nothing was copied");
+        assertEquals(ShardMap.Phase.STABLE, shardManager.shardMap().getPhase());
+        assertEquals(4L, shardManager.shardMap().getVersion());
+        assertEquals(total, shardManager.find(Customer.class).all().size());
+
+        final Set<Long> seen = new HashSet<>();
+        for (final Shard shard : shards) {
+            for (final Customer customer : shard.<Customer>findAll(Customer.class, "", List.of())) {
+                assertEquals(target.evaluateShardIdFor(customer), shard.getId(),
+                        "Customer " + customer.getId() + " is left on shard " + shard.getId());
+                assertTrue(seen.add(customer.getId()), "Customer " + customer.getId() + " is duplicated");
+            }
+        }
+        assertEquals(total, seen.size());
+    }
+
+    @Test
+    void rebalanceStopsWhenTargetHoldsAnotherRowWithTheSameId() throws SQLException {
+        final List<Shard> shards = customerShards("conflict", 4);
+        final ShardManager source = new HashShardManager(shards.subList(0, 3), fanOutExecutor);
+        final ShardManager target = new HashShardManager(shards, fanOutExecutor);
+        final ReshardingShardManager shardManager = new ReshardingShardManager(source, fanOutExecutor);
+        final List<Customer> customers = customers(1L, 20);
+        shardManager.saveAllInBatch(customers, Customer.class);
+        final Customer moved = customers.stream()
+                .filter(customer -> target.evaluateShardIdFor(customer) == 4)
+                .findFirst()
+                .orElseThrow();
+        shards.get(3).insertAllInBatch(List.of(new Customer(moved.getId(), "stale")), Customer.class);
+
+        final IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> new Rebalancer(shardManager, 5, 20_000).rebalance(target, List.of(Customer.class)));
+
+        assertTrue(e.getMessage().contains("Row " + moved.getId()), e.getMessage());
+        assertEquals(ShardMap.Phase.MIGRATING, shardManager.shardMap().getPhase());
+        assertEquals(moved.getName(), shardManager.findById(Customer.class, moved.getId()).getName());
+    }
+
+    private static List<Customer> customers(final long fromId, final int count) {
+        return LongStream.range(fromId, fromId + count)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList());
+    }
+}
@@ -0,0 +1,110 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.entity.Payment;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReferenceResolutionTest {
+
+    private static final int CUSTOMERS = 12;
+
+    private final AtomicInteger customerQueries = new AtomicInteger();
+    private FanOutExecutor fanOutExecutor;
+    private ShardManager shardManager;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        fanOutExecutor = new FanOutExecutor(4, 5_000L);
+        shardManager = new HashShardManager(shards(), fanOutExecutor);
+        shardManager.saveAllInBatch(LongStream.rangeClosed(1, CUSTOMERS)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(toList()), Customer.class);
+        shardManager.saveAllInBatch(LongStream.rangeClosed(1, CUSTOMERS * 10)
+                .mapToObj(id -> new Payment(id, (int) id, Customer.of(id % CUSTOMERS + 1), Customer.of((id + 1) % CUSTOMERS + 1)))
+                .collect(toList()), Payment.class);
+        customerQueries.set(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void referencesAreResolvedWithOneQueryPerOwningShard() {
+        final List<Payment> payments = shardManager.find(Payment.class).all();
+
+        assertEquals(CUSTOMERS * 10, payments.size());
+        assertTrue(customerQueries.get() <= 3, customerQueries.get() + " customer queries");
+        for (final Payment payment : payments) {
+            assertEquals("customer" + payment.getSender().getId(), payment.getSender().getName());
+            assertEquals("customer" + payment.getReceiver().getId(), payment.getReceiver().getName());
+        }
+        final Payment first = payments.get(0);
+        final Payment sameSender = payments.stream()
+                .filter(payment -> payment != first && payment.getSender().getId().equals(first.getSender().getId()))
+                .findFirst()
+                .orElseThrow();
+        assertSame(first.getSender(), sameSender.getSender());
+    }
+
+    @Test
+    void streamedReferencesAreResolvedInChunks() {
+        try (final Stream<Payment> payments = shardManager.find(Payment.class).stream()) {
+            assertTrue(payments.allMatch(payment -> payment.getReceiver().getName() != null));
+        }
+        assertTrue(customerQueries.get() <= 3, customerQueries.get() + " customer queries");
+    }
+
+    @Test
+    void lazyReferencesCarryOnlyIds() {
+        final List<Payment> payments = shardManager.find(Payment.class).lazyReferences().all();
+
+        assertEquals(CUSTOMERS * 10, payments.size());
+        assertEquals(0, customerQueries.get());
+        payments.forEach(payment -> assertNull(payment.getSender().getName()));
+    }
+
+    private List<Shard> shards() throws SQLException {
+        final List<Shard> shards = newArrayList();
+        for (int shardId = 1; shardId <= 3; shardId++) {
+            final JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:references" + shardId + ";DB_CLOSE_DELAY=-1");
+            try (final Connection connection = dataSource.getConnection();
+                 final Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists payment");
+                statement.execute("drop table if exists customer");
+                statement.execute("create table customer(id bigint auto_increment primary key, name varchar(100))");
+                statement.execute("create table payment(id bigint auto_increment primary key, amount int, sender_id bigint, receiver_id bigint)");
+            }
+            shards.add(new ShardServer(shardId, dataSource) {
+                @Override
+                public <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+                    if (tClass == Customer.class) {
+                        customerQueries.incrementAndGet();
+                    }
+                    return super.findAll(tClass, condition, parameters);
+                }
+            });
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,163 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class ReplicatedShardTest {
+
+    private static final long MAX_LAG_MILLIS = 1_000L;
+
+    private final Map<Shard, Long> lags = new ConcurrentHashMap<>();
+    private final Map<Shard, AtomicInteger> reads = new ConcurrentHashMap<>();
+    private final Set<Shard> disconnected = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduler;
+    private Shard primary;
+    private Shard replica1;
+    private Shard replica2;
+    private ReplicatedShard shard;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        primary = countingReads(customerDatabase("replicatedPrimary"));
+        replica1 = countingReads(customerDatabase("replicatedReplica1"));
+        replica2 = countingReads(customerDatabase("replicatedReplica2"));
+        shard = new ReplicatedShard(primary, List.of(replica1, replica2), lags::get, MAX_LAG_MILLIS, scheduler, 60_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        shard.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void readsGoToPrimaryUntilLagIsKnown() {
+        shard.findAll(Customer.class, "", List.of());
+
+        assertEquals(1, reads.get(primary).get());
+    }
+
+    @Test
+    void readsPreferReplicaWithFewestOutstandingRequests() {
+        lags.put(replica1, 0L);
+        lags.put(replica2, 0L);
+        shard.probeLag();
+
+        try (final Stream<Customer> open = shard.stream(Customer.class, "", List.of())) {
+            final Shard busy = reads.get(replica1).get() > 0 ? replica1 : replica2;
+            final Shard idle = busy == replica1 ? replica2 : replica1;
+            reads.values().forEach(counter -> counter.set(0));
+
+            for (int i = 0; i < 10; i++) {
+                shard.findAll(Customer.class, "", List.of());
+            }
+
+            assertEquals(10, reads.get(idle).get());
+            assertEquals(0, reads.get(busy).get());
+        }
+        reads.values().forEach(counter -> counter.set(0));
+        for (int i = 0; i < 10; i++) {
+            shard.findAll(Customer.class, "", List.of());
+        }
+        assertTrue(reads.get(replica1).get() > 0 && reads.get(replica2).get() > 0);
+        assertEquals(0, reads.get(primary).get());
+    }
+
+    @Test
+    void laggingReplicaIsSkipped() {
+        lags.put(replica1, 0L);
+        lags.put(replica2, MAX_LAG_MILLIS * 5);
+        shard.probeLag();
+
+        for (int i = 0; i < 10; i++) {
+            shard.findAll(Customer.class, "", List.of());
+        }
+
+        assertEquals(10, reads.get(replica1).get());
+        assertEquals(0, reads.get(replica2).get());
+
+        lags.put(replica1, MAX_LAG_MILLIS * 5);
+        shard.probeLag();
+        shard.findAll(Customer.class, "", List.of());
+
+        assertEquals(1, reads.get(primary).get());
+    }
+
+    @Test
+    void disconnectedReplicaFailsOverOnce() {
+        lags.put(replica1, 0L);
+        lags.put(replica2, MAX_LAG_MILLIS * 5);
+        shard.probeLag();
+        disconnected.add(replica1);
+
+        assertTrue(shard.findAll(Customer.class, "", List.of()).isEmpty());
+        assertEquals(1, reads.get(replica1).get());
+        assertEquals(1, reads.get(primary).get());
+
+        disconnected.clear();
+        assertThrows(RuntimeException.class, () -> shard.findAll(Customer.class, "where no_such_column = 1", List.of()));
+        assertEquals(1, reads.get(primary).get());
+    }
+
+    @Test
+    void sessionTokenReadsItsOwnWrites() {
+        lags.put(replica1, 100L);
+        lags.put(replica2, 100L);
+        shard.probeLag();
+        final SessionToken token = SessionToken.decode("");
+
+        try (final SessionToken.Scope scope = token.bind()) {
+            shard.insert(new Customer(1L, "customer1"), Customer.class);
+
+            assertEquals(1, shard.findAll(Customer.class, "where id = ?", List.of(1L)).size());
+        }
+        assertTrue(token.isWritten());
+        assertTrue(token.encode().startsWith(primary.getId() + ":"));
+        assertTrue(shard.findAll(Customer.class, "where id = ?", List.of(1L)).isEmpty());
+
+        final SessionToken caughtUp = SessionToken.decode(primary.getId() + ":" + (System.currentTimeMillis() - 500L));
+        try (final SessionToken.Scope scope = caughtUp.bind()) {
+            assertTrue(shard.findAll(Customer.class, "where id = ?", List.of(1L)).isEmpty());
+        }
+    }
+
+    private Shard countingReads(final DataSource dataSource) {
+        final Shard counting = new ShardServer(1, dataSource) {
+            @Override
+            public <T> List<T> findAll(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+                reads.get(this).incrementAndGet();
+                if (disconnected.contains(this)) {
+                    throw new RuntimeException(new SQLException("Connection refused.", "08001"));
+                }
+                return super.findAll(tClass, condition, parameters);
+            }
+
+            @Override
+            public <T> Stream<T> stream(final Class<? extends T> tClass, final String condition, final List<Object> parameters) {
+                reads.get(this).incrementAndGet();
+                return super.stream(tClass, condition, parameters);
+            }
+        };
+        reads.put(counting, new AtomicInteger());
+        return counting;
+    }
+}
@@ -0,0 +1,95 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+import ru.akiselev.paymentservice.persistence.generator.IdGenerator;
+import ru.akiselev.paymentservice.persistence.generator.SnowflakeIdGenerator;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerShards;
+
+class ShardEncodedShardManagerTest {
+
+    private static final int SHARD_BITS = 2;
+
+    private final IdGenerator idGenerator = new SnowflakeIdGenerator(0L, 1, 8, SHARD_BITS, 12);
+    private FanOutExecutor fanOutExecutor;
+
+    @BeforeEach
+    void setUp() {
+        fanOutExecutor = new FanOutExecutor(4, 5_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void customersArePlacedRoundRobinAndFoundByDecodedId() throws SQLException {
+        final List<Shard> shards = customerShards("encodedPlacement", 3);
+        final ShardEncodedShardManager shardManager = new ShardEncodedShardManager(shards, fanOutExecutor, SHARD_BITS, Map.of());
+
+        final List<Customer> customers = customers(shardManager, 30);
+        shardManager.saveAllInBatch(customers, Customer.class);
+
+        for (final Shard shard : shards) {
+            final List<Customer> stored = shard.findAll(Customer.class, "", List.of());
+            assertEquals(10, stored.size());
+            stored.forEach(customer -> assertEquals(shard.getId(), customer.getId() & 0b11));
+        }
+        for (final Customer customer : customers) {
+            assertEquals(customer.getName(), shardManager.findById(Customer.class, customer.getId()).getName());
+        }
+    }
+
+    @Test
+    void overrideRelocatesEncodedShardAfterRebalancing() throws SQLException {
+        final List<Shard> shards = customerShards("encodedRebalance", 4);
+        final ShardManager source = new ShardEncodedShardManager(shards.subList(0, 3), fanOutExecutor, SHARD_BITS, Map.of());
+        final ShardManager target = new ShardEncodedShardManager(shards, fanOutExecutor, SHARD_BITS, Map.of(3, 4));
+        final ReshardingShardManager shardManager = new ReshardingShardManager(source, fanOutExecutor);
+        final List<Customer> customers = customers(shardManager, 30);
+        shardManager.saveAllInBatch(customers, Customer.class);
+
+        final long copied = new Rebalancer(shardManager, 7, 10_000).rebalance(target, List.of(Customer.class));
+
+        assertEquals(10L, copied);
+        assertTrue(shards.get(2).findAll(Customer.class, "", List.of()).isEmpty());
+        assertEquals(10, shards.get(3).findAll(Customer.class, "", List.of()).size());
+        assertEquals(10, shards.get(0).findAll(Customer.class, "", List.of()).size());
+        for (final Customer customer : customers) {
+            assertEquals(customer.getName(), shardManager.findById(Customer.class, customer.getId()).getName());
+        }
+    }
+
+    @Test
+    void keysEncodingUnknownShardAreRejected() {
+        final ShardEncodedShardManager shardManager = new ShardEncodedShardManager(
+                List.of(new ShardServer(1, new JdbcDataSource())), fanOutExecutor, SHARD_BITS, Map.of());
+
+        assertEquals(1, shardManager.evaluateShardIdForKey(0b101L));
+        assertThrows(IllegalArgumentException.class, () -> shardManager.evaluateShardIdForKey(0b110L));
+        assertThrows(IllegalArgumentException.class, () -> shardManager.evaluateShardIdForKey("customer"));
+    }
+
+    private List<Customer> customers(final ShardManager shardManager, final int count) {
+        final List<Customer> customers = newArrayList();
+        for (int i = 0; i < count; i++) {
+            final Customer customer = new Customer(null, "customer" + i);
+            customer.setId(idGenerator.next(shardManager.encodedShardIdFor(customer)));
+            customers.add(customer);
+        }
+        return customers;
+    }
+}
@@ -0,0 +1,144 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class ShardSessionTest {
+
+    private FanOutExecutor fanOutExecutor;
+    private CountingDataSource dataSource1;
+    private CountingDataSource dataSource2;
+    private ShardServer shard1;
+    private HashShardManager shardManager;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        fanOutExecutor = new FanOutExecutor(2, 5_000L);
+        dataSource1 = customerDatabase(new CountingDataSource(), "session1");
+        dataSource2 = customerDatabase(new CountingDataSource(), "session2");
+        shard1 = new ShardServer(1, dataSource1);
+        shardManager = new HashShardManager(List.of(shard1, new ShardServer(2, dataSource2)), fanOutExecutor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void unitOfWorkUsesOneConnectionPerShardAndCommits() {
+        final List<Customer> customers = customers(1, 10);
+        dataSource1.opened.set(0);
+        dataSource2.opened.set(0);
+
+        final Set<Long> existing = shardManager.inSession(() -> {
+            shardManager.saveAllInBatch(customers, Customer.class);
+            assertEquals(10, shardManager.find(Customer.class).all().size());
+            return shardManager.findExistingIds(Customer.class, List.of(1L, 5L, 42L));
+        });
+
+        assertEquals(Set.of(1L, 5L), existing);
+        assertEquals(1, dataSource1.opened.get());
+        assertEquals(1, dataSource2.opened.get());
+        assertNull(ShardSession.current());
+        assertEquals(10, shardManager.find(Customer.class).all().size());
+    }
+
+    @Test
+    void failedUnitOfWorkIsRolledBack() {
+        assertThrows(IllegalStateException.class, () -> shardManager.inSession(() -> {
+            shardManager.saveAllInBatch(customers(1, 10), Customer.class);
+            throw new IllegalStateException("receiver is not valid");
+        }));
+
+        assertNull(ShardSession.current());
+        assertTrue(shardManager.find(Customer.class).all().isEmpty());
+    }
+
+    @Test
+    void duplicatesInsideSessionKeepEarlierWrites() {
+        final int inserted = shardManager.inSession(() -> {
+            shard1.insert(new Customer(1L, "customer1"), Customer.class);
+            return shard1.insertAllIfAbsent(customers(1, 3), Customer.class);
+        });
+
+        assertEquals(2, inserted);
+        assertEquals(3, shard1.findAll(Customer.class, "", List.of()).size());
+    }
+
+    @Test
+    void timedOutFanOutWaitsForSessionTasksToStop() {
+        final FanOutExecutor impatient = new FanOutExecutor(2, 200L);
+        final AtomicBoolean slowTaskStopped = new AtomicBoolean();
+        try {
+            assertThrows(RuntimeException.class, () -> shardManager.inSession(() -> impatient.invokeAll(shardManager.shards.values(), shard -> {
+                if (shard.getId() == 2) {
+                    Uninterruptibles.sleepUninterruptibly(300L, TimeUnit.MILLISECONDS);
+                    slowTaskStopped.set(true);
+                }
+                return shard.getId();
+            })));
+
+            assertTrue(slowTaskStopped.get());
+        } finally {
+            impatient.close();
+        }
+    }
+
+    @Test
+    void sessionWithSessionTasksThatDidNotStopCannotBeCommitted() {
+        final FanOutExecutor impatient = new FanOutExecutor(2, 50L);
+        try {
+            final IllegalStateException e = assertThrows(IllegalStateException.class, () -> shardManager.inSession(() -> {
+                assertThrows(RuntimeException.class, () -> impatient.invokeAll(shardManager.shards.values(), shard -> {
+                    if (shard.getId() == 2) {
+                        Uninterruptibles.sleepUninterruptibly(1_000L, TimeUnit.MILLISECONDS);
+                    }
+                    return shard.getId();
+                }));
+                return null;
+            }));
+
+            assertTrue(e.getMessage().contains("did not stop"), e.getMessage());
+        } finally {
+            impatient.close();
+        }
+    }
+
+    private static List<Customer> customers(final long from, final long to) {
+        return LongStream.rangeClosed(from, to)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(Collectors.toList());
+    }
+
+    private static final class CountingDataSource extends JdbcDataSource {
+
+        private final AtomicInteger opened = new AtomicInteger();
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            opened.incrementAndGet();
+            return super.getConnection();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SqlFingerprintTest {
+
+    @Test
+    void literalsAndPlaceholderListsAreNormalized() {
+        assertEquals("select * from customer where id in (?+) and name = ?",
+                SqlFingerprint.of("SELECT *  FROM customer\n WHERE id IN (?, ?,?) AND name = 'O''Neil'"));
+        assertEquals("delete from payment where id=? and amount > ?",
+                SqlFingerprint.of("delete from payment where id=42 and amount > 10.5"));
+    }
+
+    @Test
+    void identifiersWithDigitsAreKept() {
+        assertEquals("select sum(amount) as sum_0 from payment where sender_id=?",
+                SqlFingerprint.of("select sum(amount) as sum_0 from payment where sender_id=?"));
+    }
+}
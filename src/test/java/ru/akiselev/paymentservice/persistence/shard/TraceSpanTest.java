@@ -0,0 +1,66 @@
+package ru.akiselev.paymentservice.persistence.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.akiselev.paymentservice.entity.Customer;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.akiselev.paymentservice.persistence.shard.CustomerDatabases.customerDatabase;
+
+class TraceSpanTest {
+
+    private FanOutExecutor fanOutExecutor;
+    private HashShardManager shardManager;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        fanOutExecutor = new FanOutExecutor(2, 5_000L);
+        shardManager = new HashShardManager(List.of(
+                new ShardServer(1, customerDatabase("traced1")),
+                new ShardServer(2, customerDatabase("traced2"))), fanOutExecutor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fanOutExecutor.close();
+    }
+
+    @Test
+    void fanOutCallsAreRecordedUnderTheRequestSpan() {
+        shardManager.saveAllInBatch(LongStream.rangeClosed(1, 10)
+                .mapToObj(id -> new Customer(id, "customer" + id))
+                .collect(Collectors.toList()), Customer.class);
+
+        final TraceSpan trace = TraceSpan.root("GET /customers");
+        try (final TraceSpan.Scope scope = trace.bind()) {
+            assertEquals(10, shardManager.find(Customer.class).all().size());
+        }
+        trace.finish();
+
+        final List<String> lines = trace.render().lines().collect(Collectors.toList());
+        assertTrue(lines.get(0).endsWith("GET /customers"), lines.get(0));
+        assertTrue(lines.get(1).endsWith(" ms findAll customer") && lines.get(1).startsWith("  +"), lines.get(1));
+        for (final int shardId : List.of(1, 2)) {
+            assertTrue(lines.stream().anyMatch(line -> line.startsWith("    +")
+                    && line.endsWith(" shard " + shardId + " findAll: select * from customer")), trace.render());
+            assertTrue(lines.stream().anyMatch(line -> line.endsWith(" shard " + shardId + " mapping")), trace.render());
+        }
+        assertTrue(lines.stream().noneMatch(line -> line.endsWith("(running)")), trace.render());
+    }
+
+    @Test
+    void nothingIsRecordedOutsideOfATrace() {
+        try (final TraceSpan.Scope scope = TraceSpan.start("orphan")) {
+            assertNull(TraceSpan.current());
+            assertEquals(0, shardManager.find(Customer.class).all().size());
+        }
+    }
+}